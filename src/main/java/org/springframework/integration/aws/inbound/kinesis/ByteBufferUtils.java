@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utilities for the Kinesis record data {@link ByteBuffer}s.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class ByteBufferUtils {
+
+	private ByteBufferUtils() {
+	}
+
+	/**
+	 * Return the remaining content of the buffer as a {@code byte[]}.
+	 * The backing array is returned as is if it exactly matches the remaining content;
+	 * otherwise (read-only, direct or sliced buffers) the content is copied.
+	 * The position of the provided buffer is not changed.
+	 * @param buffer the buffer to extract bytes from.
+	 * @return the bytes of the buffer.
+	 */
+	static byte[] toByteArray(ByteBuffer buffer) {
+		if (buffer.hasArray()
+				&& buffer.arrayOffset() == 0
+				&& buffer.position() == 0
+				&& buffer.remaining() == buffer.array().length) {
+
+			return buffer.array();
+		}
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+}
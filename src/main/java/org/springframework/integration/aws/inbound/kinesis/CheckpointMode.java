@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,6 +39,16 @@ public enum CheckpointMode {
 	/**
 	 * Checkpoint on demand via provided to the message {@link Checkpointer} callback.
 	 */
-	manual
+	manual,
+
+	/**
+	 * Checkpoint the last processed record after the configured number of records
+	 * or time interval since the previous checkpoint, whichever comes first.
+	 * Trades a bounded replay window for much fewer checkpoint store writes.
+	 * @since 2.2
+	 * @see KinesisMessageDrivenChannelAdapter#setCheckpointsInterval(long)
+	 * @see KinesisMessageDrivenChannelAdapter#setCheckpointsRecordsThreshold(int)
+	 */
+	periodic
 
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import org.springframework.util.Assert;
+
+/**
+ * Tracks the completion of a batch of records processed out of order
+ * and exposes the highest position up to which all the records are completed.
+ * <p>
+ * Only that contiguous watermark is safe to checkpoint: a record after
+ * a gap may be completed, but checkpointing it would skip the record in the gap
+ * on restart.
+ * <p>
+ * Not thread-safe by itself: callers have to synchronize on the instance
+ * to keep the completion and the respective checkpoint atomic.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class ContiguousWatermark {
+
+	private final boolean[] completed;
+
+	private int next;
+
+	ContiguousWatermark(int size) {
+		Assert.isTrue(size >= 0, "'size' must not be negative");
+		this.completed = new boolean[size];
+	}
+
+	/**
+	 * Mark the record at the provided position as completed.
+	 * @param index the position of the record in the batch.
+	 * @return the number of positions the watermark has been advanced for;
+	 * {@code 0} if there is still a not completed record before this one.
+	 */
+	int complete(int index) {
+		Assert.isTrue(index >= 0 && index < this.completed.length,
+				() -> "'index' must be in the range [0, " + this.completed.length + ")");
+		this.completed[index] = true;
+		int start = this.next;
+		while (this.next < this.completed.length && this.completed[this.next]) {
+			this.next++;
+		}
+		return this.next - start;
+	}
+
+	/**
+	 * Return the position of the last record up to which all the records are completed.
+	 * @return the watermark position or {@code -1} if the first record is not completed yet.
+	 */
+	int getWatermark() {
+		return this.next - 1;
+	}
+
+	boolean isCompleted() {
+		return this.next == this.completed.length;
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * A {@link Record} extension for a user record extracted from a KPL-aggregated Kinesis record.
+ * <p>
+ * All the user records of the same aggregated record share its sequence number
+ * and are distinguished by the {@link #getSubSequenceNumber() sub-sequence number}.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class DeaggregatedRecord extends Record {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long subSequenceNumber;
+
+	private final String explicitHashKey;
+
+	private final boolean lastInAggregate;
+
+	DeaggregatedRecord(Record aggregatedRecord, String partitionKey, String explicitHashKey, ByteBuffer data,
+			long subSequenceNumber, boolean lastInAggregate) {
+
+		setSequenceNumber(aggregatedRecord.getSequenceNumber());
+		setApproximateArrivalTimestamp(aggregatedRecord.getApproximateArrivalTimestamp());
+		setEncryptionType(aggregatedRecord.getEncryptionType());
+		setPartitionKey(partitionKey);
+		setData(data);
+		this.explicitHashKey = explicitHashKey;
+		this.subSequenceNumber = subSequenceNumber;
+		this.lastInAggregate = lastInAggregate;
+	}
+
+	/**
+	 * Return the position of this user record in the aggregated record.
+	 * @return the sub-sequence number.
+	 */
+	public long getSubSequenceNumber() {
+		return this.subSequenceNumber;
+	}
+
+	/**
+	 * Return the explicit hash key the user record has been produced with (if any).
+	 * @return the explicit hash key or null.
+	 */
+	public String getExplicitHashKey() {
+		return this.explicitHashKey;
+	}
+
+	/**
+	 * Return true if this is the last user record of the aggregated record,
+	 * so the shared sequence number can be checkpointed without losing other user records.
+	 * @return true if this is the last user record of the aggregated record.
+	 */
+	public boolean isLastInAggregate() {
+		return this.lastInAggregate;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return super.equals(o)
+				&& o instanceof DeaggregatedRecord
+				&& this.subSequenceNumber == ((DeaggregatedRecord) o).subSequenceNumber;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * super.hashCode() + Long.hashCode(this.subSequenceNumber);
+	}
+
+	@Override
+	public String toString() {
+		return "DeaggregatedRecord{" +
+				"sequenceNumber='" + getSequenceNumber() + '\'' +
+				", subSequenceNumber=" + this.subSequenceNumber +
+				", partitionKey='" + getPartitionKey() + '\'' +
+				", lastInAggregate=" + this.lastInAggregate +
+				'}';
+	}
+
+}
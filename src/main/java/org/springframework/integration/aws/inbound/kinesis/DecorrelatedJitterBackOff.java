@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.util.Assert;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+
+/**
+ * The exponential {@link BackOff} with decorrelated jitter:
+ * each next interval is a random value between the {@code base} and
+ * three times the previous interval, but not more than the {@code cap}.
+ * <p>
+ * Since every {@link BackOffExecution} grows independently, the consumers backing off
+ * at the same time don't wake up in lockstep.
+ * See <a href="https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/">
+ * Exponential Backoff And Jitter</a> for more information.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class DecorrelatedJitterBackOff implements BackOff {
+
+	private final long base;
+
+	private final long cap;
+
+	private final Random random;
+
+	/**
+	 * Create an instance based on the provided intervals.
+	 * @param base the minimum interval in milliseconds.
+	 * @param cap the maximum interval in milliseconds.
+	 */
+	public DecorrelatedJitterBackOff(long base, long cap) {
+		this(base, cap, null);
+	}
+
+	/**
+	 * Create an instance based on the provided intervals and {@link Random}.
+	 * @param base the minimum interval in milliseconds.
+	 * @param cap the maximum interval in milliseconds.
+	 * @param random the {@link Random} to generate intervals;
+	 * the {@link ThreadLocalRandom} of the calling thread is used if null.
+	 */
+	public DecorrelatedJitterBackOff(long base, long cap, Random random) {
+		Assert.isTrue(base > 0, "'base' must be more than 0");
+		Assert.isTrue(cap >= base, "'cap' must not be less than 'base'");
+		this.base = base;
+		this.cap = cap;
+		this.random = random;
+	}
+
+	public long getBase() {
+		return this.base;
+	}
+
+	public long getCap() {
+		return this.cap;
+	}
+
+	@Override
+	public BackOffExecution start() {
+		return new DecorrelatedJitterBackOffExecution();
+	}
+
+	@Override
+	public String toString() {
+		return "DecorrelatedJitterBackOff{" +
+				"base=" + this.base +
+				", cap=" + this.cap +
+				'}';
+	}
+
+	private final class DecorrelatedJitterBackOffExecution implements BackOffExecution {
+
+		private long interval = DecorrelatedJitterBackOff.this.base;
+
+		DecorrelatedJitterBackOffExecution() {
+		}
+
+		@Override
+		public long nextBackOff() {
+			long base = DecorrelatedJitterBackOff.this.base;
+			long upperBound = Math.max(base + 1, Math.min(this.interval, Long.MAX_VALUE / 3) * 3);
+			Random random = DecorrelatedJitterBackOff.this.random;
+			long next =
+					random != null
+							? base + (long) (random.nextDouble() * (upperBound - base))
+							: ThreadLocalRandom.current().nextLong(base, upperBound);
+			this.interval = Math.min(DecorrelatedJitterBackOff.this.cap, next);
+			return this.interval;
+		}
+
+		@Override
+		public String toString() {
+			return "DecorrelatedJitterBackOffExecution{" +
+					"interval=" + this.interval +
+					", backOff=" + DecorrelatedJitterBackOff.this +
+					'}';
+		}
+
+	}
+
+}
@@ -20,9 +20,11 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.core.AttributeAccessor;
+import org.springframework.core.convert.converter.Converter;
 import org.springframework.integration.aws.support.AwsHeaders;
 import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.integration.mapping.InboundMessageMapper;
@@ -33,6 +35,7 @@ import org.springframework.integration.support.management.IntegrationManagedReso
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.messaging.Message;
 import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
@@ -41,6 +44,7 @@ import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.kinesis.common.ConfigsBuilder;
 import software.amazon.kinesis.common.InitialPositionInStream;
 import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.coordinator.CoordinatorConfig;
 import software.amazon.kinesis.coordinator.Scheduler;
 import software.amazon.kinesis.exceptions.InvalidStateException;
 import software.amazon.kinesis.exceptions.ShutdownException;
@@ -54,6 +58,10 @@ import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.RetrievalConfig;
+import software.amazon.kinesis.retrieval.RetrievalSpecificConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConfig;
+import software.amazon.kinesis.retrieval.polling.PollingConfig;
 
 /**
  * The {@link MessageProducerSupport} implementation for receiving data from Amazon
@@ -76,6 +84,12 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 
 	private InboundMessageMapper<byte[]> embeddedHeadersMapper;
 
+	private Converter<ByteBuffer, Object> byteBufferConverter;
+
+	private boolean lazyPayload;
+
+	private Predicate<KinesisClientRecord> recordFilter;
+
 	private Scheduler scheduler;
 
 	private final Executor executor;
@@ -95,6 +109,12 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 
 	private long checkpointsInterval = 60_000L;
 
+	private boolean fanOut = true;
+
+	private Object meterRegistry;
+
+	private KinesisConsumerMetrics metrics;
+
 	public KclMessageDrivenChannelAdapter(String streams, Executor executor) {
 		this(streams, executor, KinesisAsyncClient.builder().build(),
 				CloudWatchAsyncClient.builder().build(), DynamoDbAsyncClient.builder().build());
@@ -135,26 +155,133 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 		this.embeddedHeadersMapper = embeddedHeadersMapper;
 	}
 
+	/**
+	 * Specify a {@link Converter} to deserialize the record's body directly from its {@link ByteBuffer}
+	 * without copying it into a {@code byte[]}.
+	 * The converter is called with a read-only view of the record data.
+	 * An identity converter (e.g. {@code buffer -> buffer}) can be used to emit the
+	 * read-only {@link ByteBuffer} as a payload.
+	 * When an {@link #setEmbeddedHeadersMapper embeddedHeadersMapper} is configured,
+	 * this converter is applied to the payload extracted by the mapper.
+	 * By default the record data is emitted as a {@code byte[]} payload.
+	 * @param byteBufferConverter the {@link Converter} to use.
+	 * @since 2.2
+	 */
+	public void setByteBufferConverter(Converter<ByteBuffer, Object> byteBufferConverter) {
+		this.byteBufferConverter = byteBufferConverter;
+	}
+
+	/**
+	 * Set to true to emit the records data as a {@link LazyPayload} which is converted
+	 * with the {@link #setByteBufferConverter byteBufferConverter} (or copied into a {@code byte[]})
+	 * only when its {@link LazyPayload#get()} is called.
+	 * Useful when the downstream flow discards most of the messages by their headers.
+	 * The conversion errors are thrown to the caller of the {@link LazyPayload#get()}.
+	 * @param lazyPayload true to defer the payload conversion.
+	 * @since 2.2
+	 */
+	public void setLazyPayload(boolean lazyPayload) {
+		this.lazyPayload = lazyPayload;
+	}
+
+	/**
+	 * Specify a {@link Predicate} to select the records to emit, e.g. by the partition key,
+	 * explicit hash key, approximate arrival timestamp or data prefix.
+	 * The rejected records are dropped before any conversion, embedded headers parsing and message creation;
+	 * they are still covered by the checkpoint of the records batch.
+	 * @param recordFilter the {@link Predicate} to accept records.
+	 * @since 2.2
+	 */
+	public void setRecordFilter(Predicate<KinesisClientRecord> recordFilter) {
+		this.recordFilter = recordFilter;
+	}
+
+	/**
+	 * Specify whether to consume the stream via enhanced fan-out ({@code SubscribeToShard} HTTP/2 push)
+	 * with a dedicated read throughput for this consumer group, or via the shared-throughput
+	 * {@code GetRecords} polling.
+	 * Defaults to {@code true}.
+	 * <p>
+	 * The option only selects the KCL {@link FanOutConfig} or {@link PollingConfig} retrieval
+	 * and only that choice is covered by the tests of this adapter.
+	 * The push-mode {@code SubscribeToShard} delivery is performed by the KCL and is untested here,
+	 * since it requires a registered enhanced fan-out consumer of a real stream.
+	 * @param fanOut false to use {@code GetRecords} polling instead of enhanced fan-out.
+	 * @since 2.2
+	 */
+	public void setFanOut(boolean fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Specify a Micrometer {@code MeterRegistry} to register the per-shard meters:
+	 * {@code kinesis.consumer.millis.behind.latest} gauge,
+	 * {@code kinesis.consumer.records} and {@code kinesis.consumer.bytes} counters
+	 * and {@code kinesis.consumer.dispatch} timer.
+	 * The meters are tagged with the {@code consumer.group}, {@code stream} and {@code shard}.
+	 * The records retrieval is instrumented by the Kinesis Client Library itself.
+	 * Typed as {@link Object} because the Micrometer dependency is optional.
+	 * @param meterRegistry the {@code io.micrometer.core.instrument.MeterRegistry} to use.
+	 * @since 2.2
+	 */
+	public void setMeterRegistry(Object meterRegistry) {
+		Assert.notNull(meterRegistry, "'meterRegistry' must not be null");
+		this.meterRegistry = meterRegistry;
+	}
+
 	@Override
 	protected void onInit() {
 		super.onInit();
 
+		if (this.meterRegistry != null) {
+			Assert.state(ClassUtils.isPresent(KinesisConsumerMetrics.METER_REGISTRY_CLASS_NAME,
+					getClass().getClassLoader()),
+					"The 'io.micrometer:micrometer-core' is required for the 'meterRegistry'.");
+			this.metrics = KinesisConsumerMetrics.create(this.meterRegistry, this.consumerGroup);
+		}
+
 		String workerId = UUID.randomUUID().toString();
 		RecordProcessorFactory recordProcessorFactory = new RecordProcessorFactory();
 
 		ConfigsBuilder configsBuilder = new ConfigsBuilder(this.stream, this.consumerGroup,
 				this.kinesisClient, this.dynamoDBClient, this.cloudWatchClient, workerId, recordProcessorFactory);
-		configsBuilder.retrievalConfig().initialPositionInStreamExtended(this.streamInitialSequence);
-		configsBuilder.retrievalConfig().listShardsBackoffTimeInMillis(this.consumerBackoff);
-		configsBuilder.coordinatorConfig().parentShardPollIntervalMillis(this.idleBetweenPolls);
+
+		RetrievalSpecificConfig retrievalSpecificConfig;
+		if (this.fanOut) {
+			retrievalSpecificConfig =
+					new FanOutConfig(this.kinesisClient)
+							.streamName(this.stream)
+							.applicationName(this.consumerGroup);
+		}
+		else {
+			PollingConfig pollingConfig = new PollingConfig(this.stream, this.kinesisClient);
+			if (this.idleBetweenPolls > 0) {
+				pollingConfig.idleTimeBetweenReadsInMillis(this.idleBetweenPolls);
+			}
+			retrievalSpecificConfig = pollingConfig;
+		}
+
+		// The ConfigsBuilder creates a new config instance on each call
+		RetrievalConfig retrievalConfig =
+				configsBuilder.retrievalConfig()
+						.retrievalSpecificConfig(retrievalSpecificConfig)
+						.initialPositionInStreamExtended(this.streamInitialSequence);
+		if (this.consumerBackoff > 0) {
+			retrievalConfig.listShardsBackoffTimeInMillis(this.consumerBackoff);
+		}
+
+		CoordinatorConfig coordinatorConfig = configsBuilder.coordinatorConfig();
+		if (this.idleBetweenPolls > 0) {
+			coordinatorConfig.parentShardPollIntervalMillis(this.idleBetweenPolls);
+		}
 
 		this.scheduler = new Scheduler(configsBuilder.checkpointConfig(),
-			configsBuilder.coordinatorConfig(),
+			coordinatorConfig,
 			configsBuilder.leaseManagementConfig(),
 			configsBuilder.lifecycleConfig(),
 			configsBuilder.metricsConfig(),
 			configsBuilder.processorConfig(),
-			configsBuilder.retrievalConfig());
+			retrievalConfig);
 	}
 
 	@Override
@@ -233,10 +360,16 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 
 		private long nextCheckpointTimeInMillis;
 
+		private KinesisConsumerMetrics.ShardMetrics shardMetrics;
+
 		/** {@inheritDoc} */
 		@Override
 		public void initialize(InitializationInput initializationInput) {
 			this.shardId = initializationInput.shardId();
+			KinesisConsumerMetrics metrics = KclMessageDrivenChannelAdapter.this.metrics;
+			if (metrics != null) {
+				this.shardMetrics = metrics.forShard(KclMessageDrivenChannelAdapter.this.stream, this.shardId);
+			}
 			if (logger.isInfoEnabled()) {
 				logger.info("Initializing record processor for shard: " + this.shardId);
 			}
@@ -251,6 +384,10 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 		/** {@inheritDoc} */
 		@Override
 		public void shardEnded(ShardEndedInput shardEndedInput) {
+			KinesisConsumerMetrics metrics = KclMessageDrivenChannelAdapter.this.metrics;
+			if (metrics != null) {
+				metrics.removeShard(KclMessageDrivenChannelAdapter.this.stream, this.shardId);
+			}
 			try {
 				logger.info("Reached shard end checkpointing.");
 				shardEndedInput.checkpointer().checkpoint();
@@ -278,7 +415,11 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 		 * @param records Data records to be processed.
 		 */
 		private void processRecords(List<KinesisClientRecord> records) {
+			Predicate<KinesisClientRecord> filter = KclMessageDrivenChannelAdapter.this.recordFilter;
 			for (KinesisClientRecord record : records) {
+				if (filter != null && !filter.test(record)) {
+					continue;
+				}
 				try {
 					processSingleRecord(record);
 				}
@@ -329,13 +470,11 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 		}
 
 		private AbstractIntegrationMessageBuilder<Object> prepareMessageForRecord(KinesisClientRecord record) {
-			ByteBuffer data = record.data();
-			byte[] dataArray = new byte[data.remaining()];
-			Object payload = dataArray;
-			data.get(dataArray);
+			Object payload = record.data();
 			Message<?> messageToUse = null;
 
 			if (KclMessageDrivenChannelAdapter.this.embeddedHeadersMapper != null) {
+				payload = ByteBufferUtils.toByteArray(record.data());
 				try {
 					messageToUse = KclMessageDrivenChannelAdapter.this.embeddedHeadersMapper.toMessage((byte[]) payload);
 
@@ -346,6 +485,8 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 				}
 			}
 
+			payload = convertPayload(payload);
+
 			AbstractIntegrationMessageBuilder<Object> messageBuilder = getMessageBuilderFactory().withPayload(payload)
 					.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, record.partitionKey())
 					.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, record.sequenceNumber())
@@ -359,6 +500,31 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 			return messageBuilder;
 		}
 
+		private Object convertPayload(Object payload) {
+			if (KclMessageDrivenChannelAdapter.this.lazyPayload
+					&& (payload instanceof ByteBuffer || payload instanceof byte[])) {
+
+				return new LazyPayload(payload, this::doConvertPayload);
+			}
+			return doConvertPayload(payload);
+		}
+
+		private Object doConvertPayload(Object payload) {
+			Converter<ByteBuffer, Object> byteBufferConverter = KclMessageDrivenChannelAdapter.this.byteBufferConverter;
+			if (payload instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) payload;
+				return byteBufferConverter != null
+						? byteBufferConverter.convert(buffer.asReadOnlyBuffer())
+						: ByteBufferUtils.toByteArray(buffer);
+			}
+			else if (payload instanceof byte[] && byteBufferConverter != null) {
+				return byteBufferConverter.convert(ByteBuffer.wrap((byte[]) payload).asReadOnlyBuffer());
+			}
+			else {
+				return payload;
+			}
+		}
+
 		/**
 		 * Checkpoint with retries.
 		 *
@@ -395,9 +561,20 @@ public class KclMessageDrivenChannelAdapter extends MessageProducerSupport imple
 				logger.debug("Processing " + records.size() + " records from " + this.shardId);
 			}
 
+			long start = System.nanoTime();
+
 			// Process records and perform all exception handling.
 			processRecords(records);
 
+			if (this.shardMetrics != null) {
+				long bytes = 0;
+				for (KinesisClientRecord record : records) {
+					bytes += record.data().remaining();
+				}
+				this.shardMetrics.recordsReceived(records.size(), bytes, processRecordsInput.millisBehindLatest());
+				this.shardMetrics.dispatched(System.nanoTime() - start);
+			}
+
 			// Checkpoint once every checkpoint interval.
 			if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
 				checkpoint(processRecordsInput.checkpointer());
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The Micrometer meters for the Kinesis inbound channel adapters.
+ * <p>
+ * The meters are registered per shard with the {@code consumer.group},
+ * {@code stream} and {@code shard} tags and reused by all the consumers of the same shard.
+ * <p>
+ * Isolated in its own class to keep the Micrometer dependency optional.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class KinesisConsumerMetrics {
+
+	/**
+	 * The Micrometer class the adapters check for presence before touching this class.
+	 */
+	static final String METER_REGISTRY_CLASS_NAME = "io.micrometer.core.instrument.MeterRegistry";
+
+	static final String METRIC_PREFIX = "kinesis.consumer.";
+
+	private final MeterRegistry meterRegistry;
+
+	private final String consumerGroup;
+
+	private final Map<String, ShardMetrics> shardMetrics = new ConcurrentHashMap<>();
+
+	private KinesisConsumerMetrics(MeterRegistry meterRegistry, String consumerGroup) {
+		this.meterRegistry = meterRegistry;
+		this.consumerGroup = consumerGroup;
+	}
+
+	/**
+	 * Create the metrics for the provided {@code MeterRegistry} which is typed as {@link Object}
+	 * in the adapters to not expose the optional Micrometer dependency in their API.
+	 * @param meterRegistry the {@link MeterRegistry} to register meters in.
+	 * @param consumerGroup the consumer group for the tag.
+	 * @return the metrics.
+	 */
+	static KinesisConsumerMetrics create(Object meterRegistry, String consumerGroup) {
+		Assert.isInstanceOf(MeterRegistry.class, meterRegistry, "The 'meterRegistry' must be a MeterRegistry: ");
+		return new KinesisConsumerMetrics((MeterRegistry) meterRegistry, consumerGroup);
+	}
+
+	ShardMetrics forShard(String stream, String shard) {
+		return this.shardMetrics.computeIfAbsent(stream + ":" + shard,
+				key -> new ShardMetrics(Tags.of("consumer.group", this.consumerGroup, "stream", stream, "shard", shard)));
+	}
+
+	/**
+	 * Remove the meters of the shard which is not going to be consumed any more (e.g. closed).
+	 * @param stream the stream of the shard.
+	 * @param shard the shard to remove meters for.
+	 */
+	void removeShard(String stream, String shard) {
+		ShardMetrics metrics = this.shardMetrics.remove(stream + ":" + shard);
+		if (metrics != null) {
+			for (Meter meter : metrics.meters) {
+				this.meterRegistry.remove(meter);
+			}
+		}
+	}
+
+	/**
+	 * The meters for a single shard.
+	 */
+	final class ShardMetrics {
+
+		private final AtomicLong millisBehindLatest = new AtomicLong();
+
+		private volatile ShardCheckpointer checkpointer;
+
+		private final Counter records;
+
+		private final Counter bytes;
+
+		private final Counter throttles;
+
+		private final Counter expiredIterators;
+
+		private final Timer getRecords;
+
+		private final Timer dispatch;
+
+		private final List<Meter> meters;
+
+		ShardMetrics(Tags tags) {
+			MeterRegistry registry = KinesisConsumerMetrics.this.meterRegistry;
+
+			Gauge millisBehindLatestGauge =
+					Gauge.builder(METRIC_PREFIX + "millis.behind.latest", this.millisBehindLatest, AtomicLong::get)
+							.description("How far the shard consumer is behind the tip of the shard")
+							.baseUnit("milliseconds")
+							.tags(tags)
+							.register(registry);
+
+			Gauge checkpointLagGauge =
+					Gauge.builder(METRIC_PREFIX + "checkpoint.lag", this, ShardMetrics::checkpointLag)
+							.description("How long the oldest accepted checkpoint is waiting to be stored")
+							.baseUnit("milliseconds")
+							.tags(tags)
+							.register(registry);
+
+			this.records =
+					Counter.builder(METRIC_PREFIX + "records")
+							.description("The number of consumed records")
+							.tags(tags)
+							.register(registry);
+
+			this.bytes =
+					Counter.builder(METRIC_PREFIX + "bytes")
+							.description("The number of consumed record data bytes")
+							.baseUnit("bytes")
+							.tags(tags)
+							.register(registry);
+
+			this.throttles =
+					Counter.builder(METRIC_PREFIX + "throttles")
+							.description("The number of throttled get-records requests")
+							.tags(tags)
+							.register(registry);
+
+			this.expiredIterators =
+					Counter.builder(METRIC_PREFIX + "expired.iterators")
+							.description("The number of expired shard iterators")
+							.tags(tags)
+							.register(registry);
+
+			this.getRecords =
+					Timer.builder(METRIC_PREFIX + "get.records")
+							.description("The get-records requests latency")
+							.tags(tags)
+							.register(registry);
+
+			this.dispatch =
+					Timer.builder(METRIC_PREFIX + "dispatch")
+							.description("The time to dispatch a get-records result to the downstream flow")
+							.tags(tags)
+							.register(registry);
+
+			this.meters =
+					Arrays.asList(millisBehindLatestGauge, checkpointLagGauge, this.records, this.bytes,
+							this.throttles, this.expiredIterators, this.getRecords, this.dispatch);
+		}
+
+		void setCheckpointer(ShardCheckpointer checkpointer) {
+			this.checkpointer = checkpointer;
+		}
+
+		void recordsReceived(int records, long bytes, Long millisBehindLatest) {
+			this.records.increment(records);
+			this.bytes.increment(bytes);
+			if (millisBehindLatest != null) {
+				this.millisBehindLatest.set(millisBehindLatest);
+			}
+		}
+
+		void getRecords(long nanos) {
+			this.getRecords.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		void dispatched(long nanos) {
+			this.dispatch.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		void throttled() {
+			this.throttles.increment();
+		}
+
+		void iteratorExpired() {
+			this.expiredIterators.increment();
+		}
+
+		private double checkpointLag() {
+			ShardCheckpointer shardCheckpointer = this.checkpointer;
+			return shardCheckpointer != null ? shardCheckpointer.getCheckpointLag() : 0;
+		}
+
+	}
+
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,42 +16,61 @@
 
 package org.springframework.integration.aws.inbound.kinesis;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import org.reactivestreams.Publisher;
+
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.core.AttributeAccessor;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.integration.aws.lock.BatchLockRegistry;
 import org.springframework.integration.aws.support.AwsHeaders;
 import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.integration.mapping.InboundMessageMapper;
 import org.springframework.integration.metadata.ConcurrentMetadataStore;
 import org.springframework.integration.metadata.SimpleMetadataStore;
 import org.springframework.integration.support.AbstractIntegrationMessageBuilder;
+import org.springframework.integration.support.DefaultMessageBuilderFactory;
 import org.springframework.integration.support.ErrorMessageStrategy;
 import org.springframework.integration.support.ErrorMessageUtils;
 import org.springframework.integration.support.locks.LockRegistry;
@@ -59,24 +78,30 @@ import org.springframework.integration.support.management.IntegrationManagedReso
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
 import org.springframework.scheduling.SchedulingAwareRunnable;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+import org.springframework.util.backoff.FixedBackOff;
 
 import com.amazonaws.services.kinesis.AmazonKinesis;
-import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
-import com.amazonaws.services.kinesis.model.DescribeStreamResult;
 import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
 import com.amazonaws.services.kinesis.model.GetRecordsRequest;
 import com.amazonaws.services.kinesis.model.GetRecordsResult;
 import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.ListShardsRequest;
+import com.amazonaws.services.kinesis.model.ListShardsResult;
 import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.amazonaws.services.kinesis.model.Shard;
 import com.amazonaws.services.kinesis.model.ShardIteratorType;
-import com.amazonaws.services.kinesis.model.StreamStatus;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 
 /**
  * The {@link MessageProducerSupport} implementation for receiving data from Amazon Kinesis stream(s).
@@ -92,6 +117,16 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	private static final ThreadLocal<AttributeAccessor> attributesHolder = new ThreadLocal<>();
 
+	/**
+	 * The {@link ConsumerInvoker}s utilization to consider adding an invoker for lagging shards.
+	 */
+	private static final double SCALE_UP_UTILIZATION = 0.8;
+
+	/**
+	 * The {@link ConsumerInvoker}s utilization to consider removing an invoker.
+	 */
+	private static final double SCALE_DOWN_UTILIZATION = 0.3;
+
 	private final AmazonKinesis amazonKinesis;
 
 	private final String[] streams;
@@ -102,8 +137,20 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	private final Set<String> inResharding = new ConcurrentSkipListSet<>();
 
+	private final Map<String, ConcurrentNavigableMap<String, Shard>> streamsShards = new ConcurrentHashMap<>();
+
+	private final DelayQueue<ScheduledShardConsumer> scheduledShardConsumers = new DelayQueue<>();
+
 	private final List<ConsumerInvoker> consumerInvokers = new ArrayList<>();
 
+	private final BlockingQueue<ShardConsumer> readyShardConsumers = new LinkedBlockingQueue<>();
+
+	private final Queue<ShardConsumer> demandAwaitingConsumers = new ConcurrentLinkedQueue<>();
+
+	private final AtomicLong demand = new AtomicLong();
+
+	private final Object publisherMonitor = new Object();
+
 	private final ShardConsumerManager shardConsumerManager = new ShardConsumerManager();
 
 	private final ExecutorService shardLocksExecutor =
@@ -126,24 +173,72 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	private boolean consumerExecutorExplicitlySet;
 
+	private Executor recordsExecutor;
+
 	private int maxConcurrency;
 
-	private int concurrency;
+	private boolean threadPerShard;
+
+	private volatile int concurrency;
+
+	private int minConcurrency = 1;
+
+	private long concurrencyAdjustmentInterval;
+
+	private long concurrencyLagThreshold = 5000;
+
+	private final AtomicLong invokersBusyNanos = new AtomicLong();
+
+	private volatile long lastConcurrencyAdjustment;
+
+	private volatile ScheduledFuture<?> concurrencyAdjustmentFuture;
 
 	private KinesisShardOffset streamInitialSequence = KinesisShardOffset.latest();
 
 	private Converter<byte[], Object> converter = new DeserializingConverter();
 
+	private Converter<ByteBuffer, Object> byteBufferConverter;
+
+	private boolean lazyPayload;
+
+	private Predicate<Record> recordFilter;
+
 	private ListenerMode listenerMode = ListenerMode.record;
 
 	private CheckpointMode checkpointMode = CheckpointMode.batch;
 
 	private int recordsLimit = 10000;
 
+	private int prefetchRecordsLimit;
+
+	private long prefetchBytesLimit = 10 * 1024 * 1024;
+
+	private int maxBatchRecords;
+
+	private long maxBatchBytes;
+
+	private int crossShardBatchSize;
+
+	private long crossShardBatchTimeout = 1000;
+
+	private volatile CrossShardBatcher crossShardBatcher;
+
+	private volatile ScheduledFuture<?> crossShardBatchFuture;
+
+	private Object meterRegistry;
+
+	private KinesisConsumerMetrics metrics;
+
 	private int idleBetweenPolls = 1000;
 
+	private int getRecordsInterval = 200;
+
 	private int consumerBackoff = 1000;
 
+	private BackOff throttlingBackOff;
+
+	private BackOff idleBackOff;
+
 	private int startTimeout = 60 * 1000;
 
 	private int describeStreamBackoff = 1000;
@@ -152,16 +247,32 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	private boolean resetCheckpoints;
 
+	private long checkpointFlushInterval;
+
+	private long checkpointsInterval;
+
+	private int checkpointsRecordsThreshold;
+
 	private InboundMessageMapper<byte[]> embeddedHeadersMapper;
 
 	private LockRegistry lockRegistry;
 
-	private volatile boolean active;
+	private long shardBalancingInterval;
+
+	private boolean orderedResharding;
 
-	private volatile int consumerInvokerMaxCapacity;
+	private boolean deaggregate;
+
+	private volatile boolean active;
 
 	private volatile Future<?> shardConsumerManagerFuture;
 
+	private volatile ScheduledFuture<?> checkpointFlushFuture;
+
+	private volatile Flux<Message<?>> publisher;
+
+	private volatile FluxSink<Message<?>> sink;
+
 	public KinesisMessageDrivenChannelAdapter(AmazonKinesis amazonKinesis, String... streams) {
 		Assert.notNull(amazonKinesis, "'amazonKinesis' must not be null.");
 		Assert.notEmpty(streams, "'streams' must not be null.");
@@ -205,6 +316,26 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		this.dispatcherExecutorExplicitlySet = true;
 	}
 
+	/**
+	 * Specify an {@link Executor} to dispatch records of the same get-records batch concurrently
+	 * in the {@link ListenerMode#record}.
+	 * The batch is split by partition key and the records with the same key are sent sequentially,
+	 * in their order in the shard, so the per-key ordering is preserved.
+	 * The shard consumer waits for the whole batch to be processed before polling the next one.
+	 * The automatic checkpoints are performed only up to the highest sequence number
+	 * all the preceding records of the batch have been processed for (a contiguous watermark),
+	 * so no records are skipped after restart.
+	 * With the {@link CheckpointMode#manual} it is up to the target application
+	 * to not checkpoint over still in-flight records.
+	 * Makes sense for hot shards and slow downstream flows; by default the records
+	 * are sent one by one on the shard consumer thread.
+	 * @param recordsExecutor the {@link Executor} to dispatch records concurrently.
+	 * @since 2.2
+	 */
+	public void setRecordsExecutor(Executor recordsExecutor) {
+		this.recordsExecutor = recordsExecutor;
+	}
+
 	public void setStreamInitialSequence(KinesisShardOffset streamInitialSequence) {
 		Assert.notNull(streamInitialSequence, "'streamInitialSequence' must not be null");
 		this.streamInitialSequence = streamInitialSequence;
@@ -219,6 +350,51 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		this.converter = converter;
 	}
 
+	/**
+	 * Specify a {@link Converter} to deserialize the record's body directly from its {@link ByteBuffer}
+	 * without copying it into a {@code byte[]}.
+	 * The converter is called with a read-only view of the record data, so the raw record is not affected.
+	 * An identity converter (e.g. {@code buffer -> buffer}) can be used to emit the
+	 * read-only {@link ByteBuffer} as a payload.
+	 * Takes precedence over the {@link #setConverter(Converter)}.
+	 * When an {@link #setEmbeddedHeadersMapper embeddedHeadersMapper} is configured,
+	 * this converter is applied to the payload extracted by the mapper.
+	 * @param byteBufferConverter the {@link Converter} to use.
+	 * @since 2.2
+	 */
+	public void setByteBufferConverter(Converter<ByteBuffer, Object> byteBufferConverter) {
+		this.byteBufferConverter = byteBufferConverter;
+	}
+
+	/**
+	 * Set to true to emit the records data as a {@link LazyPayload} which is converted
+	 * with the {@link #setConverter converter} (or {@link #setByteBufferConverter byteBufferConverter})
+	 * only when its {@link LazyPayload#get()} is called.
+	 * Useful when the downstream flow discards most of the messages by their headers.
+	 * The conversion errors are not handled by the adapter in this case
+	 * and are thrown to the caller of the {@link LazyPayload#get()}.
+	 * In the {@link ListenerMode#batch} mode applies only if a converter is configured.
+	 * @param lazyPayload true to defer the payload conversion.
+	 * @since 2.2
+	 */
+	public void setLazyPayload(boolean lazyPayload) {
+		this.lazyPayload = lazyPayload;
+	}
+
+	/**
+	 * Specify a {@link Predicate} to select the records to emit, e.g. by the partition key,
+	 * {@link DeaggregatedRecord#getExplicitHashKey() explicit hash key}, approximate arrival timestamp
+	 * or data prefix.
+	 * The rejected records are dropped before any conversion, embedded headers parsing and message creation,
+	 * but their sequence numbers are checkpointed as if they have been processed.
+	 * The predicate is called with the user records when {@link #setDeaggregate deaggregate} is enabled.
+	 * @param recordFilter the {@link Predicate} to accept records.
+	 * @since 2.2
+	 */
+	public void setRecordFilter(Predicate<Record> recordFilter) {
+		this.recordFilter = recordFilter;
+	}
+
 	public void setListenerMode(ListenerMode listenerMode) {
 		Assert.notNull(listenerMode, "'listenerMode' must not be null");
 		this.listenerMode = listenerMode;
@@ -229,6 +405,29 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		this.checkpointMode = checkpointMode;
 	}
 
+	/**
+	 * The time interval in milliseconds between checkpoints for the {@link CheckpointMode#periodic}.
+	 * @param checkpointsInterval the interval between checkpoints.
+	 * @since 2.2
+	 * @see #setCheckpointsRecordsThreshold(int)
+	 */
+	public void setCheckpointsInterval(long checkpointsInterval) {
+		Assert.isTrue(checkpointsInterval >= 0, "'checkpointsInterval' must not be negative");
+		this.checkpointsInterval = checkpointsInterval;
+	}
+
+	/**
+	 * The number of records to process in the shard before the next checkpoint
+	 * for the {@link CheckpointMode#periodic}.
+	 * @param checkpointsRecordsThreshold the number of records between checkpoints.
+	 * @since 2.2
+	 * @see #setCheckpointsInterval(long)
+	 */
+	public void setCheckpointsRecordsThreshold(int checkpointsRecordsThreshold) {
+		Assert.isTrue(checkpointsRecordsThreshold >= 0, "'checkpointsRecordsThreshold' must not be negative");
+		this.checkpointsRecordsThreshold = checkpointsRecordsThreshold;
+	}
+
 	/**
 	 * The maximum record to poll per on get-records request.
 	 * Not greater then {@code 10000}.
@@ -240,10 +439,157 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		this.recordsLimit = Math.min(10000, recordsLimit);
 	}
 
+	/**
+	 * The maximum number of records to fetch ahead for each shard while the current batch
+	 * is being processed.
+	 * The next get-records request is issued with the {@code nextShardIterator}
+	 * on the {@link #setConsumerExecutor consumerExecutor} concurrently
+	 * with the records dispatching, so network latency and downstream processing overlap.
+	 * The subsequent prefetch requests for the same shard are paced by the
+	 * {@link #setIdleBetweenPolls idleBetweenPolls}.
+	 * The prefetched batches are processed strictly in the order they have been fetched.
+	 * Defaults to {@code 0} - no prefetching.
+	 * @param prefetchRecordsLimit the maximum number of records to buffer per shard.
+	 * @since 2.2
+	 * @see #setPrefetchBytesLimit(long)
+	 */
+	public void setPrefetchRecordsLimit(int prefetchRecordsLimit) {
+		Assert.isTrue(prefetchRecordsLimit >= 0, "'prefetchRecordsLimit' must not be negative");
+		this.prefetchRecordsLimit = prefetchRecordsLimit;
+	}
+
+	/**
+	 * The maximum number of record data bytes to fetch ahead for each shard.
+	 * No new get-records requests are issued for the shard until its buffer
+	 * is drained below this limit.
+	 * Since the size of the get-records result is not known in advance,
+	 * the buffer may exceed this limit by one batch.
+	 * Defaults to {@code 10 MB}.
+	 * Makes sense only when {@link #setPrefetchRecordsLimit(int)} is set.
+	 * @param prefetchBytesLimit the maximum number of bytes to buffer per shard.
+	 * @since 2.2
+	 */
+	public void setPrefetchBytesLimit(long prefetchBytesLimit) {
+		Assert.isTrue(prefetchBytesLimit > 0, "'prefetchBytesLimit' must be more than 0");
+		this.prefetchBytesLimit = prefetchBytesLimit;
+	}
+
+	/**
+	 * The maximum number of records in one message emitted in the {@link ListenerMode#batch}.
+	 * A get-records result with more records is split into several sequential messages.
+	 * Defaults to {@code 0} - no limit.
+	 * @param maxBatchRecords the maximum number of records per batch message.
+	 * @since 2.2
+	 * @see #setMaxBatchBytes(long)
+	 */
+	public void setMaxBatchRecords(int maxBatchRecords) {
+		Assert.isTrue(maxBatchRecords >= 0, "'maxBatchRecords' must not be negative");
+		this.maxBatchRecords = maxBatchRecords;
+	}
+
+	/**
+	 * The maximum number of record data bytes in one message emitted in the {@link ListenerMode#batch}.
+	 * A get-records result with bigger data is split into several sequential messages;
+	 * a single record bigger than this limit is emitted in its own message.
+	 * With the {@link CheckpointMode#batch} and {@link CheckpointMode#periodic} the checkpoint
+	 * is considered after each message, so a failure doesn't replay already processed sub-batches.
+	 * Defaults to {@code 0} - no limit.
+	 * @param maxBatchBytes the maximum number of data bytes per batch message.
+	 * @since 2.2
+	 * @see #setMaxBatchRecords(int)
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		Assert.isTrue(maxBatchBytes >= 0, "'maxBatchBytes' must not be negative");
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * The number of records from all the shards to combine into one batch message
+	 * in the {@link ListenerMode#batch}.
+	 * The records of each shard are appended in their order; the batch message is sent when
+	 * it reaches this size or the {@link #setCrossShardBatchTimeout crossShardBatchTimeout} elapses.
+	 * The payload is a list of records (or converted payloads) and the
+	 * {@link AwsHeaders#RECEIVED_STREAM}, {@link AwsHeaders#SHARD}, {@link AwsHeaders#RECEIVED_PARTITION_KEY}
+	 * and {@link AwsHeaders#RECEIVED_SEQUENCE_NUMBER} headers are lists aligned with the payload.
+	 * The checkpoints for all the contributing shards are performed only after the batch message
+	 * has been sent successfully; the {@link #setCheckpointMode checkpointMode} is not applied
+	 * and the {@link CheckpointMode#manual} is not supported.
+	 * If the sending fails (and there is no {@code errorChannel} to handle the failure),
+	 * the contributing shards are consumed again from their last checkpoints (at-least-once).
+	 * The {@link #setEmbeddedHeadersMapper embeddedHeadersMapper} is not supported in this mode.
+	 * Defaults to {@code 0} - no cross-shard batching.
+	 * @param crossShardBatchSize the number of records in a cross-shard batch.
+	 * @since 2.2
+	 */
+	public void setCrossShardBatchSize(int crossShardBatchSize) {
+		Assert.isTrue(crossShardBatchSize >= 0, "'crossShardBatchSize' must not be negative");
+		this.crossShardBatchSize = crossShardBatchSize;
+	}
+
+	/**
+	 * The maximum time in milliseconds the first record waits in a not full cross-shard batch
+	 * before the batch is sent.
+	 * Defaults to {@code 1000}.
+	 * Makes sense only when {@link #setCrossShardBatchSize(int)} is set.
+	 * @param crossShardBatchTimeout the cross-shard batch timeout.
+	 * @since 2.2
+	 */
+	public void setCrossShardBatchTimeout(long crossShardBatchTimeout) {
+		Assert.isTrue(crossShardBatchTimeout > 0, "'crossShardBatchTimeout' must be more than 0");
+		this.crossShardBatchTimeout = crossShardBatchTimeout;
+	}
+
+	/**
+	 * Specify a Micrometer {@code MeterRegistry} to register the per-shard meters:
+	 * {@code kinesis.consumer.millis.behind.latest} and {@code kinesis.consumer.checkpoint.lag} gauges,
+	 * {@code kinesis.consumer.records}, {@code kinesis.consumer.bytes}, {@code kinesis.consumer.throttles}
+	 * and {@code kinesis.consumer.expired.iterators} counters,
+	 * {@code kinesis.consumer.get.records} and {@code kinesis.consumer.dispatch} timers.
+	 * The meters are tagged with the {@code consumer.group}, {@code stream} and {@code shard}.
+	 * Typed as {@link Object} because the Micrometer dependency is optional.
+	 * @param meterRegistry the {@code io.micrometer.core.instrument.MeterRegistry} to use.
+	 * @since 2.2
+	 */
+	public void setMeterRegistry(Object meterRegistry) {
+		Assert.notNull(meterRegistry, "'meterRegistry' must not be null");
+		this.meterRegistry = meterRegistry;
+	}
+
 	public void setConsumerBackoff(int consumerBackoff) {
 		this.consumerBackoff = Math.max(1000, consumerBackoff);
 	}
 
+	/**
+	 * Specify a {@link BackOff} for the shard consumer to sleep after the get-records request
+	 * has been throttled with the {@link ProvisionedThroughputExceededException}.
+	 * Each shard consumer starts its own {@link BackOffExecution} on the first throttling
+	 * and resets it after the next successful get-records request.
+	 * For example, the {@link DecorrelatedJitterBackOff} can be used to avoid throttling storms
+	 * when many consumers share the same stream.
+	 * Defaults to the fixed {@link #setConsumerBackoff consumerBackoff}.
+	 * @param throttlingBackOff the {@link BackOff} to use on throttling.
+	 * @since 2.2
+	 */
+	public void setThrottlingBackOff(BackOff throttlingBackOff) {
+		this.throttlingBackOff = throttlingBackOff;
+	}
+
+	/**
+	 * Specify a {@link BackOff} for the shard consumer to sleep after an empty get-records result,
+	 * when the consumer has reached the tip of the shard.
+	 * Each shard consumer starts its own {@link BackOffExecution} on the first empty result
+	 * and resets it when records are received, so active shards are polled aggressively
+	 * and cold shards back off.
+	 * The consumer doesn't sleep at all if the empty result reports a positive
+	 * {@code millisBehindLatest}, meaning there are more records in the shard.
+	 * Defaults to the fixed {@link #setConsumerBackoff consumerBackoff}.
+	 * @param idleBackOff the {@link BackOff} to use on empty get-records results.
+	 * @since 2.2
+	 */
+	public void setIdleBackOff(BackOff idleBackOff) {
+		this.idleBackOff = idleBackOff;
+	}
+
 	public void setDescribeStreamBackoff(int describeStreamBackoff) {
 		this.describeStreamBackoff = Math.max(1000, describeStreamBackoff);
 	}
@@ -260,9 +606,12 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	/**
 	 * The maximum number of concurrent {@link ConsumerInvoker}s running.
-	 * The {@link ShardConsumer}s are evenly distributed between {@link ConsumerInvoker}s.
-	 * Messages from within the same shard will be processed sequentially.
-	 * In other words each shard is tied with the particular thread.
+	 * The {@link ShardConsumer}s are not tied to a particular {@link ConsumerInvoker}:
+	 * all the invokers take ready shard consumer tasks from a shared queue,
+	 * so an idle invoker always picks up the next ready shard while others are busy
+	 * with hot shards or slow downstream processing.
+	 * Messages from within the same shard are still processed sequentially,
+	 * since a shard consumer task is never executed by more than one invoker at a time.
 	 * By default the concurrency is unlimited and shard
 	 * is processed in the {@link #consumerExecutor} directly.
 	 * @param concurrency the concurrency maximum number
@@ -272,14 +621,146 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 	}
 
 	/**
-	 * The sleep interval in milliseconds used in the main loop between shards polling cycles.
-	 * Defaults to {@code 1000}l minimum {@code 250}.
-	 * @param idleBetweenPolls the interval to sleep between shards polling cycles.
+	 * The minimum number of concurrent {@link ConsumerInvoker}s when the concurrency
+	 * is adjusted at runtime.
+	 * Defaults to {@code 1}.
+	 * @param minConcurrency the minimum concurrency.
+	 * @since 2.2
+	 * @see #setConcurrencyAdjustmentInterval(long)
+	 */
+	public void setMinConcurrency(int minConcurrency) {
+		Assert.isTrue(minConcurrency > 0, "'minConcurrency' must be more than 0");
+		this.minConcurrency = minConcurrency;
+	}
+
+	/**
+	 * The interval in milliseconds to adjust the number of {@link ConsumerInvoker}s at runtime
+	 * between the {@link #setMinConcurrency minConcurrency} and the {@link #setConcurrency concurrency}.
+	 * The adapter starts with the {@code minConcurrency} invokers and every interval adds one
+	 * invoker when any shard is more than the {@link #setConcurrencyLagThreshold concurrencyLagThreshold}
+	 * behind the tip of the stream and the invokers are busy with the shard tasks for the most
+	 * of the interval; one invoker is removed when all the shards are within the threshold
+	 * and the invokers are mostly idle.
+	 * Makes sense only when the {@link #setConcurrency concurrency} is set.
+	 * Defaults to {@code 0} - the concurrency is fixed.
+	 * @param concurrencyAdjustmentInterval the interval to adjust the concurrency.
+	 * @since 2.2
+	 */
+	public void setConcurrencyAdjustmentInterval(long concurrencyAdjustmentInterval) {
+		Assert.isTrue(concurrencyAdjustmentInterval >= 0, "'concurrencyAdjustmentInterval' must not be negative");
+		this.concurrencyAdjustmentInterval = concurrencyAdjustmentInterval;
+	}
+
+	/**
+	 * The {@code millisBehindLatest} of the most lagging shard above which the concurrency
+	 * is considered for increasing.
+	 * Defaults to {@code 5000}.
+	 * @param concurrencyLagThreshold the lag threshold in milliseconds.
+	 * @since 2.2
+	 * @see #setConcurrencyAdjustmentInterval(long)
+	 */
+	public void setConcurrencyLagThreshold(long concurrencyLagThreshold) {
+		Assert.isTrue(concurrencyLagThreshold >= 0, "'concurrencyLagThreshold' must not be negative");
+		this.concurrencyLagThreshold = concurrencyLagThreshold;
+	}
+
+	/**
+	 * Run each {@link ShardConsumer} as its own long-lived task on the
+	 * {@link #setConsumerExecutor consumerExecutor} with a straight-line
+	 * fetch/process/checkpoint loop, instead of multiplexing shards via the dispatcher.
+	 * A blocking downstream flow then stalls only its own shard.
+	 * The {@link #setConcurrency concurrency} is ignored in this mode.
+	 * The {@code consumerExecutor} must be able to run a thread for every consumed shard;
+	 * with a large number of shards an executor based on lightweight (e.g. virtual) threads
+	 * is recommended, when available on the target JVM.
+	 * @param threadPerShard true to run a dedicated loop for each shard.
+	 * @since 2.2
+	 */
+	public void setThreadPerShard(boolean threadPerShard) {
+		this.threadPerShard = threadPerShard;
+	}
+
+	/**
+	 * The maximum time in milliseconds the dispatcher waits for the next due shard consumer.
+	 * The {@link ShardConsumer}s are dispatched as soon as they are ready for the next task,
+	 * so this interval only bounds how often the resharding state is re-checked when all
+	 * the shards are idle.
+	 * Defaults to {@code 1000}, minimum {@code 250}.
+	 * @param idleBetweenPolls the maximum interval to wait for due shard consumers.
 	 */
 	public void setIdleBetweenPolls(int idleBetweenPolls) {
 		this.idleBetweenPolls = Math.max(250, idleBetweenPolls);
 	}
 
+	/**
+	 * The minimum interval in milliseconds between get-records requests for the same shard,
+	 * including the prefetching ones.
+	 * A shard consumer which has more records to consume (or has just received some)
+	 * sleeps for the rest of this interval before its next get-records request,
+	 * so it doesn't exceed the limit of 5 get-records requests per second per shard
+	 * and isn't throttled with the {@link ProvisionedThroughputExceededException}.
+	 * Defaults to {@code 200}, minimum {@code 200}.
+	 * @param getRecordsInterval the minimum interval between get-records requests for a shard.
+	 * @since 2.2
+	 */
+	public void setGetRecordsInterval(int getRecordsInterval) {
+		this.getRecordsInterval = Math.max(200, getRecordsInterval);
+	}
+
+	/**
+	 * Specify an interval in milliseconds to persist checkpoints in the write-behind manner.
+	 * When set, the checkpoints (including manual ones) are only accepted in memory
+	 * and the latest one for each shard is written to the {@link #setCheckpointStore checkpointStore}
+	 * with a single conditional write per interval.
+	 * The pending checkpoints are also flushed when a shard consumer is stopped,
+	 * e.g. when the shard is closed, its lock is released or this adapter is stopped.
+	 * The trade-off is a bounded replay window of this interval in case of a crash.
+	 * Defaults to {@code 0} - checkpoints are written synchronously.
+	 * @param checkpointFlushInterval the interval to flush checkpoints.
+	 * @since 2.2
+	 * @see #getCheckpointLag(String, String)
+	 */
+	public void setCheckpointFlushInterval(long checkpointFlushInterval) {
+		Assert.isTrue(checkpointFlushInterval >= 0, "'checkpointFlushInterval' must not be negative");
+		this.checkpointFlushInterval = checkpointFlushInterval;
+	}
+
+	/**
+	 * Set to true to not start consuming child shards until their parent shards
+	 * (including the adjacent parent after a merge) are fully processed,
+	 * so the records with the same partition key are not consumed out of order after resharding.
+	 * When the consumer reaches the end of a closed shard, the checkpoint for its last record
+	 * is replaced with the shard ending sequence number; a child shard starts only when the
+	 * checkpoints of all its parents reach their ending sequence numbers.
+	 * With the {@link CheckpointMode#manual} the child shards wait until the last record
+	 * of the parent is checkpointed by the application.
+	 * Parent shards which are not returned by the stream any more (e.g. expired) are considered finished.
+	 * Makes sense only for the streams-based configuration.
+	 * Defaults to {@code false}.
+	 * @param orderedResharding true to consume parent shards before their children.
+	 * @since 2.2
+	 */
+	public void setOrderedResharding(boolean orderedResharding) {
+		this.orderedResharding = orderedResharding;
+	}
+
+	/**
+	 * Set to true to extract user records from the Kinesis records aggregated by the Kinesis Producer Library
+	 * (e.g. produced by the {@code KplMessageHandler} with aggregation enabled).
+	 * The user records are emitted as {@link DeaggregatedRecord}s sharing the sequence number
+	 * of their aggregated record; the {@link AwsHeaders#RECEIVED_SUB_SEQUENCE_NUMBER} header
+	 * is populated in the {@link ListenerMode#record}.
+	 * The sequence number of an aggregated record is checkpointed only after its last user record
+	 * is processed.
+	 * Not aggregated records are processed as is.
+	 * Defaults to {@code false}.
+	 * @param deaggregate true to de-aggregate KPL-aggregated records.
+	 * @since 2.2
+	 */
+	public void setDeaggregate(boolean deaggregate) {
+		this.deaggregate = deaggregate;
+	}
+
 	/**
 	 * Specify an {@link InboundMessageMapper} to extract message headers embedded into the record data.
 	 * @param embeddedHeadersMapper the {@link InboundMessageMapper} to use.
@@ -299,6 +780,122 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		this.lockRegistry = lockRegistry;
 	}
 
+	/**
+	 * Specify an interval in milliseconds to balance shards between the adapter instances
+	 * of the same consumer group sharing the {@link #setLockRegistry lockRegistry}
+	 * and {@link #setCheckpointStore checkpointStore}.
+	 * Each instance advertises itself with a heartbeat in the {@code checkpointStore} every interval,
+	 * computes its fair share of shards as {@code ceil(shards / live instances)},
+	 * doesn't acquire locks for more shards than that share and voluntarily stops consumers
+	 * (releasing their locks) for the shards over its share, so other instances can pick them up.
+	 * The lock is released only after the in-flight records of the stopped consumer are processed.
+	 * An instance is considered dead if it hasn't updated its heartbeat for three intervals.
+	 * Defaults to {@code 0} - no balancing: the first instance locks all the shards it can.
+	 * Makes sense only with the {@link #setLockRegistry lockRegistry}.
+	 * @param shardBalancingInterval the heartbeat and balancing interval.
+	 * @since 2.2
+	 */
+	public void setShardBalancingInterval(long shardBalancingInterval) {
+		Assert.isTrue(shardBalancingInterval >= 0, "'shardBalancingInterval' must not be negative");
+		this.shardBalancingInterval = shardBalancingInterval;
+	}
+
+	/**
+	 * Switch this adapter to the demand-driven mode and return a {@link Publisher}
+	 * of the messages produced from the consumed records.
+	 * In this mode the messages are emitted to the subscriber instead of the {@code outputChannel}
+	 * (which can be just a {@code nullChannel}) and the get-records requests are issued
+	 * only when there is downstream demand: the number of requested records is limited
+	 * by that demand (in the {@link ListenerMode#batch} one request is a whole batch).
+	 * Shard consumers without demand don't poll Kinesis at all and are resumed
+	 * as soon as the subscriber requests more.
+	 * The shard discovery, locks and checkpoints work the same way as in the regular mode:
+	 * the record is considered as processed (and can be checkpointed) when it has been emitted
+	 * to the subscriber.
+	 * The {@link #setPrefetchRecordsLimit prefetchRecordsLimit} is ignored in this mode.
+	 * Only one subscriber at a time is supported;
+	 * the {@link AwsHeaders#SHARD} header can be used to group messages per shard downstream.
+	 * When there is no subscriber, the polled records are not emitted and not checkpointed:
+	 * the shard consumers are rewound to be consumed again when a subscriber is back.
+	 * The adapter still has to be started to consume records.
+	 * If it is stopped without a subscriber, it leaves the demand-driven mode and sends
+	 * messages to the {@code outputChannel} again, unless this method is called once more.
+	 * @return the {@link Publisher} for the messages from all the consumed shards.
+	 * @since 2.2
+	 */
+	public Publisher<Message<?>> asPublisher() {
+		Flux<Message<?>> publisherToUse = this.publisher;
+		if (publisherToUse == null) {
+			synchronized (this.publisherMonitor) {
+				publisherToUse = this.publisher;
+				if (publisherToUse == null) {
+					publisherToUse =
+							Flux.create(fluxSink -> {
+								synchronized (this.publisherMonitor) {
+									if (this.sink != null) {
+										fluxSink.error(new IllegalStateException(
+												"Only one subscriber is supported for the [" + this + "]"));
+										return;
+									}
+									if (this.publisher == null) {
+										fluxSink.error(new IllegalStateException("The [" + this +
+												"] has left the demand-driven mode; call 'asPublisher()' again"));
+										return;
+									}
+									this.sink = fluxSink;
+								}
+								fluxSink.onDispose(() -> {
+									synchronized (this.publisherMonitor) {
+										if (this.sink == fluxSink) {
+											this.sink = null;
+											this.demand.set(0);
+										}
+									}
+								});
+								fluxSink.onRequest(this::addDemand);
+							}, FluxSink.OverflowStrategy.BUFFER);
+					this.publisher = publisherToUse;
+				}
+			}
+		}
+		return publisherToUse;
+	}
+
+	private boolean isDemandDriven() {
+		return this.publisher != null;
+	}
+
+	private void addDemand(long n) {
+		if (n > 0) {
+			this.demand.accumulateAndGet(n, (current, added) -> {
+				long sum = current + added;
+				return sum < 0 ? Long.MAX_VALUE : sum;
+			});
+			ShardConsumer shardConsumer;
+			while ((shardConsumer = this.demandAwaitingConsumers.poll()) != null) {
+				shardConsumer.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Take up to the provided number from the current demand.
+	 * @param max the maximum demand to reserve.
+	 * @return the reserved demand; {@code Long.MAX_VALUE} for an unbounded demand.
+	 */
+	private long reserveDemand(long max) {
+		while (true) {
+			long current = this.demand.get();
+			if (current == Long.MAX_VALUE || current <= 0) {
+				return current == Long.MAX_VALUE ? current : 0;
+			}
+			long reserved = Math.min(current, max);
+			if (this.demand.compareAndSet(current, current - reserved)) {
+				return reserved;
+			}
+		}
+	}
+
 	@Override
 	protected void onInit() {
 		super.onInit();
@@ -325,6 +922,13 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			}
 			this.lockRegistry = null;
 		}
+
+		if (this.meterRegistry != null) {
+			Assert.state(ClassUtils.isPresent(KinesisConsumerMetrics.METER_REGISTRY_CLASS_NAME,
+					getClass().getClassLoader()),
+					"The 'io.micrometer:micrometer-core' is required for the 'meterRegistry'.");
+			this.metrics = KinesisConsumerMetrics.create(this.meterRegistry, this.consumerGroup);
+		}
 	}
 
 	@Override
@@ -416,6 +1020,22 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		}
 	}
 
+	/**
+	 * Return how long in milliseconds the oldest accepted, but not yet persisted, checkpoint
+	 * for the shard waits for the flush in the write-behind mode.
+	 * @param stream the stream name.
+	 * @param shard the shard id.
+	 * @return the checkpoint lag in milliseconds, {@code 0} if all the checkpoints are persisted,
+	 * or {@code -1} if there is no consumer for the shard.
+	 * @since 2.2
+	 * @see #setCheckpointFlushInterval(long)
+	 */
+	@ManagedOperation
+	public long getCheckpointLag(String stream, String shard) {
+		ShardConsumer shardConsumer = this.shardConsumers.get(KinesisShardOffset.latest(stream, shard));
+		return shardConsumer != null ? shardConsumer.checkpointer.getCheckpointLag() : -1;
+	}
+
 	@ManagedOperation
 	public void resetCheckpoints() {
 		this.resetCheckpoints = true;
@@ -428,12 +1048,29 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 	@Override
 	protected void doStart() {
 		super.doStart();
+		Assert.state(!CheckpointMode.periodic.equals(this.checkpointMode)
+						|| this.checkpointsInterval > 0 || this.checkpointsRecordsThreshold > 0,
+				"The 'checkpointsInterval' or 'checkpointsRecordsThreshold' must be configured " +
+						"for the [CheckpointMode.periodic].");
+
 		if (ListenerMode.batch.equals(this.listenerMode) && CheckpointMode.record.equals(this.checkpointMode)) {
 			this.checkpointMode = CheckpointMode.batch;
 			logger.warn("The 'checkpointMode' is overridden from [CheckpointMode.record] to [CheckpointMode.batch] " +
 					"because it does not make sense in case of [ListenerMode.batch].");
 		}
 
+		if (this.crossShardBatchSize > 0) {
+			Assert.state(ListenerMode.batch.equals(this.listenerMode),
+					"The 'crossShardBatchSize' is supported only for the [ListenerMode.batch].");
+			Assert.state(!CheckpointMode.manual.equals(this.checkpointMode),
+					"The 'crossShardBatchSize' is not supported for the [CheckpointMode.manual].");
+			Assert.state(this.embeddedHeadersMapper == null,
+					"The 'crossShardBatchSize' is not supported with the 'embeddedHeadersMapper'.");
+			if (this.crossShardBatcher == null) {
+				this.crossShardBatcher = new CrossShardBatcher();
+			}
+		}
+
 		if (this.streams != null) {
 			populateShardsForStreams();
 		}
@@ -442,39 +1079,102 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 		this.active = true;
 
-		this.concurrency = Math.min(this.maxConcurrency, this.shardOffsets.size());
+		this.concurrency = initialConcurrency(this.shardOffsets.size());
 
 		this.dispatcherExecutor.execute(new ConsumerDispatcher());
 
 		this.shardConsumerManagerFuture = this.shardLocksExecutor.submit(this.shardConsumerManager);
+
+		if (this.checkpointFlushInterval > 0) {
+			this.checkpointFlushFuture =
+					getTaskScheduler().scheduleAtFixedRate(this::flushCheckpoints, this.checkpointFlushInterval);
+		}
+
+		CrossShardBatcher batcher = this.crossShardBatcher;
+		if (batcher != null) {
+			this.crossShardBatchFuture =
+					getTaskScheduler().scheduleWithFixedDelay(batcher::flushIfExpired,
+							Math.max(1, this.crossShardBatchTimeout / 2));
+		}
+
+		if (isConcurrencyAdjustable()) {
+			this.invokersBusyNanos.set(0);
+			this.lastConcurrencyAdjustment = System.nanoTime();
+			this.concurrencyAdjustmentFuture =
+					getTaskScheduler().scheduleWithFixedDelay(this::adjustConcurrency,
+							this.concurrencyAdjustmentInterval);
+		}
+	}
+
+	private boolean isConcurrencyAdjustable() {
+		return this.concurrencyAdjustmentInterval > 0 && this.maxConcurrency > 0 && !this.threadPerShard;
+	}
+
+	/**
+	 * Return the number of {@link ConsumerInvoker}s to start with for the provided number of shards:
+	 * there is no reason to have more invokers than shards.
+	 * @param shards the number of shards to consume.
+	 * @return the initial concurrency.
+	 */
+	private int initialConcurrency(int shards) {
+		return Math.min(isConcurrencyAdjustable()
+						? Math.min(this.minConcurrency, this.maxConcurrency)
+						: this.maxConcurrency,
+				shards);
 	}
 
-	private Collection<ShardConsumer> shardConsumerSubset(int i) {
-		List<ShardConsumer> shardConsumers = new ArrayList<>(this.shardConsumers.values());
-		if (this.concurrency == 1) {
-			return shardConsumers;
+	/**
+	 * Add or remove one {@link ConsumerInvoker} according to the lag of the most lagging shard
+	 * and the invokers utilization since the previous adjustment.
+	 */
+	private void adjustConcurrency() {
+		long now = System.nanoTime();
+		long elapsed = now - this.lastConcurrencyAdjustment;
+		this.lastConcurrencyAdjustment = now;
+		long busyNanos = this.invokersBusyNanos.getAndSet(0);
+
+		long maxMillisBehindLatest = 0;
+		for (ShardConsumer shardConsumer : this.shardConsumers.values()) {
+			maxMillisBehindLatest = Math.max(maxMillisBehindLatest, shardConsumer.millisBehindLatest);
 		}
-		else {
-			int numConsumers = shardConsumers.size();
-			if (numConsumers == this.concurrency) {
-				return Collections.singleton(shardConsumers.get(i));
+
+		int maxInvokers = Math.min(this.maxConcurrency, this.shardConsumers.size());
+
+		synchronized (this.consumerInvokers) {
+			int invokers = this.consumerInvokers.size();
+			if (!this.active || invokers == 0 || elapsed <= 0) {
+				return;
+			}
+
+			double utilization = (double) busyNanos / ((double) elapsed * invokers);
+			boolean lagging = maxMillisBehindLatest > this.concurrencyLagThreshold;
+
+			if (lagging && utilization >= SCALE_UP_UTILIZATION && invokers < maxInvokers) {
+				ConsumerInvoker consumerInvoker = new ConsumerInvoker();
+				this.consumerInvokers.add(consumerInvoker);
+				this.concurrency = invokers + 1;
+				this.consumerExecutor.execute(consumerInvoker);
+			}
+			else if (!lagging && utilization < SCALE_DOWN_UTILIZATION && invokers > this.minConcurrency) {
+				// The removed invoker exits after its current task
+				this.consumerInvokers.remove(invokers - 1);
+				this.concurrency = invokers - 1;
 			}
 			else {
-				int perInvoker = numConsumers / this.concurrency;
-				List<ShardConsumer> subset;
-				if (i == this.concurrency - 1) {
-					subset = shardConsumers.subList(i * perInvoker, numConsumers);
-				}
-				else {
-					subset = shardConsumers.subList(i * perInvoker, (i + 1) * perInvoker);
-				}
-				return subset;
+				return;
+			}
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("The concurrency of [" + this + "] is adjusted to [" + this.concurrency + "] " +
+						"for the max millisBehindLatest [" + maxMillisBehindLatest + "] " +
+						"and the invokers utilization [" + utilization + "].");
 			}
 		}
 	}
 
 	private void populateShardsForStreams() {
 		this.shardOffsets.clear();
+		this.streamsShards.clear();
 		final CountDownLatch shardsGatherLatch = new CountDownLatch(this.streams.length);
 		for (final String stream : this.streams) {
 			populateShardsForStream(stream, shardsGatherLatch);
@@ -492,94 +1192,29 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		}
 	}
 
+	/**
+	 * Discover shards of the stream with the {@code ListShards} API and register consumers for them.
+	 * Only shards after the last already known one are requested, so on resharding just new
+	 * child shards are listed instead of the whole stream.
+	 * The checkpoints for closed shards are requested concurrently to skip already consumed shards.
+	 * @param stream the stream to discover shards for.
+	 * @param shardsGatherLatch the start barrier to count down; null when resharding.
+	 */
 	private void populateShardsForStream(final String stream, final CountDownLatch shardsGatherLatch) {
 		this.dispatcherExecutor.execute(() -> {
 			try {
-				int describeStreamRetries = 0;
-				List<Shard> shardsToConsume = new ArrayList<>();
-
-				String exclusiveStartShardId = null;
-				while (true) {
-					DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest()
-							.withStreamName(stream)
-							.withExclusiveStartShardId(exclusiveStartShardId);
-
-					DescribeStreamResult describeStreamResult = null;
-					// Call DescribeStream, with backoff and retries (if we get LimitExceededException).
-					try {
-						describeStreamResult = this.amazonKinesis.describeStream(describeStreamRequest);
-					}
-					catch (Exception e) {
-						logger.info("Got an exception when describing stream [" + stream + "]. " +
-								"Backing off for [" + this.describeStreamBackoff + "] millis.", e);
-					}
-
-					if (describeStreamResult == null ||
-							!StreamStatus.ACTIVE.toString().equals(describeStreamResult.getStreamDescription().getStreamStatus())) {
-
-						if (describeStreamRetries++ > this.describeStreamRetries) {
-							ResourceNotFoundException resourceNotFoundException =
-									new ResourceNotFoundException("The stream [" + stream +
-											"] isn't ACTIVE or doesn't exist.");
-							resourceNotFoundException.setServiceName("Kinesis");
-							throw resourceNotFoundException;
-						}
-						try {
-							Thread.sleep(this.describeStreamBackoff);
-							continue;
-						}
-						catch (InterruptedException e) {
-							Thread.interrupted();
-							throw new IllegalStateException("The [describeStream] thread for the stream ["
-									+ stream + "] has been interrupted.", e);
-						}
-					}
-
-					List<Shard> shards = describeStreamResult.getStreamDescription().getShards();
-
-					try {
-						for (Shard shard : shards) {
-							String key = buildCheckpointKeyForShard(stream, shard.getShardId());
-							String endingSequenceNumber = shard.getSequenceNumberRange().getEndingSequenceNumber();
-							if (endingSequenceNumber != null) {
-								String checkpoint = this.checkpointStore.get(key);
-
-								boolean skipClosedShard = checkpoint != null &&
-										new BigInteger(endingSequenceNumber)
-												.compareTo(new BigInteger(checkpoint)) <= 0;
-
-								if (logger.isTraceEnabled()) {
-									logger.trace("The shard [" + shard + "] in stream [" + stream +
-											"] is closed CLOSED with endingSequenceNumber [" + endingSequenceNumber +
-											"].\nThe last processed checkpoint is [" + checkpoint + "]." +
-											(skipClosedShard ? "\nThe shard will be skipped." : ""));
-								}
-
-								if (skipClosedShard) {
-									// Skip CLOSED shard which has been read before according a checkpoint
-									continue;
-								}
-							}
+				ConcurrentNavigableMap<String, Shard> knownShards =
+						this.streamsShards.computeIfAbsent(stream, key -> new ConcurrentSkipListMap<>());
 
-							shardsToConsume.add(shard);
-						}
-					}
-					catch (Exception e) {
-						logger.info("Got an exception when processing shards in stream [" + stream + "].\n" +
-								"Retrying...", e);
-						continue;
-					}
+				String exclusiveStartShardId = knownShards.isEmpty() ? null : knownShards.lastKey();
 
-					if (describeStreamResult.getStreamDescription().getHasMoreShards()) {
-						exclusiveStartShardId = shards.get(shards.size() - 1).getShardId();
-						describeStreamRetries = 0;
-					}
-					else {
-						break;
-					}
-				}
+				List<Shard> newShards =
+						listShards(stream, exclusiveStartShardId)
+								.stream()
+								.filter(shard -> knownShards.putIfAbsent(shard.getShardId(), shard) == null)
+								.collect(Collectors.toList());
 
-				for (Shard shard : shardsToConsume) {
+				for (Shard shard : skipConsumedClosedShards(stream, newShards)) {
 					KinesisShardOffset shardOffset = new KinesisShardOffset(this.streamInitialSequence);
 					shardOffset.setShard(shard.getShardId());
 					shardOffset.setStream(stream);
@@ -601,45 +1236,221 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		});
 	}
 
-	private void populateConsumers() {
-		synchronized (this.shardOffsets) {
-			for (KinesisShardOffset shardOffset : this.shardOffsets) {
-				this.shardConsumerManager.addShardToConsume(shardOffset);
+	private List<Shard> listShards(String stream, String exclusiveStartShardId) {
+		List<Shard> shards = new ArrayList<>();
+		int describeStreamRetries = 0;
+		String nextToken = null;
+		while (true) {
+			ListShardsRequest listShardsRequest = new ListShardsRequest();
+			if (nextToken != null) {
+				listShardsRequest.setNextToken(nextToken);
+			}
+			else {
+				listShardsRequest.withStreamName(stream)
+						.withExclusiveStartShardId(exclusiveStartShardId);
 			}
-		}
 
-		this.resetCheckpoints = false;
-	}
+			ListShardsResult listShardsResult = null;
+			// Call ListShards, with backoff and retries (if we get LimitExceededException or ResourceInUseException).
+			try {
+				listShardsResult = this.amazonKinesis.listShards(listShardsRequest);
+			}
+			catch (Exception e) {
+				logger.info("Got an exception when listing shards for stream [" + stream + "]. " +
+						"Backing off for [" + this.describeStreamBackoff + "] millis.", e);
+			}
+
+			if (listShardsResult == null) {
+				if (describeStreamRetries++ > this.describeStreamRetries) {
+					ResourceNotFoundException resourceNotFoundException =
+							new ResourceNotFoundException("The stream [" + stream +
+									"] isn't ACTIVE or doesn't exist.");
+					resourceNotFoundException.setServiceName("Kinesis");
+					throw resourceNotFoundException;
+				}
+				try {
+					Thread.sleep(this.describeStreamBackoff);
+					continue;
+				}
+				catch (InterruptedException e) {
+					Thread.interrupted();
+					throw new IllegalStateException("The [listShards] thread for the stream ["
+							+ stream + "] has been interrupted.", e);
+				}
+			}
+
+			shards.addAll(listShardsResult.getShards());
+			nextToken = listShardsResult.getNextToken();
+			describeStreamRetries = 0;
+
+			if (nextToken == null) {
+				return shards;
+			}
+		}
+	}
+
+	/**
+	 * Filter out closed shards which have been read before according to their checkpoints.
+	 * The checkpoints are requested concurrently on the {@link #dispatcherExecutor};
+	 * a lookup which hasn't been started by the executor yet is performed on the current thread.
+	 * If a checkpoint cannot be obtained, the shard is consumed: its consumer is going
+	 * to resume from the checkpoint anyway.
+	 * @param stream the stream of shards.
+	 * @param shards the shards to check.
+	 * @return the shards to consume.
+	 */
+	private List<Shard> skipConsumedClosedShards(String stream, List<Shard> shards) {
+		Map<String, FutureTask<String>> checkpoints = new HashMap<>();
+		for (Shard shard : shards) {
+			if (shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+				String key = buildCheckpointKeyForShard(stream, shard.getShardId());
+				FutureTask<String> checkpointTask = new FutureTask<>(() -> this.checkpointStore.get(key));
+				checkpoints.put(shard.getShardId(), checkpointTask);
+				try {
+					this.dispatcherExecutor.execute(checkpointTask);
+				}
+				catch (RejectedExecutionException e) {
+					// Will be performed on the current thread
+				}
+			}
+		}
+
+		List<Shard> shardsToConsume = new ArrayList<>();
+		for (Shard shard : shards) {
+			FutureTask<String> checkpointTask = checkpoints.get(shard.getShardId());
+			if (checkpointTask != null) {
+				String endingSequenceNumber = shard.getSequenceNumberRange().getEndingSequenceNumber();
+				try {
+					// No-op if already running or done
+					checkpointTask.run();
+					String checkpoint = checkpointTask.get();
+
+					boolean skipClosedShard = checkpoint != null &&
+							!SequenceNumbers.isBefore(checkpoint, endingSequenceNumber);
+
+					if (logger.isTraceEnabled()) {
+						logger.trace("The shard [" + shard + "] in stream [" + stream +
+								"] is closed CLOSED with endingSequenceNumber [" + endingSequenceNumber +
+								"].\nThe last processed checkpoint is [" + checkpoint + "]." +
+								(skipClosedShard ? "\nThe shard will be skipped." : ""));
+					}
+
+					if (skipClosedShard) {
+						// Skip CLOSED shard which has been read before according a checkpoint
+						continue;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("The shards discovery for the stream ["
+							+ stream + "] has been interrupted.", e);
+				}
+				catch (Exception e) {
+					logger.info("Got an exception when checking checkpoint for the shard [" + shard +
+							"] in stream [" + stream + "].", e);
+				}
+			}
+
+			shardsToConsume.add(shard);
+		}
+
+		return shardsToConsume;
+	}
+
+	/**
+	 * Check if the shard has been fully processed according to its checkpoint.
+	 * @param stream the stream of the shard.
+	 * @param shardId the shard to check.
+	 * @return true if the checkpoint of the closed shard has reached its ending sequence number
+	 * or the shard is not known for the stream.
+	 */
+	private boolean isShardFinished(String stream, String shardId) {
+		ConcurrentNavigableMap<String, Shard> knownShards = this.streamsShards.get(stream);
+		if (knownShards == null || !knownShards.containsKey(shardId)) {
+			return true;
+		}
+
+		String endingSequenceNumber = obtainEndingSequenceNumber(stream, shardId);
+		if (endingSequenceNumber == null) {
+			// Still OPEN
+			return false;
+		}
+
+		String checkpoint = this.checkpointStore.get(buildCheckpointKeyForShard(stream, shardId));
+		return checkpoint != null && !SequenceNumbers.isBefore(checkpoint, endingSequenceNumber);
+	}
+
+	/**
+	 * Return the ending sequence number of the shard from the known shards cache
+	 * or request it from Kinesis if the shard has been cached as OPEN.
+	 * A single shard is listed starting after the previous known shard.
+	 * @param stream the stream of the shard.
+	 * @param shardId the shard to obtain ending sequence number.
+	 * @return the ending sequence number or null if the shard is still OPEN or unknown.
+	 */
+	private String obtainEndingSequenceNumber(String stream, String shardId) {
+		ConcurrentNavigableMap<String, Shard> knownShards = this.streamsShards.get(stream);
+		if (knownShards == null) {
+			return null;
+		}
+
+		Shard shard = knownShards.get(shardId);
+		String endingSequenceNumber =
+				shard != null
+						? shard.getSequenceNumberRange().getEndingSequenceNumber()
+						: null;
+
+		if (endingSequenceNumber == null) {
+			try {
+				ListShardsRequest listShardsRequest =
+						new ListShardsRequest()
+								.withStreamName(stream)
+								.withExclusiveStartShardId(knownShards.lowerKey(shardId))
+								.withMaxResults(1);
+
+				List<Shard> shards = this.amazonKinesis.listShards(listShardsRequest).getShards();
+				if (!shards.isEmpty() && shardId.equals(shards.get(0).getShardId())) {
+					shard = shards.get(0);
+					knownShards.put(shardId, shard);
+					endingSequenceNumber = shard.getSequenceNumberRange().getEndingSequenceNumber();
+				}
+			}
+			catch (Exception e) {
+				logger.info("Got an exception when listing shard [" + shardId + "] for stream [" + stream + "].", e);
+			}
+		}
+
+		return endingSequenceNumber;
+	}
+
+	private void populateConsumers() {
+		synchronized (this.shardOffsets) {
+			for (KinesisShardOffset shardOffset : this.shardOffsets) {
+				this.shardConsumerManager.addShardToConsume(shardOffset);
+			}
+		}
+
+		this.resetCheckpoints = false;
+	}
 
 	private void populateConsumer(KinesisShardOffset shardOffset) {
 		shardOffset.setReset(this.resetCheckpoints);
 		ShardConsumer shardConsumer = new ShardConsumer(shardOffset);
+		this.shardConsumers.put(shardOffset, shardConsumer);
 
-		if (this.active) {
+		if (this.active && this.maxConcurrency > 0 && !this.threadPerShard) {
 			synchronized (this.consumerInvokers) {
-				if (this.consumerInvokers.size() < this.maxConcurrency) {
-					ConsumerInvoker consumerInvoker = new ConsumerInvoker(Collections.singleton(shardConsumer));
+				// The concurrency is clamped to the number of shards on start: it might grow after resharding
+				this.concurrency = Math.max(this.concurrency, initialConcurrency(this.shardConsumers.size()));
+				if (this.consumerInvokers.size() < this.concurrency) {
+					ConsumerInvoker consumerInvoker = new ConsumerInvoker();
 					this.consumerInvokers.add(consumerInvoker);
 					this.consumerExecutor.execute(consumerInvoker);
 				}
-				else {
-					for (ConsumerInvoker consumerInvoker : this.consumerInvokers) {
-						if (consumerInvoker.consumers.size() < this.consumerInvokerMaxCapacity) {
-							consumerInvoker.addConsumer(shardConsumer);
-							return;
-						}
-					}
-
-					if (this.concurrency != 0) {
-						ConsumerInvoker firstConsumerInvoker = this.consumerInvokers.get(0);
-						firstConsumerInvoker.addConsumer(shardConsumer);
-						this.consumerInvokerMaxCapacity = firstConsumerInvoker.consumers.size();
-					}
-				}
 			}
 		}
 
-		this.shardConsumers.put(shardOffset, shardConsumer);
+		shardConsumer.schedule();
 	}
 
 	private String buildCheckpointKeyForShard(String stream, String shardId) {
@@ -648,14 +1459,50 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	@Override
 	protected void doStop() {
-		for (ConsumerInvoker consumerInvoker : this.consumerInvokers) {
-			consumerInvoker.notifyBarrier();
+		synchronized (this.consumerInvokers) {
+			this.consumerInvokers.clear();
 		}
 		super.doStop();
 		stopConsumers();
 
 		this.shardConsumerManagerFuture.cancel(true);
+		if (this.checkpointFlushFuture != null) {
+			this.checkpointFlushFuture.cancel(false);
+			this.checkpointFlushFuture = null;
+		}
+		if (this.concurrencyAdjustmentFuture != null) {
+			this.concurrencyAdjustmentFuture.cancel(false);
+			this.concurrencyAdjustmentFuture = null;
+		}
+		if (this.crossShardBatchFuture != null) {
+			this.crossShardBatchFuture.cancel(false);
+			this.crossShardBatchFuture = null;
+		}
+		if (this.crossShardBatcher != null) {
+			// Don't leave consumed records without sending and checkpoints
+			this.crossShardBatcher.flush();
+		}
 		this.active = false;
+		this.scheduledShardConsumers.clear();
+		this.demandAwaitingConsumers.clear();
+		this.readyShardConsumers.clear();
+		synchronized (this.publisherMonitor) {
+			if (this.sink == null) {
+				// The subscriber has gone: the next start is in the regular 'outputChannel' mode
+				this.publisher = null;
+			}
+		}
+	}
+
+	private void flushCheckpoints() {
+		for (ShardConsumer shardConsumer : this.shardConsumers.values()) {
+			try {
+				shardConsumer.checkpointer.flush();
+			}
+			catch (Exception e) {
+				logger.error("Error during flushing checkpoint for: " + shardConsumer, e);
+			}
+		}
 	}
 
 	private void stopConsumers() {
@@ -690,6 +1537,14 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 		}
 	}
 
+	private static long recordsBytes(List<Record> records) {
+		long bytes = 0;
+		for (Record record : records) {
+			bytes += record.getData().remaining();
+		}
+		return bytes;
+	}
+
 	@Override
 	public String toString() {
 		return "KinesisMessageDrivenChannelAdapter{" +
@@ -717,33 +1572,16 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 					}
 				}
 
-				for (Iterator<ShardConsumer> iterator =
-						KinesisMessageDrivenChannelAdapter.this.shardConsumers.values().iterator();
-						iterator.hasNext(); ) {
+				try {
+					ScheduledShardConsumer scheduledShardConsumer =
+							KinesisMessageDrivenChannelAdapter.this.scheduledShardConsumers
+									.poll(KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls, TimeUnit.MILLISECONDS);
 
-					ShardConsumer shardConsumer = iterator.next();
-					shardConsumer.execute();
-					if (ConsumerState.STOP == shardConsumer.state) {
-						iterator.remove();
-						if (KinesisMessageDrivenChannelAdapter.this.streams != null
-								&& shardConsumer.shardIterator == null) {
-
-							// Shard is CLOSED and we are capable for resharding
-							KinesisShardOffset shardOffset = shardConsumer.shardOffset;
-							String stream = shardOffset.getStream();
-							if (KinesisMessageDrivenChannelAdapter.this.inResharding.add(stream)) {
-								this.inReshardingProcess.remove(stream);
-								synchronized (KinesisMessageDrivenChannelAdapter.this.shardOffsets) {
-									KinesisMessageDrivenChannelAdapter.this.shardOffsets.remove(shardOffset);
-								}
-							}
-						}
+					while (scheduledShardConsumer != null) {
+						dispatch(scheduledShardConsumer.shardConsumer);
+						scheduledShardConsumer = KinesisMessageDrivenChannelAdapter.this.scheduledShardConsumers.poll();
 					}
 				}
-
-				try {
-					Thread.sleep(KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls);
-				}
 				catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
 					throw new IllegalStateException("ConsumerDispatcher Thread [" + this + "] has been interrupted", e);
@@ -751,6 +1589,31 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			}
 		}
 
+		private void dispatch(ShardConsumer shardConsumer) {
+			shardConsumer.scheduled.set(false);
+			shardConsumer.execute();
+			if (ConsumerState.STOP == shardConsumer.state) {
+				KinesisShardOffset shardOffset = shardConsumer.shardOffset;
+				// The consumer might be already removed when stopped externally
+				if (KinesisMessageDrivenChannelAdapter.this.shardConsumers.remove(shardOffset, shardConsumer)
+						&& KinesisMessageDrivenChannelAdapter.this.streams != null
+						&& shardConsumer.shardIterator == null) {
+
+					// Shard is CLOSED and we are capable for resharding
+					String stream = shardOffset.getStream();
+					if (KinesisMessageDrivenChannelAdapter.this.metrics != null) {
+						KinesisMessageDrivenChannelAdapter.this.metrics.removeShard(stream, shardOffset.getShard());
+					}
+					if (KinesisMessageDrivenChannelAdapter.this.inResharding.add(stream)) {
+						this.inReshardingProcess.remove(stream);
+						synchronized (KinesisMessageDrivenChannelAdapter.this.shardOffsets) {
+							KinesisMessageDrivenChannelAdapter.this.shardOffsets.remove(shardOffset);
+						}
+					}
+				}
+			}
+		}
+
 		@Override
 		public boolean isLongLived() {
 			return true;
@@ -764,11 +1627,44 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 		private final ShardCheckpointer checkpointer;
 
+		private final KinesisConsumerMetrics.ShardMetrics shardMetrics;
+
+		/**
+		 * The headers which are the same for all the messages from this shard.
+		 */
+		private final Map<String, Object> shardHeaders = new HashMap<>();
+
 		private final Runnable processTask = processTask();
 
 		private final String key;
 
-		private Runnable notifier;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		private final AtomicBoolean looping = new AtomicBoolean();
+
+		private final BlockingQueue<GetRecordsResult> prefetchedResults = new LinkedBlockingQueue<>();
+
+		private final AtomicInteger prefetchedRecords = new AtomicInteger();
+
+		private final AtomicLong prefetchedBytes = new AtomicLong();
+
+		private volatile CompletableFuture<Void> prefetchFuture;
+
+		/**
+		 * The shard iterator to continue prefetching from; the {@link #shardIterator}
+		 * is advanced only when a prefetched result is taken for processing.
+		 */
+		private volatile String prefetchShardIterator;
+
+		private BackOffExecution throttlingBackOffExecution;
+
+		private BackOffExecution idleBackOffExecution;
+
+		private int recordsToCheckpoint;
+
+		private String sequenceToCheckpoint;
+
+		private long nextCheckpointTime;
 
 		private volatile ConsumerState state = ConsumerState.NEW;
 
@@ -778,23 +1674,50 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 		private volatile long sleepUntil;
 
+		private volatile long lastGetRecordsTime;
+
+		private volatile long millisBehindLatest;
+
+		/**
+		 * The sequence number to consume the shard again from when there is no checkpoint;
+		 * not null until a new shard iterator is obtained after the not delivered records.
+		 */
+		private volatile String rewindSequenceNumber;
+
+		private boolean parentShardsFinished;
+
 		ShardConsumer(KinesisShardOffset shardOffset) {
 			this.shardOffset = new KinesisShardOffset(shardOffset);
 			this.key = buildCheckpointKeyForShard(shardOffset.getStream(), shardOffset.getShard());
-			this.checkpointer = new ShardCheckpointer(KinesisMessageDrivenChannelAdapter.this.checkpointStore, this.key);
-		}
-
-		void setNotifier(Runnable notifier) {
-			this.notifier = notifier;
+			this.checkpointer = new ShardCheckpointer(KinesisMessageDrivenChannelAdapter.this.checkpointStore, this.key,
+					KinesisMessageDrivenChannelAdapter.this.checkpointFlushInterval > 0);
+			this.shardHeaders.put(AwsHeaders.RECEIVED_STREAM, shardOffset.getStream());
+			this.shardHeaders.put(AwsHeaders.SHARD, shardOffset.getShard());
+			if (CheckpointMode.manual.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+				this.shardHeaders.put(AwsHeaders.CHECKPOINTER, this.checkpointer);
+			}
+			KinesisConsumerMetrics metrics = KinesisMessageDrivenChannelAdapter.this.metrics;
+			if (metrics != null) {
+				this.shardMetrics = metrics.forShard(shardOffset.getStream(), shardOffset.getShard());
+				this.shardMetrics.setCheckpointer(this.checkpointer);
+			}
+			else {
+				this.shardMetrics = null;
+			}
 		}
 
 		void stop() {
 			this.state = ConsumerState.STOP;
-			if (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
-				KinesisMessageDrivenChannelAdapter.this.shardConsumerManager.unlock(this.key);
+			if (KinesisMessageDrivenChannelAdapter.this.demandAwaitingConsumers.remove(this)) {
+				// Let the dispatcher to process the stop of the parked consumer
+				schedule();
 			}
-			if (this.notifier != null) {
-				this.notifier.run();
+			clearPrefetchedResults();
+			// The consumer might be stopped while idle: don't lose the periodic checkpoint
+			checkpointPendingRecords();
+			flushCheckpoint();
+			if (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
+				KinesisMessageDrivenChannelAdapter.this.shardConsumerManager.unlock(this);
 			}
 		}
 
@@ -803,17 +1726,170 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			this.checkpointer.close();
 		}
 
+		/**
+		 * Consume the shard again from the last checkpoint or, if there is no checkpoint yet,
+		 * from the provided sequence number, because the records have not been delivered.
+		 * The records polled with the current shard iterator are discarded meanwhile.
+		 * @param sequenceNumber the sequence number of the first not delivered record.
+		 */
+		void rewind(String sequenceNumber) {
+			if (this.rewindSequenceNumber == null) {
+				this.rewindSequenceNumber = sequenceNumber;
+			}
+		}
+
+		boolean isRewinding() {
+			return this.rewindSequenceNumber != null;
+		}
+
+		private void flushCheckpoint() {
+			try {
+				this.checkpointer.flush();
+			}
+			catch (Exception e) {
+				logger.error("Error during flushing checkpoint for: " + this, e);
+			}
+		}
+
+		/**
+		 * Put this consumer into the dispatcher queue to be executed
+		 * not earlier than {@link #sleepUntil}.
+		 * A no-op if the consumer is already scheduled.
+		 */
+		void schedule() {
+			if (this.scheduled.compareAndSet(false, true)) {
+				if (KinesisMessageDrivenChannelAdapter.this.threadPerShard) {
+					startLoopIfNecessary();
+				}
+				else {
+					KinesisMessageDrivenChannelAdapter.this.scheduledShardConsumers.add(new ScheduledShardConsumer(this));
+				}
+			}
+		}
+
+		private void startLoopIfNecessary() {
+			if (this.looping.compareAndSet(false, true)) {
+				KinesisMessageDrivenChannelAdapter.this.consumerExecutor.execute(this::loop);
+			}
+		}
+
+		/**
+		 * The straight-line consuming loop for the {@link #setThreadPerShard threadPerShard} mode:
+		 * sleep if necessary, perform the next task and repeat while the task schedules the next one.
+		 * A stopped consumer is handed over to the dispatcher for possible resharding.
+		 */
+		private void loop() {
+			try {
+				while (KinesisMessageDrivenChannelAdapter.this.active && this.scheduled.getAndSet(false)) {
+					if (ConsumerState.STOP == this.state) {
+						this.sleepUntil = 0;
+						this.scheduled.set(true);
+						KinesisMessageDrivenChannelAdapter.this.scheduledShardConsumers
+								.add(new ScheduledShardConsumer(this));
+						break;
+					}
+
+					long sleep = this.sleepUntil - System.currentTimeMillis();
+					if (sleep > 0) {
+						// Wake up periodically to react to the stop
+						Thread.sleep(Math.min(sleep, KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls));
+						this.scheduled.set(true);
+						continue;
+					}
+
+					execute();
+					Runnable task = this.task;
+					if (task != null) {
+						try {
+							task.run();
+						}
+						catch (Exception e) {
+							logger.info("Got an exception " + e + " during [" + this + "] task invocation.\n" +
+									"Process will be retried on the next iteration.");
+						}
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.info("The [" + this + "] loop has been interrupted.");
+			}
+			finally {
+				this.looping.set(false);
+				if (KinesisMessageDrivenChannelAdapter.this.active && this.scheduled.get()
+						&& ConsumerState.STOP != this.state) {
+					// Scheduled concurrently with the loop exit
+					startLoopIfNecessary();
+				}
+			}
+		}
+
+		/**
+		 * Check if the parent shards of this consumer's shard are fully processed
+		 * in the {@link #setOrderedResharding orderedResharding} mode.
+		 * @return true if this shard can be consumed.
+		 */
+		private boolean areParentShardsFinished() {
+			if (this.parentShardsFinished || !KinesisMessageDrivenChannelAdapter.this.orderedResharding) {
+				return true;
+			}
+
+			String stream = this.shardOffset.getStream();
+			ConcurrentNavigableMap<String, Shard> knownShards =
+					KinesisMessageDrivenChannelAdapter.this.streamsShards.get(stream);
+			Shard shard = knownShards != null ? knownShards.get(this.shardOffset.getShard()) : null;
+			if (shard != null) {
+				for (String parentShardId : new String[] { shard.getParentShardId(), shard.getAdjacentParentShardId() }) {
+					if (parentShardId != null && !isShardFinished(stream, parentShardId)) {
+						return false;
+					}
+				}
+			}
+
+			this.parentShardsFinished = true;
+			return true;
+		}
+
+		/**
+		 * Park this consumer until downstream demand arrives in the demand-driven mode.
+		 * @return true if the consumer has been parked.
+		 * @see #asPublisher()
+		 */
+		private boolean awaitDemand() {
+			if (!isDemandDriven() || KinesisMessageDrivenChannelAdapter.this.demand.get() > 0) {
+				return false;
+			}
+			KinesisMessageDrivenChannelAdapter.this.demandAwaitingConsumers.add(this);
+			// Re-check to not miss the demand arrived concurrently
+			return KinesisMessageDrivenChannelAdapter.this.demand.get() <= 0
+					|| !KinesisMessageDrivenChannelAdapter.this.demandAwaitingConsumers.remove(this);
+		}
+
 		void execute() {
 			if (this.task == null) {
+				String rewindTo = this.rewindSequenceNumber;
+				if (rewindTo != null && ConsumerState.STOP != this.state) {
+					this.shardOffset.setSequenceNumber(rewindTo);
+					this.shardOffset.setIteratorType(ShardIteratorType.AT_SEQUENCE_NUMBER);
+					this.state = ConsumerState.EXPIRED;
+				}
+
 				switch (this.state) {
 
 					case NEW:
 					case EXPIRED:
 						this.task = () -> {
 							try {
+								if (!areParentShardsFinished()) {
+									if (logger.isDebugEnabled()) {
+										logger.debug("The [" + this + "] waits for its parent shards to be finished.");
+									}
+									return;
+								}
 								if (logger.isInfoEnabled() && this.state == ConsumerState.NEW) {
 									logger.info("The [" + this + "] has been started.");
 								}
+								clearPrefetchedResults();
 								if (this.shardOffset.isReset()) {
 									this.checkpointer.remove();
 								}
@@ -833,22 +1909,36 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 								if (ConsumerState.STOP != this.state) {
 									this.state = ConsumerState.CONSUME;
 								}
+								this.rewindSequenceNumber = null;
 							}
 							finally {
+								if (ConsumerState.NEW == this.state || ConsumerState.EXPIRED == this.state) {
+									// Failed to obtain a shard iterator - retry later
+									this.sleepUntil = System.currentTimeMillis() +
+											KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls;
+								}
 								this.task = null;
+								schedule();
 							}
 						};
 						break;
 
 					case CONSUME:
-						this.task = this.processTask;
+						if (!awaitDemand()) {
+							this.task = this.processTask;
+						}
 						break;
 
 					case SLEEP:
 						if (System.currentTimeMillis() >= this.sleepUntil) {
 							this.state = ConsumerState.CONSUME;
+							if (!awaitDemand()) {
+								this.task = this.processTask;
+							}
+						}
+						else {
+							schedule();
 						}
-						this.task = null;
 						break;
 
 					case STOP:
@@ -868,181 +1958,718 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 						break;
 				}
 
-				if (this.task != null) {
-					if (this.notifier != null) {
-						this.notifier.run();
-					}
+				if (this.task != null && !KinesisMessageDrivenChannelAdapter.this.threadPerShard) {
 					if (KinesisMessageDrivenChannelAdapter.this.concurrency == 0) {
 						KinesisMessageDrivenChannelAdapter.this.consumerExecutor.execute(this.task);
 					}
+					else {
+						KinesisMessageDrivenChannelAdapter.this.readyShardConsumers.add(this);
+					}
 				}
 			}
 		}
 
 		private Runnable processTask() {
 			return () -> {
-				GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
-				getRecordsRequest.setShardIterator(this.shardIterator);
-				getRecordsRequest.setLimit(KinesisMessageDrivenChannelAdapter.this.recordsLimit);
-
 				GetRecordsResult result = null;
 
 				try {
-					result = getRecords(getRecordsRequest);
+					result = pollPrefetchedResult();
+					if (result != null) {
+						this.shardIterator = result.getNextShardIterator();
+					}
+					else {
+						result = fetchRecords();
+					}
+
 					if (result != null) {
 						List<Record> records = result.getRecords();
 
+						if (result.getMillisBehindLatest() != null) {
+							this.millisBehindLatest = result.getMillisBehindLatest();
+						}
+
+						if (this.shardMetrics != null) {
+							this.shardMetrics.recordsReceived(records.size(), recordsBytes(records),
+									result.getMillisBehindLatest());
+						}
+
 						if (!records.isEmpty()) {
+							this.idleBackOffExecution = null;
+							prefetchIfNecessary();
+							long start = System.nanoTime();
 							processRecords(records);
+							if (this.shardMetrics != null) {
+								this.shardMetrics.dispatched(System.nanoTime() - start);
+							}
 						}
 					}
 				}
+				catch (NoSubscriberException e) {
+					if (logger.isInfoEnabled()) {
+						logger.info("No subscriber for the records of [" + this + "]. " +
+								"They are going to be consumed again from the last checkpoint.");
+					}
+					rewind(result.getRecords().get(0).getSequenceNumber());
+				}
 				finally {
 					attributesHolder.remove();
-					if (result != null) {
-						this.shardIterator = result.getNextShardIterator();
+					if (result != null && !isRewinding()) {
+						if (result.getNextShardIterator() == null || ConsumerState.STOP == this.state) {
+							// No more records from this consumer: don't leave processed records
+							// without a checkpoint in the periodic mode
+							checkpointPendingRecords();
+						}
+						else if (result.getRecords().isEmpty()
+								&& CheckpointMode.periodic.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+							// The time interval might be reached on an idle shard
+							checkpointPeriodically(null, 0);
+						}
 
-						if (this.shardIterator == null) {
+						if (result.getNextShardIterator() == null) {
 							// Shard is closed: nothing to consume any more.
 							// Resharding is possible.
+							if (KinesisMessageDrivenChannelAdapter.this.orderedResharding) {
+								this.checkpointer.shardEnded(
+										obtainEndingSequenceNumber(this.shardOffset.getStream(),
+												this.shardOffset.getShard()));
+							}
 							stop();
 						}
+						else if (ConsumerState.STOP == this.state) {
+							// Checkpoints might be accepted after stopping during records processing
+							flushCheckpoint();
+						}
 
 						if (ConsumerState.STOP != this.state && result.getRecords().isEmpty()) {
-							if (logger.isDebugEnabled()) {
-								logger.debug("No records for [" + this +
-										"] on sequenceNumber [" +
-										this.checkpointer.getLastCheckpointValue() +
-										"]. Suspend consuming for [" +
-										KinesisMessageDrivenChannelAdapter.this.consumerBackoff + "] milliseconds.");
+							Long millisBehindLatest = result.getMillisBehindLatest();
+							if (millisBehindLatest != null && millisBehindLatest > 0) {
+								if (logger.isTraceEnabled()) {
+									logger.trace("No records for [" + this + "], but it is [" + millisBehindLatest +
+											"] milliseconds behind the tip of the shard. Continue consuming.");
+								}
+							}
+							else {
+								if (this.idleBackOffExecution == null) {
+									this.idleBackOffExecution =
+											startBackOff(KinesisMessageDrivenChannelAdapter.this.idleBackOff);
+								}
+								long backOff = nextBackOff(this.idleBackOffExecution);
+								if (logger.isDebugEnabled()) {
+									logger.debug("No records for [" + this +
+											"] on sequenceNumber [" +
+											this.checkpointer.getLastCheckpointValue() +
+											"]. Suspend consuming for [" + backOff + "] milliseconds.");
+								}
+								prepareSleepState(backOff);
 							}
-							prepareSleepState();
 						}
 					}
 
 					this.task = null;
+					schedule();
 				}
 			};
 		}
 
-		private GetRecordsResult getRecords(GetRecordsRequest getRecordsRequest) {
-			try {
-				return KinesisMessageDrivenChannelAdapter.this.amazonKinesis.getRecords(getRecordsRequest);
+		private GetRecordsResult fetchRecords() {
+			long pause = this.lastGetRecordsTime + KinesisMessageDrivenChannelAdapter.this.getRecordsInterval
+					- System.currentTimeMillis();
+			if (pause > 0) {
+				// Too early for the next get-records request: don't exceed the per-shard rate limit
+				prepareSleepState(pause);
+				return null;
 			}
-			catch (ExpiredIteratorException e) {
-				// Iterator expired, but this does not mean that shard no longer contains records.
-				// Lets acquire iterator again (using checkpointer for iterator start sequence number).
-				if (logger.isInfoEnabled()) {
-					logger.info("Shard iterator for [" + ShardConsumer.this + "] expired.\n" +
-							"A new one will be started from the check pointed sequence number.");
+
+			int limit = KinesisMessageDrivenChannelAdapter.this.recordsLimit;
+			boolean batchListener = ListenerMode.batch.equals(KinesisMessageDrivenChannelAdapter.this.listenerMode);
+			long reservedDemand = 0;
+			if (isDemandDriven()) {
+				reservedDemand = reserveDemand(batchListener ? 1 : limit);
+				if (reservedDemand == 0) {
+					// The demand has been taken by other shard consumers
+					return null;
 				}
-				this.state = ConsumerState.EXPIRED;
-			}
-			catch (ProvisionedThroughputExceededException e) {
-				if (logger.isWarnEnabled()) {
-					logger.warn("GetRecords request throttled for [" + ShardConsumer.this +
-							"] with the reason: " + e.getErrorMessage());
+				if (!batchListener && reservedDemand < limit) {
+					limit = (int) reservedDemand;
 				}
-				// We are throttled, so let's sleep
-				prepareSleepState();
 			}
 
-			return null;
-		}
-
-		private void prepareSleepState() {
-			ShardConsumer.this.sleepUntil = System.currentTimeMillis() +
-					KinesisMessageDrivenChannelAdapter.this.consumerBackoff;
-			ShardConsumer.this.state = ConsumerState.SLEEP;
-		}
+			GetRecordsResult result = null;
+			try {
+				GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+				getRecordsRequest.setShardIterator(this.shardIterator);
+				getRecordsRequest.setLimit(limit);
+
+				result = getRecords(getRecordsRequest);
+				if (result != null) {
+					this.shardIterator = result.getNextShardIterator();
+					this.throttlingBackOffExecution = null;
+				}
+				return result;
+			}
+			finally {
+				if (reservedDemand > 0 && reservedDemand != Long.MAX_VALUE) {
+					int received = result != null ? result.getRecords().size() : 0;
+					long usedDemand = batchListener ? Math.min(1, received) : received;
+					// Give back the demand not satisfied by this shard
+					addDemand(reservedDemand - usedDemand);
+				}
+			}
+		}
+
+		/**
+		 * Take the next prefetched result from the buffer, waiting for the in-flight
+		 * prefetch (if any) to produce it.
+		 * @return the prefetched result or null if nothing has been prefetched.
+		 */
+		private GetRecordsResult pollPrefetchedResult() {
+			GetRecordsResult result = this.prefetchedResults.poll();
+			CompletableFuture<Void> prefetch = this.prefetchFuture;
+			try {
+				while (result == null && prefetch != null && !prefetch.isDone()) {
+					result = this.prefetchedResults.poll(100, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("The [" + this + "] has been interrupted waiting for records.", e);
+			}
+
+			if (result == null) {
+				// The prefetch might be just finished
+				result = this.prefetchedResults.poll();
+			}
+
+			if (result != null) {
+				this.prefetchedRecords.addAndGet(-result.getRecords().size());
+				this.prefetchedBytes.addAndGet(-recordsBytes(result.getRecords()));
+			}
+
+			return result;
+		}
+
+		private void prefetchIfNecessary() {
+			if (KinesisMessageDrivenChannelAdapter.this.prefetchRecordsLimit > 0
+					&& !isDemandDriven()
+					&& this.shardIterator != null
+					&& ConsumerState.CONSUME == this.state
+					&& (this.prefetchFuture == null || this.prefetchFuture.isDone())) {
+
+				if (this.prefetchedResults.isEmpty()) {
+					// Everything prefetched has been taken: continue from the processed position
+					this.prefetchShardIterator = this.shardIterator;
+				}
+				this.prefetchFuture =
+						CompletableFuture.runAsync(this::prefetch, KinesisMessageDrivenChannelAdapter.this.consumerExecutor);
+			}
+		}
+
+		/**
+		 * Fetch records ahead into the buffer until it is full by records or bytes,
+		 * the shard has no more records at the moment or the shard is closed.
+		 * The subsequent get-records requests are paced by the {@link #idleBetweenPolls},
+	 * but never more often than the {@link #getRecordsInterval}.
+		 * Any error stops prefetching: the regular get-records request
+		 * is going to be performed from the shard iterator of the last processed result
+		 * and handle the error properly.
+		 */
+		private void prefetch() {
+			try {
+				long nextRequestTime = 0;
+				while (ConsumerState.CONSUME == this.state
+						&& this.prefetchShardIterator != null
+						&& this.prefetchedRecords.get() < KinesisMessageDrivenChannelAdapter.this.prefetchRecordsLimit
+						&& this.prefetchedBytes.get() < KinesisMessageDrivenChannelAdapter.this.prefetchBytesLimit) {
+
+					long pause =
+							Math.max(nextRequestTime,
+									this.lastGetRecordsTime + KinesisMessageDrivenChannelAdapter.this.getRecordsInterval)
+									- System.currentTimeMillis();
+					if (pause > 0) {
+						Thread.sleep(pause);
+						continue;
+					}
+
+					GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+					getRecordsRequest.setShardIterator(this.prefetchShardIterator);
+					getRecordsRequest.setLimit(
+							Math.min(KinesisMessageDrivenChannelAdapter.this.recordsLimit,
+									KinesisMessageDrivenChannelAdapter.this.prefetchRecordsLimit
+											- this.prefetchedRecords.get()));
+
+					long start = System.nanoTime();
+					this.lastGetRecordsTime = System.currentTimeMillis();
+					GetRecordsResult result =
+							KinesisMessageDrivenChannelAdapter.this.amazonKinesis.getRecords(getRecordsRequest);
+					if (this.shardMetrics != null) {
+						this.shardMetrics.getRecords(System.nanoTime() - start);
+					}
+
+					List<Record> records = result.getRecords();
+					this.prefetchedRecords.addAndGet(records.size());
+					this.prefetchedBytes.addAndGet(recordsBytes(records));
+					this.prefetchShardIterator = result.getNextShardIterator();
+					this.prefetchedResults.add(result);
+
+					if (records.isEmpty()) {
+						// Nothing to prefetch at the moment: let the consumer to back off
+						break;
+					}
+					nextRequestTime = System.currentTimeMillis() + KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls;
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception e) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Prefetching records for [" + this + "] has failed. " +
+							"Fall back to the regular get-records request.", e);
+				}
+			}
+		}
+
+		private void clearPrefetchedResults() {
+			this.prefetchShardIterator = null;
+			this.prefetchedResults.clear();
+			this.prefetchedRecords.set(0);
+			this.prefetchedBytes.set(0);
+		}
+
+		private GetRecordsResult getRecords(GetRecordsRequest getRecordsRequest) {
+			long start = System.nanoTime();
+			this.lastGetRecordsTime = System.currentTimeMillis();
+			try {
+				return KinesisMessageDrivenChannelAdapter.this.amazonKinesis.getRecords(getRecordsRequest);
+			}
+			catch (ExpiredIteratorException e) {
+				if (this.shardMetrics != null) {
+					this.shardMetrics.iteratorExpired();
+				}
+				// Iterator expired, but this does not mean that shard no longer contains records.
+				// Lets acquire iterator again (using checkpointer for iterator start sequence number).
+				if (logger.isInfoEnabled()) {
+					logger.info("Shard iterator for [" + ShardConsumer.this + "] expired.\n" +
+							"A new one will be started from the check pointed sequence number.");
+				}
+				this.state = ConsumerState.EXPIRED;
+			}
+			catch (ProvisionedThroughputExceededException e) {
+				if (this.shardMetrics != null) {
+					this.shardMetrics.throttled();
+				}
+				if (logger.isWarnEnabled()) {
+					logger.warn("GetRecords request throttled for [" + ShardConsumer.this +
+							"] with the reason: " + e.getErrorMessage());
+				}
+				// We are throttled, so let's sleep
+				if (this.throttlingBackOffExecution == null) {
+					this.throttlingBackOffExecution =
+							startBackOff(KinesisMessageDrivenChannelAdapter.this.throttlingBackOff);
+				}
+				prepareSleepState(nextBackOff(this.throttlingBackOffExecution));
+			}
+			finally {
+				if (this.shardMetrics != null) {
+					this.shardMetrics.getRecords(System.nanoTime() - start);
+				}
+			}
+
+			return null;
+		}
+
+		private BackOffExecution startBackOff(BackOff backOff) {
+			if (backOff != null) {
+				return backOff.start();
+			}
+			else {
+				return new FixedBackOff(KinesisMessageDrivenChannelAdapter.this.consumerBackoff,
+						FixedBackOff.UNLIMITED_ATTEMPTS)
+						.start();
+			}
+		}
+
+		private long nextBackOff(BackOffExecution backOffExecution) {
+			long backOff = backOffExecution.nextBackOff();
+			if (backOff == BackOffExecution.STOP) {
+				// The BackOff is exhausted - fall back to the 'consumerBackoff'
+				backOff = KinesisMessageDrivenChannelAdapter.this.consumerBackoff;
+			}
+			return backOff;
+		}
+
+		private void prepareSleepState(long backOff) {
+			ShardConsumer.this.sleepUntil = System.currentTimeMillis() + backOff;
+			ShardConsumer.this.state = ConsumerState.SLEEP;
+		}
 
 		private void processRecords(List<Record> records) {
 			if (logger.isTraceEnabled()) {
 				logger.trace("Processing records: " + records + " for [" + ShardConsumer.this + "]");
 			}
 
-			this.checkpointer.setHighestSequence(records.get(records.size() - 1).getSequenceNumber());
+			// The last Kinesis record, even if it is an aggregate without user records
+			String lastSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+			this.checkpointer.setHighestSequence(lastSequenceNumber);
+
+			if (KinesisMessageDrivenChannelAdapter.this.deaggregate) {
+				records = RecordDeaggregator.deaggregate(records);
+				if (records.isEmpty()) {
+					// Only aggregates without user records: nothing to emit, just checkpoint them
+					skipRecords(lastSequenceNumber);
+					return;
+				}
+			}
 
 			switch (KinesisMessageDrivenChannelAdapter.this.listenerMode) {
 				case record:
-					for (Record record : records) {
-						performSend(prepareMessageForRecord(record), record);
-
-						if (CheckpointMode.record.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
-							this.checkpointer.checkpoint(record.getSequenceNumber());
+					if (KinesisMessageDrivenChannelAdapter.this.recordsExecutor != null && records.size() > 1) {
+						processRecordsConcurrently(records);
+					}
+					else {
+						for (Record record : records) {
+							if (isAccepted(record)) {
+								performSend(createMessageForRecord(record), record);
+							}
+							checkpointProcessedRecords(isCheckpointable(record) ? record.getSequenceNumber() : null, 1);
 						}
 					}
 
 					break;
 
 				case batch:
-					Object payload = records;
-
-					if (KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper != null) {
-						payload = records.stream()
-								.map(this::prepareMessageForRecord)
-								.collect(Collectors.toList());
+					CrossShardBatcher batcher = KinesisMessageDrivenChannelAdapter.this.crossShardBatcher;
+					if (batcher != null) {
+						batcher.add(this, records);
+						// The checkpoints are performed by the batcher after sending
+						return;
 					}
 
-					final List<String> partitionKeys;
-					final List<String> sequenceNumbers;
-					if (KinesisMessageDrivenChannelAdapter.this.converter != null) {
-						partitionKeys = new ArrayList<>();
-						sequenceNumbers = new ArrayList<>();
-
-						payload = records.stream()
-								.map(r -> {
-									partitionKeys.add(r.getPartitionKey());
-									sequenceNumbers.add(r.getSequenceNumber());
+					List<Record> acceptedRecords = acceptedRecords(records);
+					if (acceptedRecords.isEmpty()) {
+						checkpointProcessedRecords(checkpointableSequence(records, records.size() - 1), records.size());
+						break;
+					}
+					records = acceptedRecords;
 
-									return KinesisMessageDrivenChannelAdapter.this.converter
-											.convert(r.getData().array());
-								})
-								.collect(Collectors.toList());
+					int maxRecords = KinesisMessageDrivenChannelAdapter.this.maxBatchRecords;
+					long maxBytes = KinesisMessageDrivenChannelAdapter.this.maxBatchBytes;
+					if (maxRecords > 0 || maxBytes > 0) {
+						processRecordsInSubBatches(records, maxRecords, maxBytes);
 					}
 					else {
-						partitionKeys = null;
-						sequenceNumbers = null;
+						processBatch(records);
 					}
 
-					AbstractIntegrationMessageBuilder<?> messageBuilder =
-							getMessageBuilderFactory()
-									.withPayload(payload)
-									.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, partitionKeys)
-									.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, sequenceNumbers);
+					break;
+			}
 
-					performSend(messageBuilder, records);
+			if (CheckpointMode.batch.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)
+					&& !isRewinding()) {
 
-					break;
+				this.checkpointer.checkpoint();
+			}
+		}
+
+		private void skipRecords(String sequenceNumber) {
+			CrossShardBatcher batcher = KinesisMessageDrivenChannelAdapter.this.crossShardBatcher;
+			if (batcher != null) {
+				// Not over the records of this shard still in the cross-shard batch
+				batcher.skip(this, sequenceNumber);
+				return;
 			}
 
+			checkpointProcessedRecords(sequenceNumber, 1);
 			if (CheckpointMode.batch.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
 				this.checkpointer.checkpoint();
 			}
 		}
 
-		private AbstractIntegrationMessageBuilder<Object> prepareMessageForRecord(Record record) {
-			Object payload = record.getData().array();
-			Message<?> messageToUse = null;
+		/**
+		 * Split the records into sequential sub-batches according to the
+		 * {@link #setMaxBatchRecords maxBatchRecords} and {@link #setMaxBatchBytes maxBatchBytes}
+		 * and emit each of them with a checkpoint after it in the {@link CheckpointMode#batch}.
+		 * @param records the records to process.
+		 * @param maxRecords the maximum number of records in a sub-batch; {@code 0} for no limit.
+		 * @param maxBytes the maximum number of data bytes in a sub-batch; {@code 0} for no limit.
+		 */
+		private void processRecordsInSubBatches(List<Record> records, int maxRecords, long maxBytes) {
+			int start = 0;
+			long bytes = 0;
+			for (int i = 0; i < records.size(); i++) {
+				long recordBytes = records.get(i).getData().remaining();
+				int size = i - start;
+				if (size > 0
+						&& ((maxRecords > 0 && size >= maxRecords) || (maxBytes > 0 && bytes + recordBytes > maxBytes))) {
+
+					processSubBatch(records, start, i);
+					start = i;
+					bytes = 0;
+				}
+				bytes += recordBytes;
+			}
+			processSubBatch(records, start, records.size());
+		}
+
+		private void processSubBatch(List<Record> records, int start, int end) {
+			processBatch(records.subList(start, end));
+			if (CheckpointMode.batch.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+				String sequenceNumber = checkpointableSequence(records, end - 1);
+				if (sequenceNumber != null) {
+					this.checkpointer.checkpoint(sequenceNumber);
+				}
+			}
+		}
+
+		private void processBatch(List<Record> records) {
+			Object payload = records;
 
 			if (KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper != null) {
-				try {
-					messageToUse =
-							KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper
-									.toMessage((byte[]) payload);
+				payload = records.stream()
+						.map(this::prepareMessageForRecord)
+						.collect(Collectors.toList());
+			}
+
+			final List<String> partitionKeys;
+			final List<String> sequenceNumbers;
+			if (KinesisMessageDrivenChannelAdapter.this.converter != null
+					|| KinesisMessageDrivenChannelAdapter.this.byteBufferConverter != null) {
+
+				partitionKeys = new ArrayList<>();
+				sequenceNumbers = new ArrayList<>();
+
+				payload = records.stream()
+						.map(r -> {
+							partitionKeys.add(r.getPartitionKey());
+							sequenceNumbers.add(r.getSequenceNumber());
 
-					payload = messageToUse.getPayload();
+							return convertPayload(r.getData());
+						})
+						.collect(Collectors.toList());
+			}
+			else {
+				partitionKeys = null;
+				sequenceNumbers = null;
+			}
+
+			AbstractIntegrationMessageBuilder<?> messageBuilder =
+					getMessageBuilderFactory()
+							.withPayload(payload)
+							.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, partitionKeys)
+							.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, sequenceNumbers);
+
+			performSend(messageBuilder, records);
+
+			if (CheckpointMode.periodic.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+				checkpointPeriodically(checkpointableSequence(records, records.size() - 1), records.size());
+			}
+		}
+
+		/**
+		 * Dispatch records on the {@link #recordsExecutor} concurrently for different partition keys
+		 * and sequentially for the same key.
+		 * Checkpoints are performed only for the contiguous watermark of the processed records.
+		 * If any record fails, the shard is consumed again from the first record after that watermark.
+		 * @param records the records to process.
+		 */
+		private void processRecordsConcurrently(List<Record> records) {
+			Map<String, List<Integer>> recordsByPartitionKey = new LinkedHashMap<>();
+			for (int i = 0; i < records.size(); i++) {
+				recordsByPartitionKey.computeIfAbsent(records.get(i).getPartitionKey(), k -> new ArrayList<>())
+						.add(i);
+			}
+
+			ContiguousWatermark watermark = new ContiguousWatermark(records.size());
+
+			CompletableFuture<?>[] futures =
+					recordsByPartitionKey.values()
+							.stream()
+							.map(indexes ->
+									CompletableFuture.runAsync(() -> {
+												try {
+													for (Integer index : indexes) {
+														Record record = records.get(index);
+														if (isAccepted(record)) {
+															performSend(createMessageForRecord(record), record);
+														}
+														recordProcessed(records, watermark, index);
+													}
+												}
+												finally {
+													attributesHolder.remove();
+												}
+											},
+											KinesisMessageDrivenChannelAdapter.this.recordsExecutor))
+							.toArray(CompletableFuture<?>[]::new);
+
+			try {
+				CompletableFuture.allOf(futures).join();
+			}
+			catch (CompletionException e) {
+				if (e.getCause() instanceof NoSubscriberException) {
+					throw (NoSubscriberException) e.getCause();
+				}
+				logger.error("Error during concurrent records processing for [" + this + "]. " +
+						"The records after the last contiguous processed one are going to be consumed again.",
+						e.getCause());
+
+				synchronized (watermark) {
+					int lastProcessed = watermark.getWatermark();
+					if (CheckpointMode.batch.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+						// Not the whole batch: the failed records must not be skipped
+						String sequenceNumber = checkpointableSequence(records, lastProcessed);
+						if (sequenceNumber != null) {
+							this.checkpointer.checkpoint(sequenceNumber);
+						}
+					}
+					rewind(records.get(lastProcessed + 1).getSequenceNumber());
+				}
+			}
+		}
+
+		private void recordProcessed(List<Record> records, ContiguousWatermark watermark, int index) {
+			synchronized (watermark) {
+				int advanced = watermark.complete(index);
+				if (advanced > 0) {
+					checkpointProcessedRecords(checkpointableSequence(records, watermark.getWatermark()), advanced);
+				}
+			}
+		}
+
+		/**
+		 * Return the sequence number which is safe to checkpoint when all the records
+		 * up to the provided position are processed: the user records of an aggregated
+		 * record share its sequence number, so it can be checkpointed only after the last of them.
+		 * @param records the records in process.
+		 * @param index the position of the last processed record.
+		 * @return the sequence number to checkpoint or null if nothing can be checkpointed yet.
+		 */
+		private String checkpointableSequence(List<Record> records, int index) {
+			for (int i = index; i >= 0; i--) {
+				Record record = records.get(i);
+				if (isCheckpointable(record)) {
+					return record.getSequenceNumber();
+				}
+			}
+			return null;
+		}
+
+		private boolean isAccepted(Record record) {
+			Predicate<Record> filter = KinesisMessageDrivenChannelAdapter.this.recordFilter;
+			return filter == null || filter.test(record);
+		}
+
+		private List<Record> acceptedRecords(List<Record> records) {
+			if (KinesisMessageDrivenChannelAdapter.this.recordFilter == null) {
+				return records;
+			}
+			return records.stream()
+					.filter(this::isAccepted)
+					.collect(Collectors.toList());
+		}
+
+		private boolean isCheckpointable(Record record) {
+			return !(record instanceof DeaggregatedRecord) || ((DeaggregatedRecord) record).isLastInAggregate();
+		}
+
+		private void checkpointProcessedRecords(String sequenceNumber, int processedRecords) {
+			if (CheckpointMode.record.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+				if (sequenceNumber != null) {
+					this.checkpointer.checkpoint(sequenceNumber);
+				}
+			}
+			else if (CheckpointMode.periodic.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
+				checkpointPeriodically(sequenceNumber, processedRecords);
+			}
+		}
+
+		/**
+		 * Checkpoint the provided sequence number for the {@link CheckpointMode#periodic}
+		 * if the records threshold or time interval is reached.
+		 * The time interval is counted from the oldest processed, but not checkpointed record.
+		 * @param sequenceNumber the sequence number of the last processed record.
+		 * @param processedRecords the number of just processed records.
+		 */
+		private synchronized void checkpointPeriodically(String sequenceNumber, int processedRecords) {
+			long interval = KinesisMessageDrivenChannelAdapter.this.checkpointsInterval;
+			if (processedRecords > 0) {
+				if (this.recordsToCheckpoint == 0) {
+					this.nextCheckpointTime = System.currentTimeMillis() + interval;
+				}
+				this.recordsToCheckpoint += processedRecords;
+				if (sequenceNumber != null) {
+					this.sequenceToCheckpoint = sequenceNumber;
+				}
+			}
+
+			if (this.recordsToCheckpoint > 0 && this.sequenceToCheckpoint != null) {
+				int recordsThreshold = KinesisMessageDrivenChannelAdapter.this.checkpointsRecordsThreshold;
+				if ((recordsThreshold > 0 && this.recordsToCheckpoint >= recordsThreshold)
+						|| (interval > 0 && System.currentTimeMillis() >= this.nextCheckpointTime)) {
+
+					checkpointPendingRecords();
+				}
+			}
+		}
+
+		private synchronized void checkpointPendingRecords() {
+			if (this.recordsToCheckpoint > 0 && this.sequenceToCheckpoint != null) {
+				this.checkpointer.checkpoint(this.sequenceToCheckpoint);
+				this.recordsToCheckpoint = 0;
+			}
+		}
+
+		/**
+		 * Create a message for the record.
+		 * With the {@link DefaultMessageBuilderFactory} the message is created directly
+		 * with the {@link KinesisMessageHeaders} based on the per-shard constant headers,
+		 * bypassing the message builder and its intermediate headers map.
+		 * @param record the record to create a message for.
+		 * @return the message to send.
+		 */
+		private Message<?> createMessageForRecord(Record record) {
+			if (!(getMessageBuilderFactory() instanceof DefaultMessageBuilderFactory)) {
+				return addShardHeaders(prepareMessageForRecord(record)).build();
+			}
+
+			Message<?> embeddedMessage = extractEmbeddedMessage(record);
+			Object payload = recordPayload(record, embeddedMessage);
+			return new GenericMessage<>(payload,
+					new KinesisMessageHeaders(this.shardHeaders, record,
+							embeddedMessage != null ? embeddedMessage.getHeaders() : null));
+		}
+
+		private Message<?> extractEmbeddedMessage(Record record) {
+			if (KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper != null) {
+				try {
+					return KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper
+							.toMessage(ByteBufferUtils.toByteArray(record.getData()));
 				}
 				catch (Exception e) {
 					logger.warn("Could not parse embedded headers. Remain payload untouched.", e);
 				}
 			}
+			return null;
+		}
 
-			if (payload instanceof byte[] &&
-					KinesisMessageDrivenChannelAdapter.this.converter != null) {
-
-				payload = KinesisMessageDrivenChannelAdapter.this.converter.convert((byte[]) payload);
+		private Object recordPayload(Record record, Message<?> embeddedMessage) {
+			Object payload;
+			if (embeddedMessage != null) {
+				payload = embeddedMessage.getPayload();
+			}
+			else if (KinesisMessageDrivenChannelAdapter.this.embeddedHeadersMapper != null) {
+				payload = ByteBufferUtils.toByteArray(record.getData());
 			}
+			else {
+				payload = record.getData();
+			}
+			return convertPayload(payload);
+		}
+
+		private AbstractIntegrationMessageBuilder<Object> prepareMessageForRecord(Record record) {
+			Message<?> messageToUse = extractEmbeddedMessage(record);
+			Object payload = recordPayload(record, messageToUse);
 
 			AbstractIntegrationMessageBuilder<Object> messageBuilder =
 					getMessageBuilderFactory()
@@ -1050,6 +2677,11 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 							.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, record.getPartitionKey())
 							.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, record.getSequenceNumber());
 
+			if (record instanceof DeaggregatedRecord) {
+				messageBuilder.setHeader(AwsHeaders.RECEIVED_SUB_SEQUENCE_NUMBER,
+						((DeaggregatedRecord) record).getSubSequenceNumber());
+			}
+
 			if (messageToUse != null) {
 				messageBuilder.copyHeadersIfAbsent(messageToUse.getHeaders());
 			}
@@ -1057,18 +2689,72 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			return messageBuilder;
 		}
 
-		private void performSend(AbstractIntegrationMessageBuilder<?> messageBuilder, Object rawRecord) {
-			messageBuilder.setHeader(AwsHeaders.RECEIVED_STREAM, this.shardOffset.getStream())
-					.setHeader(AwsHeaders.SHARD, this.shardOffset.getShard());
+		/**
+		 * Convert the record data ({@link ByteBuffer}) or the payload extracted by the embedded headers mapper
+		 * ({@code byte[]}) with the configured converters.
+		 * The {@link ByteBuffer} is copied into a {@code byte[]} only if there is no {@code byteBufferConverter}
+		 * and it is not backed by an array exactly matching its content.
+		 * With the {@code lazyPayload} option the conversion is deferred to the {@link LazyPayload}.
+		 * @param payload the payload to convert.
+		 * @return the converted payload.
+		 */
+		private Object convertPayload(Object payload) {
+			if (KinesisMessageDrivenChannelAdapter.this.lazyPayload
+					&& (payload instanceof ByteBuffer || payload instanceof byte[])) {
+
+				return new LazyPayload(payload, this::doConvertPayload);
+			}
+			return doConvertPayload(payload);
+		}
 
-			if (CheckpointMode.manual.equals(KinesisMessageDrivenChannelAdapter.this.checkpointMode)) {
-				messageBuilder.setHeader(AwsHeaders.CHECKPOINTER, this.checkpointer);
+		private Object doConvertPayload(Object payload) {
+			Converter<ByteBuffer, Object> byteBufferConverter =
+					KinesisMessageDrivenChannelAdapter.this.byteBufferConverter;
+			Converter<byte[], Object> converter = KinesisMessageDrivenChannelAdapter.this.converter;
+
+			if (payload instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) payload;
+				if (byteBufferConverter != null) {
+					return byteBufferConverter.convert(buffer.asReadOnlyBuffer());
+				}
+				byte[] bytes = ByteBufferUtils.toByteArray(buffer);
+				return converter != null ? converter.convert(bytes) : bytes;
+			}
+			else if (payload instanceof byte[]) {
+				if (byteBufferConverter != null) {
+					return byteBufferConverter.convert(ByteBuffer.wrap((byte[]) payload).asReadOnlyBuffer());
+				}
+				return converter != null ? converter.convert((byte[]) payload) : payload;
 			}
+			else {
+				return payload;
+			}
+		}
 
-			Message<?> messageToSend = messageBuilder.build();
+		private AbstractIntegrationMessageBuilder<?> addShardHeaders(AbstractIntegrationMessageBuilder<?> messageBuilder) {
+			return messageBuilder.copyHeaders(this.shardHeaders);
+		}
+
+		private void performSend(AbstractIntegrationMessageBuilder<?> messageBuilder, Object rawRecord) {
+			performSend(addShardHeaders(messageBuilder).build(), rawRecord);
+		}
+
+		private void performSend(Message<?> messageToSend, Object rawRecord) {
 			setAttributesIfNecessary(rawRecord, messageToSend);
+			FluxSink<Message<?>> fluxSink = null;
+			if (isDemandDriven()) {
+				fluxSink = KinesisMessageDrivenChannelAdapter.this.sink;
+				if (fluxSink == null) {
+					throw new NoSubscriberException();
+				}
+			}
 			try {
-				sendMessage(messageToSend);
+				if (fluxSink != null) {
+					fluxSink.next(messageToSend);
+				}
+				else {
+					sendMessage(messageToSend);
+				}
 			}
 			catch (Exception e) {
 				logger.info("Got an exception during sending a '" + messageToSend + "'" +
@@ -1087,40 +2773,250 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 	}
 
-	private enum ConsumerState {
+	/**
+	 * Accumulates records from all the shard consumers into one batch message up to the
+	 * {@link #setCrossShardBatchSize crossShardBatchSize} or the
+	 * {@link #setCrossShardBatchTimeout crossShardBatchTimeout}.
+	 * The batch is sent under the lock, so the order of records for each shard is preserved
+	 * across batches and the shard consumers are back-pressured by a slow downstream.
+	 * The contributing shards are checkpointed only after the batch message is sent successfully;
+	 * otherwise they are rewound to be consumed again from their last checkpoints.
+	 */
+	private final class CrossShardBatcher {
 
-		NEW, EXPIRED, CONSUME, SLEEP, STOP
+		private final List<Object> payloads = new ArrayList<>();
+
+		private final List<String> streams = new ArrayList<>();
+
+		private final List<String> shards = new ArrayList<>();
+
+		private final List<String> partitionKeys = new ArrayList<>();
+
+		private final List<String> sequenceNumbers = new ArrayList<>();
+
+		private final Map<ShardConsumer, String> sequencesToCheckpoint = new LinkedHashMap<>();
+
+		private final Map<ShardConsumer, String> firstSequences = new LinkedHashMap<>();
+
+		private long firstRecordTime;
+
+		synchronized void add(ShardConsumer shardConsumer, List<Record> records) {
+			boolean convert =
+					KinesisMessageDrivenChannelAdapter.this.converter != null
+							|| KinesisMessageDrivenChannelAdapter.this.byteBufferConverter != null;
+
+			if (shardConsumer.isRewinding()) {
+				// These records follow not delivered ones: they are going to be consumed again
+				return;
+			}
+
+			for (Record record : records) {
+				if (!shardConsumer.isAccepted(record)) {
+					if (shardConsumer.isCheckpointable(record)) {
+						this.sequencesToCheckpoint.put(shardConsumer, record.getSequenceNumber());
+					}
+					continue;
+				}
+				if (this.payloads.isEmpty()) {
+					this.firstRecordTime = System.currentTimeMillis();
+				}
+				this.payloads.add(convert ? shardConsumer.convertPayload(record.getData()) : record);
+				this.streams.add(shardConsumer.shardOffset.getStream());
+				this.shards.add(shardConsumer.shardOffset.getShard());
+				this.partitionKeys.add(record.getPartitionKey());
+				this.sequenceNumbers.add(record.getSequenceNumber());
+				this.firstSequences.putIfAbsent(shardConsumer, record.getSequenceNumber());
+				if (shardConsumer.isCheckpointable(record)) {
+					this.sequencesToCheckpoint.put(shardConsumer, record.getSequenceNumber());
+				}
+
+				if (this.payloads.size() >= KinesisMessageDrivenChannelAdapter.this.crossShardBatchSize) {
+					flush();
+				}
+			}
+
+			if (this.payloads.isEmpty()) {
+				// Only filtered out records since the last flush: nothing to send, just checkpoint them
+				flush();
+			}
+		}
+
+		/**
+		 * Checkpoint the records without messages for them after the records of the same shard
+		 * already in the batch.
+		 * @param shardConsumer the consumer of the records.
+		 * @param sequenceNumber the sequence number of the last skipped record.
+		 */
+		synchronized void skip(ShardConsumer shardConsumer, String sequenceNumber) {
+			if (shardConsumer.isRewinding()) {
+				return;
+			}
+			this.sequencesToCheckpoint.put(shardConsumer, sequenceNumber);
+			if (this.payloads.isEmpty()) {
+				flush();
+			}
+		}
+
+		synchronized void flushIfExpired() {
+			if (!this.payloads.isEmpty()
+					&& System.currentTimeMillis() - this.firstRecordTime
+					>= KinesisMessageDrivenChannelAdapter.this.crossShardBatchTimeout) {
+
+				flush();
+			}
+		}
+
+		synchronized void flush() {
+			if (this.payloads.isEmpty()) {
+				if (!this.sequencesToCheckpoint.isEmpty()) {
+					Map<ShardConsumer, String> toCheckpoint = new LinkedHashMap<>(this.sequencesToCheckpoint);
+					this.sequencesToCheckpoint.clear();
+					checkpoint(toCheckpoint);
+				}
+				return;
+			}
+
+			Message<?> message =
+					getMessageBuilderFactory()
+							.withPayload(new ArrayList<>(this.payloads))
+							.setHeader(AwsHeaders.RECEIVED_STREAM, new ArrayList<>(this.streams))
+							.setHeader(AwsHeaders.SHARD, new ArrayList<>(this.shards))
+							.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, new ArrayList<>(this.partitionKeys))
+							.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, new ArrayList<>(this.sequenceNumbers))
+							.build();
+
+			Map<ShardConsumer, String> toCheckpoint = new LinkedHashMap<>(this.sequencesToCheckpoint);
+			Map<ShardConsumer, String> toRewind = new LinkedHashMap<>(this.firstSequences);
+
+			this.payloads.clear();
+			this.streams.clear();
+			this.shards.clear();
+			this.partitionKeys.clear();
+			this.sequenceNumbers.clear();
+			this.sequencesToCheckpoint.clear();
+			this.firstSequences.clear();
+
+			try {
+				if (isDemandDriven()) {
+					FluxSink<Message<?>> fluxSink = KinesisMessageDrivenChannelAdapter.this.sink;
+					if (fluxSink == null) {
+						throw new NoSubscriberException();
+					}
+					fluxSink.next(message);
+				}
+				else {
+					sendMessage(message);
+				}
+			}
+			catch (Exception e) {
+				if (e instanceof NoSubscriberException) {
+					if (logger.isInfoEnabled()) {
+						logger.info("No subscriber for a cross-shard batch. The shards " + toRewind.keySet() +
+								" are going to be consumed again from their last checkpoints.");
+					}
+				}
+				else {
+					logger.error("Got an exception during sending a cross-shard batch '" + message + "'.\n" +
+							"The shards " + toRewind.keySet() + " are going to be consumed again " +
+							"from their last checkpoints. " +
+							"Consider to use 'errorChannel' flow for the compensation logic.", e);
+				}
+				// No checkpoints for the failed shards until their records are consumed again:
+				// the records of these shards in the next batches are discarded meanwhile
+				toRewind.forEach(ShardConsumer::rewind);
+				toCheckpoint.keySet().removeAll(toRewind.keySet());
+				checkpoint(toCheckpoint);
+				return;
+			}
+
+			checkpoint(toCheckpoint);
+		}
+
+		private void checkpoint(Map<ShardConsumer, String> toCheckpoint) {
+			for (Map.Entry<ShardConsumer, String> entry : toCheckpoint.entrySet()) {
+				ShardConsumer shardConsumer = entry.getKey();
+				try {
+					shardConsumer.checkpointer.checkpoint(entry.getValue());
+					if (ConsumerState.STOP == shardConsumer.state) {
+						// Nothing is going to flush this stopped consumer in the write-behind mode
+						shardConsumer.checkpointer.flush();
+					}
+				}
+				catch (Exception e) {
+					logger.error("Error during checkpoint for: " + shardConsumer, e);
+				}
+			}
+		}
 
 	}
 
-	private final class ConsumerInvoker implements SchedulingAwareRunnable {
+	/**
+	 * The {@link Delayed} wrapper for the {@link ShardConsumer}
+	 * to be dispatched at its {@code sleepUntil} time.
+	 */
+	private static final class ScheduledShardConsumer implements Delayed {
+
+		private final ShardConsumer shardConsumer;
 
-		private final Queue<ShardConsumer> consumers = new ConcurrentLinkedQueue<>();
+		private final long dueTime;
 
-		private final Semaphore processBarrier = new Semaphore(0);
+		ScheduledShardConsumer(ShardConsumer shardConsumer) {
+			this.shardConsumer = shardConsumer;
+			this.dueTime = shardConsumer.sleepUntil;
+		}
 
-		private final Runnable notifier = this::notifyBarrier;
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
 
-		ConsumerInvoker(Collection<ShardConsumer> shardConsumers) {
-			for (ShardConsumer shardConsumer : shardConsumers) {
-				addConsumer(shardConsumer);
+		@Override
+		public int compareTo(Delayed other) {
+			if (other instanceof ScheduledShardConsumer) {
+				return Long.compare(this.dueTime, ((ScheduledShardConsumer) other).dueTime);
 			}
+			return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
 		}
 
-		void addConsumer(ShardConsumer shardConsumer) {
-			shardConsumer.setNotifier(this.notifier);
-			this.consumers.add(shardConsumer);
+	}
+
+	/**
+	 * Thrown when a message has to be emitted in the demand-driven mode, but there is no subscriber.
+	 */
+	@SuppressWarnings("serial")
+	private static final class NoSubscriberException extends IllegalStateException {
+
+		NoSubscriberException() {
+			super("No subscriber to emit the message to");
 		}
 
-		void notifyBarrier() {
-			this.processBarrier.release();
+	}
+
+	private enum ConsumerState {
+
+		NEW, EXPIRED, CONSUME, SLEEP, STOP
+
+	}
+
+	/**
+	 * The long-lived worker to run tasks of ready {@link ShardConsumer}s
+	 * from the shared queue in the order they become ready.
+	 * A consumer stopped while waiting in the queue is handed back to the dispatcher.
+	 */
+	private final class ConsumerInvoker implements SchedulingAwareRunnable {
+
+		ConsumerInvoker() {
 		}
 
 		@Override
 		public void run() {
-			while (KinesisMessageDrivenChannelAdapter.this.active) {
+			while (isActive()) {
+				ShardConsumer shardConsumer;
 				try {
-					this.processBarrier.acquire();
+					shardConsumer =
+							KinesisMessageDrivenChannelAdapter.this.readyShardConsumers
+									.poll(KinesisMessageDrivenChannelAdapter.this.idleBetweenPolls,
+											TimeUnit.MILLISECONDS);
 				}
 				catch (InterruptedException e) {
 					Thread.currentThread().interrupt();
@@ -1128,31 +3024,39 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 					throw new IllegalStateException("ConsumerInvoker thread [" + this + "] has been interrupted", e);
 				}
 
-				for (Iterator<ShardConsumer> iterator = this.consumers.iterator(); iterator.hasNext(); ) {
-					ShardConsumer shardConsumer = iterator.next();
+				if (shardConsumer != null) {
+					Runnable task = shardConsumer.task;
 					if (ConsumerState.STOP == shardConsumer.state) {
-						iterator.remove();
+						// Stopped while waiting in the queue: nothing is in flight, so its lock can be released
+						shardConsumer.task = null;
+						// Hand it over to the dispatcher for the stop processing and possible resharding
+						shardConsumer.sleepUntil = 0;
+						shardConsumer.schedule();
 					}
-					else {
-						if (shardConsumer.task != null) {
-							try {
-								shardConsumer.task.run();
-							}
-							catch (Exception e) {
-								logger.info("Got an exception " + e + " during [" + shardConsumer + "] task invocation.\n" +
-										"Process will be retried on the next iteration.");
-							}
+					else if (task != null) {
+						long start = System.nanoTime();
+						try {
+							task.run();
+						}
+						catch (Exception e) {
+							logger.info("Got an exception " + e + " during [" + shardConsumer + "] task invocation.\n" +
+									"Process will be retried on the next iteration.");
+						}
+						finally {
+							KinesisMessageDrivenChannelAdapter.this.invokersBusyNanos.addAndGet(System.nanoTime() - start);
 						}
 					}
 				}
+			}
+		}
+
+		private boolean isActive() {
+			if (KinesisMessageDrivenChannelAdapter.this.active) {
 				synchronized (KinesisMessageDrivenChannelAdapter.this.consumerInvokers) {
-					// The attempt to survive if ShardConsumer has been added during synchronization
-					if (this.consumers.isEmpty()) {
-						KinesisMessageDrivenChannelAdapter.this.consumerInvokers.remove(this);
-						break;
-					}
+					return KinesisMessageDrivenChannelAdapter.this.consumerInvokers.contains(this);
 				}
 			}
+			return false;
 		}
 
 		@Override
@@ -1168,7 +3072,13 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 
 		private final Map<String, Lock> locks = new HashMap<>();
 
-		private final Queue<String> forUnlocking = new ConcurrentLinkedQueue<>();
+		private final Queue<ShardConsumer> forUnlocking = new ConcurrentLinkedQueue<>();
+
+		private final String instanceId = UUID.randomUUID().toString();
+
+		private int liveInstances = 1;
+
+		private long nextHeartbeat;
 
 		ShardConsumerManager() {
 		}
@@ -1178,59 +3088,55 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			this.shardOffsetsToConsumer.put(lockKey, kinesisShardOffset);
 		}
 
-		void unlock(String lockKey) {
-			this.forUnlocking.add(lockKey);
+		void unlock(ShardConsumer shardConsumer) {
+			this.forUnlocking.add(shardConsumer);
 		}
 
 		@Override
 		public void run() {
 			try {
 				while (!Thread.currentThread().isInterrupted()) {
+					int maxLocks = balanceShards();
 
-					this.shardOffsetsToConsumer.entrySet()
-							.removeIf(entry -> {
-								boolean remove = true;
-								if (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
-									String key = entry.getKey();
-									Lock lock =
-											KinesisMessageDrivenChannelAdapter.this.lockRegistry.obtain(key);
-									try {
-										if (lock.tryLock()) {
-											this.locks.put(key, lock);
-										}
-										else {
-											remove = false;
+					if (KinesisMessageDrivenChannelAdapter.this.lockRegistry instanceof BatchLockRegistry) {
+						lockShardsInBatch(maxLocks);
+					}
+					else {
+						this.shardOffsetsToConsumer.entrySet()
+								.removeIf(entry -> {
+									boolean remove = true;
+									if (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
+										if (this.locks.size() >= maxLocks) {
+											// Leave the shard for other instances
+											return false;
 										}
+										String key = entry.getKey();
+										Lock lock =
+												KinesisMessageDrivenChannelAdapter.this.lockRegistry.obtain(key);
+										try {
+											if (lock.tryLock()) {
+												this.locks.put(key, lock);
+											}
+											else {
+												remove = false;
+											}
 
+										}
+										catch (Exception e) {
+											logger.error("Error during locking: " + lock, e);
+										}
 									}
-									catch (Exception e) {
-										logger.error("Error during locking: " + lock, e);
-									}
-								}
 
-								if (remove) {
-									populateConsumer(entry.getValue());
-								}
+									if (remove) {
+										populateConsumer(entry.getValue());
+									}
 
-								return remove;
-							});
+									return remove;
+								});
+					}
 
-					while (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
-						String lockKey = this.forUnlocking.poll();
-						if (lockKey != null) {
-							Lock lock = this.locks.remove(lockKey);
-							if (lock != null) {
-								try {
-									lock.unlock();
-								}
-								catch (Exception e) {
-									logger.error("Error during unlocking: " + lock, e);
-								}
-							}
-						}
-						else {
-							break;
-						}
+					if (KinesisMessageDrivenChannelAdapter.this.lockRegistry != null) {
+						unlockStoppedConsumers();
 					}
 
 					try {
@@ -1244,6 +3150,11 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 				}
 			}
 			finally {
+				if (isShardBalancing()) {
+					updateHeartbeat(false);
+				}
+				// All the locks are released below: don't let the next start unlock anything by these consumers
+				this.forUnlocking.clear();
 				for (Iterator<Lock> iterator = this.locks.values().iterator(); iterator.hasNext(); ) {
 					Lock lock = iterator.next();
 					try {
@@ -1259,6 +3170,211 @@ public class KinesisMessageDrivenChannelAdapter extends MessageProducerSupport i
 			}
 		}
 
+		/**
+		 * Release the locks of the stopped consumers which have finished their in-flight tasks.
+		 * The lock of a consumer still processing records is kept, so another instance
+		 * doesn't start consuming the shard concurrently and its checkpoints are not overwritten.
+		 */
+		private void unlockStoppedConsumers() {
+			List<ShardConsumer> inFlightConsumers = new ArrayList<>();
+			List<ShardConsumer> consumersToUnlock = new ArrayList<>();
+			ShardConsumer shardConsumer;
+			while ((shardConsumer = this.forUnlocking.poll()) != null) {
+				if (shardConsumer.task != null) {
+					inFlightConsumers.add(shardConsumer);
+				}
+				else {
+					consumersToUnlock.add(shardConsumer);
+				}
+			}
+			this.forUnlocking.addAll(inFlightConsumers);
+
+			if (consumersToUnlock.isEmpty()) {
+				return;
+			}
+
+			CrossShardBatcher batcher = KinesisMessageDrivenChannelAdapter.this.crossShardBatcher;
+			if (batcher != null) {
+				// Send and checkpoint the records of these consumers before giving up their shards
+				batcher.flush();
+			}
+
+			for (ShardConsumer consumerToUnlock : consumersToUnlock) {
+				Lock lock = this.locks.remove(consumerToUnlock.key);
+				if (lock != null) {
+					try {
+						lock.unlock();
+					}
+					catch (Exception e) {
+						logger.error("Error during unlocking: " + lock, e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Acquire locks for the pending shards with a single {@link BatchLockRegistry#tryLock(Collection)}
+		 * call and start consumers for the locked shards.
+		 * @param maxLocks the maximum number of locks this instance can hold.
+		 */
+		private void lockShardsInBatch(int maxLocks) {
+			int locksToAcquire = maxLocks - this.locks.size();
+			if (locksToAcquire > 0 && !this.shardOffsetsToConsumer.isEmpty()) {
+				List<String> lockKeys =
+						this.shardOffsetsToConsumer.keySet()
+								.stream()
+								.limit(locksToAcquire)
+								.collect(Collectors.toList());
+				try {
+					Map<String, Lock> acquiredLocks =
+							((BatchLockRegistry) KinesisMessageDrivenChannelAdapter.this.lockRegistry)
+									.tryLock(lockKeys);
+
+					for (Map.Entry<String, Lock> entry : acquiredLocks.entrySet()) {
+						String key = entry.getKey();
+						this.locks.put(key, entry.getValue());
+						KinesisShardOffset shardOffset = this.shardOffsetsToConsumer.remove(key);
+						if (shardOffset != null) {
+							populateConsumer(shardOffset);
+						}
+					}
+				}
+				catch (Exception e) {
+					logger.error("Error during locking: " + lockKeys, e);
+				}
+			}
+		}
+
+		private boolean isShardBalancing() {
+			return KinesisMessageDrivenChannelAdapter.this.lockRegistry != null
+					&& KinesisMessageDrivenChannelAdapter.this.shardBalancingInterval > 0;
+		}
+
+		/**
+		 * Update the heartbeat of this instance, if it is time for that,
+		 * and stop consumers for the shards over the fair share of this instance.
+		 * @return the maximum number of shard locks this instance can hold.
+		 */
+		private int balanceShards() {
+			if (!isShardBalancing()) {
+				return Integer.MAX_VALUE;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now >= this.nextHeartbeat) {
+				this.liveInstances = updateHeartbeat(true);
+				this.nextHeartbeat = now + KinesisMessageDrivenChannelAdapter.this.shardBalancingInterval;
+			}
+
+			int shards;
+			synchronized (KinesisMessageDrivenChannelAdapter.this.shardOffsets) {
+				shards = KinesisMessageDrivenChannelAdapter.this.shardOffsets.size();
+			}
+			int fairShare = (shards + this.liveInstances - 1) / this.liveInstances;
+
+			int excess = this.locks.size() - fairShare;
+			if (excess > 0) {
+				if (logger.isInfoEnabled()) {
+					logger.info("Releasing [" + excess + "] shard(s) to balance [" + shards + "] shards between ["
+							+ this.liveInstances + "] instances.");
+				}
+				for (ShardConsumer shardConsumer : KinesisMessageDrivenChannelAdapter.this.shardConsumers.values()) {
+					if (excess == 0) {
+						break;
+					}
+					if (this.locks.containsKey(shardConsumer.key)
+							&& KinesisMessageDrivenChannelAdapter.this.shardConsumers
+							.remove(shardConsumer.shardOffset, shardConsumer)) {
+
+						// The lock is released via 'forUnlocking' from the 'stop()'
+						// when the in-flight task of the consumer is finished
+						shardConsumer.stop();
+						addShardToConsume(new KinesisShardOffset(shardConsumer.shardOffset));
+						excess--;
+					}
+				}
+			}
+
+			return fairShare;
+		}
+
+		/**
+		 * Register (or unregister) this instance in the heartbeats entry of the {@link #checkpointStore}
+		 * and evict instances which haven't updated their heartbeat for three balancing intervals.
+		 * The entry is a comma-separated list of {@code instanceId=timestamp} pairs
+		 * updated with the optimistic {@link ConcurrentMetadataStore#replace}.
+		 * The key is built from the sorted streams to be the same for all the instances.
+		 * The entry is removed when the last instance unregisters, since an empty value
+		 * is not accepted by all the stores.
+		 * @param register false to remove this instance from the heartbeats.
+		 * @return the number of live instances, including this one.
+		 */
+		private int updateHeartbeat(boolean register) {
+			ConcurrentMetadataStore store = KinesisMessageDrivenChannelAdapter.this.checkpointStore;
+			String heartbeatsKey = KinesisMessageDrivenChannelAdapter.this.consumerGroup + ":"
+					+ Arrays.stream(KinesisMessageDrivenChannelAdapter.this.streams)
+					.sorted()
+					.collect(Collectors.joining(",")) + ":instances";
+
+			for (int i = 0; i < 10; i++) {
+				try {
+					long now = System.currentTimeMillis();
+					long expiration = now - 3 * KinesisMessageDrivenChannelAdapter.this.shardBalancingInterval;
+					String heartbeats = store.get(heartbeatsKey);
+					Map<String, Long> instances = new LinkedHashMap<>();
+					if (StringUtils.hasText(heartbeats)) {
+						for (String heartbeat : StringUtils.commaDelimitedListToStringArray(heartbeats)) {
+							String[] instance = StringUtils.split(heartbeat, "=");
+							if (instance != null) {
+								long timestamp = Long.parseLong(instance[1]);
+								if (timestamp >= expiration) {
+									instances.put(instance[0], timestamp);
+								}
+							}
+						}
+					}
+					if (register) {
+						instances.put(this.instanceId, now);
+					}
+					else {
+						instances.remove(this.instanceId);
+					}
+
+					String newHeartbeats =
+							instances.entrySet()
+									.stream()
+									.map(entry -> entry.getKey() + "=" + entry.getValue())
+									.collect(Collectors.joining(","));
+
+					boolean updated;
+					if (newHeartbeats.isEmpty()) {
+						// There is no conditional remove: a concurrently registered instance
+						// is going to be registered again with its next heartbeat
+						if (heartbeats != null) {
+							store.remove(heartbeatsKey);
+						}
+						updated = true;
+					}
+					else {
+						updated =
+								heartbeats == null
+										? store.putIfAbsent(heartbeatsKey, newHeartbeats) == null
+										: store.replace(heartbeatsKey, heartbeats, newHeartbeats);
+					}
+
+					if (updated) {
+						return Math.max(1, instances.size());
+					}
+				}
+				catch (Exception e) {
+					logger.error("Error during updating heartbeat for [" + heartbeatsKey + "]", e);
+					break;
+				}
+			}
+
+			return this.liveInstances;
+		}
+
 		@Override
 		public boolean isLongLived() {
 			return true;
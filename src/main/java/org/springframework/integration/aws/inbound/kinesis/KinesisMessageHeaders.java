@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.util.Map;
+
+import org.springframework.integration.aws.support.AwsHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * The {@link MessageHeaders} for a Kinesis record created directly from the per-shard
+ * constant headers and the record attributes, without an intermediate
+ * {@link org.springframework.messaging.support.MessageHeaderAccessor} and its headers map.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class KinesisMessageHeaders extends MessageHeaders {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Create headers for the record.
+	 * @param shardHeaders the headers which are the same for all the records of the shard.
+	 * @param record the record to populate headers from.
+	 * @param embeddedHeaders the headers extracted from the record data; copied only if absent.
+	 */
+	KinesisMessageHeaders(Map<String, Object> shardHeaders, Record record, Map<String, Object> embeddedHeaders) {
+		super(shardHeaders);
+		Map<String, Object> headers = getRawHeaders();
+		headers.put(AwsHeaders.RECEIVED_PARTITION_KEY, record.getPartitionKey());
+		headers.put(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, record.getSequenceNumber());
+		if (record instanceof DeaggregatedRecord) {
+			headers.put(AwsHeaders.RECEIVED_SUB_SEQUENCE_NUMBER, ((DeaggregatedRecord) record).getSubSequenceNumber());
+		}
+		if (embeddedHeaders != null) {
+			for (Map.Entry<String, Object> entry : embeddedHeaders.entrySet()) {
+				String key = entry.getKey();
+				if (!ID.equals(key) && !TIMESTAMP.equals(key)) {
+					headers.putIfAbsent(key, entry.getValue());
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The message payload for a Kinesis record which is converted with the adapter's converter
+ * only on the first {@link #get()} call; the result is cached for subsequent calls.
+ * <p>
+ * Emitted by the Kinesis inbound channel adapters with the {@code lazyPayload} option
+ * to avoid the deserialization cost for messages which are discarded downstream
+ * by their headers only.
+ * Any conversion exception is thrown from the {@link #get()} to the caller.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public final class LazyPayload implements Supplier<Object> {
+
+	private final Object rawData;
+
+	private final Function<Object, Object> converter;
+
+	private volatile boolean converted;
+
+	private Object payload;
+
+	/**
+	 * Create an instance for the raw record data.
+	 * @param rawData the {@link ByteBuffer} or {@code byte[]} to convert.
+	 * @param converter the function to convert the raw data.
+	 */
+	LazyPayload(Object rawData, Function<Object, Object> converter) {
+		this.rawData = rawData instanceof ByteBuffer ? ((ByteBuffer) rawData).duplicate() : rawData;
+		this.converter = converter;
+	}
+
+	/**
+	 * Return the converted payload, converting the raw data on the first call.
+	 * @return the converted payload.
+	 */
+	@Override
+	public Object get() {
+		if (!this.converted) {
+			synchronized (this) {
+				if (!this.converted) {
+					this.payload = this.converter.apply(this.rawData);
+					this.converted = true;
+				}
+			}
+		}
+		return this.payload;
+	}
+
+	/**
+	 * Return a read-only view of the raw data, e.g. to filter messages by a bytes prefix
+	 * without conversion.
+	 * @return the raw data.
+	 */
+	public ByteBuffer getRawData() {
+		ByteBuffer buffer =
+				this.rawData instanceof ByteBuffer
+						? (ByteBuffer) this.rawData
+						: ByteBuffer.wrap((byte[]) this.rawData);
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Return true if the raw data has been already converted.
+	 * @return true if the payload has been converted.
+	 */
+	public boolean isConverted() {
+		return this.converted;
+	}
+
+	@Override
+	public String toString() {
+		return "LazyPayload{" +
+				(this.converted ? "payload=" + this.payload : "rawData=" + this.rawData) +
+				'}';
+	}
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Extracts user records from the Kinesis records aggregated by the Kinesis Producer Library.
+ * <p>
+ * The aggregated record data is the {@code 0xF3899AC2} magic number, the protobuf-encoded
+ * {@code AggregatedRecord} message and its MD5 digest.
+ * The protobuf message is parsed directly from the record data without generated classes
+ * and the user records data are the slices of the original buffer.
+ * <p>
+ * The records which don't start with the magic number or have a mismatching digest
+ * are not aggregated and returned as is.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class RecordDeaggregator {
+
+	private static final Log logger = LogFactory.getLog(RecordDeaggregator.class);
+
+	private static final byte[] AGGREGATED_RECORD_MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private static final int WIRE_TYPE_VARINT = 0;
+
+	private static final int WIRE_TYPE_FIXED64 = 1;
+
+	private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+	private static final int WIRE_TYPE_FIXED32 = 5;
+
+	private RecordDeaggregator() {
+	}
+
+	/**
+	 * Replace the aggregated records in the list with their user records.
+	 * @param records the records to de-aggregate.
+	 * @return the list of user records; the same list if there are no aggregated records.
+	 */
+	static List<Record> deaggregate(List<Record> records) {
+		List<Record> result = null;
+		for (int i = 0; i < records.size(); i++) {
+			Record record = records.get(i);
+			List<DeaggregatedRecord> userRecords = deaggregate(record);
+			if (userRecords != null) {
+				if (result == null) {
+					result = new ArrayList<>(records.subList(0, i));
+				}
+				result.addAll(userRecords);
+			}
+			else if (result != null) {
+				result.add(record);
+			}
+		}
+		return result != null ? result : records;
+	}
+
+	/**
+	 * Extract the user records from the aggregated record.
+	 * @param record the record to de-aggregate.
+	 * @return the user records or null if the record is not aggregated.
+	 */
+	static List<DeaggregatedRecord> deaggregate(Record record) {
+		ByteBuffer data = record.getData().duplicate();
+		int start = data.position();
+		int messageLength = data.remaining() - AGGREGATED_RECORD_MAGIC.length - DIGEST_LENGTH;
+		if (messageLength < 0) {
+			return null;
+		}
+		for (int i = 0; i < AGGREGATED_RECORD_MAGIC.length; i++) {
+			if (data.get(start + i) != AGGREGATED_RECORD_MAGIC[i]) {
+				return null;
+			}
+		}
+
+		int messageStart = start + AGGREGATED_RECORD_MAGIC.length;
+		int messageEnd = messageStart + messageLength;
+
+		if (!isDigestValid(data, messageStart, messageEnd)) {
+			if (logger.isWarnEnabled()) {
+				logger.warn("The digest doesn't match for aggregated record [" + record.getSequenceNumber()
+						+ "]. Treat it as not aggregated.");
+			}
+			return null;
+		}
+
+		try {
+			return parseAggregatedRecord(record, data, messageStart, messageEnd);
+		}
+		catch (RuntimeException e) {
+			logger.warn("Could not parse aggregated record [" + record.getSequenceNumber()
+					+ "]. Treat it as not aggregated.", e);
+			return null;
+		}
+	}
+
+	private static boolean isDigestValid(ByteBuffer data, int messageStart, int messageEnd) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer message = data.duplicate();
+		message.limit(messageEnd).position(messageStart);
+		md5.update(message);
+		byte[] digest = md5.digest();
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			if (data.get(messageEnd + i) != digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<DeaggregatedRecord> parseAggregatedRecord(Record record, ByteBuffer data,
+			int messageStart, int messageEnd) {
+
+		List<String> partitionKeys = new ArrayList<>();
+		List<String> explicitHashKeys = new ArrayList<>();
+		List<int[]> userRecordBounds = new ArrayList<>();
+
+		ProtobufReader reader = new ProtobufReader(data, messageStart, messageEnd);
+		while (reader.hasRemaining()) {
+			int tag = reader.readTag();
+			int field = tag >>> 3;
+			int wireType = tag & 0x7;
+			if (field == 1 && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+				partitionKeys.add(reader.readString());
+			}
+			else if (field == 2 && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+				explicitHashKeys.add(reader.readString());
+			}
+			else if (field == 3 && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+				int length = reader.readLength();
+				userRecordBounds.add(new int[] { reader.position, reader.position + length });
+				reader.skipBytes(length);
+			}
+			else {
+				reader.skipField(wireType);
+			}
+		}
+
+		List<DeaggregatedRecord> userRecords = new ArrayList<>(userRecordBounds.size());
+		for (int i = 0; i < userRecordBounds.size(); i++) {
+			int[] bounds = userRecordBounds.get(i);
+			userRecords.add(parseUserRecord(record, data, bounds[0], bounds[1], partitionKeys, explicitHashKeys,
+					i, i == userRecordBounds.size() - 1));
+		}
+		return userRecords;
+	}
+
+	private static DeaggregatedRecord parseUserRecord(Record record, ByteBuffer data, int start, int end,
+			List<String> partitionKeys, List<String> explicitHashKeys, int subSequenceNumber, boolean last) {
+
+		long partitionKeyIndex = -1;
+		long explicitHashKeyIndex = -1;
+		ByteBuffer userData = null;
+
+		ProtobufReader reader = new ProtobufReader(data, start, end);
+		while (reader.hasRemaining()) {
+			int tag = reader.readTag();
+			int field = tag >>> 3;
+			int wireType = tag & 0x7;
+			if (field == 1 && wireType == WIRE_TYPE_VARINT) {
+				partitionKeyIndex = reader.readVarint();
+			}
+			else if (field == 2 && wireType == WIRE_TYPE_VARINT) {
+				explicitHashKeyIndex = reader.readVarint();
+			}
+			else if (field == 3 && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+				userData = reader.readBytes();
+			}
+			else {
+				// Tags (field 4) are not exposed
+				reader.skipField(wireType);
+			}
+		}
+
+		if (partitionKeyIndex < 0 || partitionKeyIndex >= partitionKeys.size() || userData == null) {
+			throw new IllegalStateException("Invalid user record #" + subSequenceNumber
+					+ ": partition key index " + partitionKeyIndex + " of " + partitionKeys.size()
+					+ (userData == null ? ", no data" : ""));
+		}
+
+		String explicitHashKey =
+				explicitHashKeyIndex >= 0 && explicitHashKeyIndex < explicitHashKeys.size()
+						? explicitHashKeys.get((int) explicitHashKeyIndex)
+						: null;
+
+		return new DeaggregatedRecord(record, partitionKeys.get((int) partitionKeyIndex), explicitHashKey,
+				userData, subSequenceNumber, last);
+	}
+
+	/**
+	 * A minimal reader for the protobuf wire format over a region of a {@link ByteBuffer}.
+	 */
+	private static final class ProtobufReader {
+
+		private final ByteBuffer data;
+
+		private final int limit;
+
+		private int position;
+
+		ProtobufReader(ByteBuffer data, int position, int limit) {
+			this.data = data;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		boolean hasRemaining() {
+			return this.position < this.limit;
+		}
+
+		int readTag() {
+			return (int) readVarint();
+		}
+
+		long readVarint() {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IllegalStateException("Malformed varint at " + this.position);
+		}
+
+		int readLength() {
+			long length = readVarint();
+			if (length < 0 || length > this.limit - this.position) {
+				throw new IllegalStateException("Invalid length " + length + " at " + this.position);
+			}
+			return (int) length;
+		}
+
+		String readString() {
+			int length = readLength();
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = this.data.get(this.position + i);
+			}
+			this.position += length;
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		ByteBuffer readBytes() {
+			int length = readLength();
+			ByteBuffer slice = this.data.duplicate();
+			slice.limit(this.position + length).position(this.position);
+			this.position += length;
+			return slice.slice();
+		}
+
+		void skipBytes(int length) {
+			if (length > this.limit - this.position) {
+				throw new IllegalStateException("Unexpected end of message at " + this.position);
+			}
+			this.position += length;
+		}
+
+		void skipField(int wireType) {
+			switch (wireType) {
+				case WIRE_TYPE_VARINT:
+					readVarint();
+					break;
+				case WIRE_TYPE_FIXED64:
+					skipBytes(8);
+					break;
+				case WIRE_TYPE_LENGTH_DELIMITED:
+					skipBytes(readLength());
+					break;
+				case WIRE_TYPE_FIXED32:
+					skipBytes(4);
+					break;
+				default:
+					throw new IllegalStateException("Unsupported wire type " + wireType + " at " + this.position);
+			}
+		}
+
+		private byte readByte() {
+			if (this.position >= this.limit) {
+				throw new IllegalStateException("Unexpected end of message at " + this.position);
+			}
+			return this.data.get(this.position++);
+		}
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+/**
+ * Utilities for Kinesis sequence numbers represented as decimal strings
+ * (up to 128 bits in practice).
+ * <p>
+ * The comparison is performed directly on the characters without any
+ * {@link java.math.BigInteger} allocation.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+final class SequenceNumbers {
+
+	private SequenceNumbers() {
+	}
+
+	/**
+	 * Compare two non-negative decimal sequence numbers numerically.
+	 * @param first the first sequence number.
+	 * @param second the second sequence number.
+	 * @return a negative integer, zero, or a positive integer as the first sequence number
+	 * is less than, equal to, or greater than the second.
+	 * @throws NumberFormatException if any of the arguments is not a decimal number.
+	 */
+	static int compare(String first, String second) {
+		int firstStart = significantStart(first);
+		int secondStart = significantStart(second);
+
+		int lengthDiff = (first.length() - firstStart) - (second.length() - secondStart);
+		if (lengthDiff != 0) {
+			return lengthDiff;
+		}
+
+		int offset = secondStart - firstStart;
+		for (int i = firstStart; i < first.length(); i++) {
+			int diff = first.charAt(i) - second.charAt(i + offset);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Check if the first sequence number is numerically less than the second.
+	 * @param first the first sequence number.
+	 * @param second the second sequence number.
+	 * @return true if the first sequence number is less than the second.
+	 */
+	static boolean isBefore(String first, String second) {
+		return compare(first, second) < 0;
+	}
+
+	private static int significantStart(String sequenceNumber) {
+		int length = sequenceNumber.length();
+		if (length == 0) {
+			throw new NumberFormatException("Zero length sequence number");
+		}
+
+		int start = -1;
+		for (int i = 0; i < length; i++) {
+			char c = sequenceNumber.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("For sequence number: \"" + sequenceNumber + "\"");
+			}
+			if (start < 0 && c != '0') {
+				start = i;
+			}
+		}
+
+		// All zeros - keep the last one as significant
+		return start < 0 ? length - 1 : start;
+	}
+
+}
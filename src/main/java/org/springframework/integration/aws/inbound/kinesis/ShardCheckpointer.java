@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,8 +16,6 @@
 
 package org.springframework.integration.aws.inbound.kinesis;
 
-import java.math.BigInteger;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -30,6 +28,13 @@ import org.springframework.integration.metadata.MetadataStore;
  * <p>
  * The instances of this class is created by the {@link KinesisMessageDrivenChannelAdapter}
  * for each {@code ShardConsumer}.
+ * <p>
+ * The last stored checkpoint is cached, so a regular checkpoint is just one conditional
+ * {@link ConcurrentMetadataStore#replace} call, unless the store has been modified externally.
+ * A sequence number which is not newer than the cached one is verified against the store.
+ * <p>
+ * In the write-behind mode the checkpoints are only accepted in memory and coalesced
+ * into a single conditional write performed by the {@link #flush()}.
  *
  * @author Artem Bilan
  *
@@ -43,13 +48,30 @@ class ShardCheckpointer implements Checkpointer {
 
 	private final String key;
 
+	private final boolean writeBehind;
+
+	private final Object flushMonitor = new Object();
+
 	private volatile String lastCheckpointValue;
 
+	private volatile String storedCheckpoint;
+
+	private volatile String pendingCheckpoint;
+
+	private volatile long pendingSince;
+
 	private volatile boolean active = true;
 
+	private volatile String shardEndSequenceNumber;
+
 	ShardCheckpointer(ConcurrentMetadataStore checkpointStore, String key) {
+		this(checkpointStore, key, false);
+	}
+
+	ShardCheckpointer(ConcurrentMetadataStore checkpointStore, String key, boolean writeBehind) {
 		this.checkpointStore = checkpointStore;
 		this.key = key;
+		this.writeBehind = writeBehind;
 	}
 
 	@Override
@@ -57,18 +79,29 @@ class ShardCheckpointer implements Checkpointer {
 		return checkpoint(this.lastCheckpointValue);
 	}
 
+	/**
+	 * Checkpoint the provided sequence number, if it is bigger than already stored.
+	 * In the write-behind mode the sequence number is only accepted for the next {@link #flush()}.
+	 * @param sequenceNumber the sequence number to checkpoint.
+	 * @return true if checkpoint performed (or accepted in the write-behind mode); false otherwise.
+	 */
 	@Override
 	public boolean checkpoint(String sequenceNumber) {
+		String shardEnd = this.shardEndSequenceNumber;
+		if (shardEnd != null && sequenceNumber != null) {
+			String lastRecordSequence = this.lastCheckpointValue;
+			if (lastRecordSequence == null || !SequenceNumbers.isBefore(sequenceNumber, lastRecordSequence)) {
+				// The last record of the closed shard: mark the shard as fully processed
+				sequenceNumber = shardEnd;
+			}
+		}
+
 		if (this.active) {
-			String existingSequence = getCheckpoint();
-			if (existingSequence == null ||
-					new BigInteger(existingSequence).compareTo(new BigInteger(sequenceNumber)) < 0) {
-				if (existingSequence != null) {
-					return this.checkpointStore.replace(this.key, existingSequence, sequenceNumber);
-				}
-				else {
-					return this.checkpointStore.putIfAbsent(this.key, sequenceNumber) == null;
-				}
+			if (this.writeBehind) {
+				return acceptCheckpoint(sequenceNumber);
+			}
+			else {
+				return storeCheckpoint(sequenceNumber);
 			}
 		}
 		else {
@@ -80,20 +113,129 @@ class ShardCheckpointer implements Checkpointer {
 		return false;
 	}
 
+	private synchronized boolean acceptCheckpoint(String sequenceNumber) {
+		String currentSequence = this.pendingCheckpoint != null ? this.pendingCheckpoint : this.storedCheckpoint;
+		if (currentSequence == null || SequenceNumbers.isBefore(currentSequence, sequenceNumber)) {
+
+			if (this.pendingCheckpoint == null) {
+				this.pendingSince = System.currentTimeMillis();
+			}
+			this.pendingCheckpoint = sequenceNumber;
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean storeCheckpoint(String sequenceNumber) {
+		String existingSequence = this.storedCheckpoint;
+		if (existingSequence != null
+				&& SequenceNumbers.isBefore(existingSequence, sequenceNumber)
+				&& this.checkpointStore.replace(this.key, existingSequence, sequenceNumber)) {
+
+			this.storedCheckpoint = sequenceNumber;
+			return true;
+		}
+
+		// The cached value might be stale, e.g. the checkpoint has been rewound by another instance:
+		// decide by the actual store state
+
+		existingSequence = getCheckpoint();
+		if (existingSequence == null || SequenceNumbers.isBefore(existingSequence, sequenceNumber)) {
+
+			boolean stored;
+			if (existingSequence != null) {
+				stored = this.checkpointStore.replace(this.key, existingSequence, sequenceNumber);
+			}
+			else {
+				stored = this.checkpointStore.putIfAbsent(this.key, sequenceNumber) == null;
+			}
+			if (stored) {
+				this.storedCheckpoint = sequenceNumber;
+			}
+			return stored;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Persist the pending checkpoint accepted in the write-behind mode (if any).
+	 * @return true if the checkpoint has been stored.
+	 */
+	boolean flush() {
+		synchronized (this.flushMonitor) {
+			String pending = this.pendingCheckpoint;
+			if (pending == null) {
+				return false;
+			}
+
+			boolean stored = storeCheckpoint(pending);
+
+			synchronized (this) {
+				if (pending.equals(this.pendingCheckpoint)) {
+					this.pendingCheckpoint = null;
+				}
+				else {
+					// A newer checkpoint has been accepted during storing
+					this.pendingSince = System.currentTimeMillis();
+				}
+			}
+
+			return stored;
+		}
+	}
+
+	/**
+	 * Mark the shard as exhausted.
+	 * The checkpoint for the last received record of the shard is replaced with the
+	 * shard ending sequence number, so the shard can be recognized as fully processed.
+	 * If all the received records are already checkpointed, the ending sequence number
+	 * is checkpointed immediately.
+	 * @param endingSequenceNumber the ending sequence number of the closed shard.
+	 */
+	void shardEnded(String endingSequenceNumber) {
+		if (endingSequenceNumber != null) {
+			this.shardEndSequenceNumber = endingSequenceNumber;
+			String lastRecordSequence = this.lastCheckpointValue;
+			String currentSequence = this.pendingCheckpoint != null ? this.pendingCheckpoint : this.storedCheckpoint;
+			if (lastRecordSequence == null
+					|| (currentSequence != null && !SequenceNumbers.isBefore(currentSequence, lastRecordSequence))) {
+
+				checkpoint(endingSequenceNumber);
+			}
+		}
+	}
+
 	void setHighestSequence(String highestSequence) {
 		this.lastCheckpointValue = highestSequence;
 	}
 
 	String getCheckpoint() {
-		return this.checkpointStore.get(this.key);
+		String checkpoint = this.checkpointStore.get(this.key);
+		this.storedCheckpoint = checkpoint;
+		return checkpoint;
 	}
 
 	String getLastCheckpointValue() {
 		return this.lastCheckpointValue;
 	}
 
+	/**
+	 * Return the time in milliseconds the oldest not yet persisted checkpoint
+	 * is waiting for the {@link #flush()}.
+	 * @return the checkpoint lag in milliseconds or {@code 0} if all accepted checkpoints are stored.
+	 */
+	long getCheckpointLag() {
+		return this.pendingCheckpoint != null ? System.currentTimeMillis() - this.pendingSince : 0;
+	}
+
 	void remove() {
+		synchronized (this) {
+			this.pendingCheckpoint = null;
+		}
 		this.checkpointStore.remove(this.key);
+		this.storedCheckpoint = null;
 	}
 
 	void close() {
@@ -105,6 +247,7 @@ class ShardCheckpointer implements Checkpointer {
 		return "ShardCheckpointer{" +
 				"key='" + this.key + '\'' +
 				", lastCheckpointValue='" + this.lastCheckpointValue + '\'' +
+				", storedCheckpoint='" + this.storedCheckpoint + '\'' +
 				'}';
 	}
 
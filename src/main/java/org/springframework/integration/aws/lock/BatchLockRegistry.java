@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.lock;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.springframework.integration.support.locks.LockRegistry;
+
+/**
+ * A {@link LockRegistry} extension to acquire several locks in one call,
+ * e.g. with concurrent requests to the target store instead of one by one.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public interface BatchLockRegistry extends LockRegistry {
+
+	/**
+	 * Try to acquire the locks for the provided keys without waiting.
+	 * The acquired locks are held by the current thread, exactly as after
+	 * a successful {@link Lock#tryLock()} for each of them,
+	 * and have to be unlocked from this thread.
+	 * @param lockKeys the keys of the locks to acquire.
+	 * @return the map of the keys to the acquired locks; keys which locks
+	 * could not be acquired are not present in the map.
+	 */
+	Map<String, Lock> tryLock(Collection<String> lockKeys);
+
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 the original author or authors.
+ * Copyright 2018-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,9 +17,12 @@
 package org.springframework.integration.aws.lock;
 
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -58,13 +61,17 @@ import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
  * The algorithm is based on the {@link AmazonDynamoDBLockClient}.
  * <p>
  * Can create table in DynamoDB if an external {@link AmazonDynamoDBLockClient} is not provided.
+ * <p>
+ * Implements {@link BatchLockRegistry} performing the conditional writes for several
+ * locks concurrently on the provided {@link #setExecutor executor}.
  *
  * @author Artem Bilan
  * @author Karl Lessard
  *
  * @since 2.0
  */
-public class DynamoDbLockRegistry implements ExpirableLockRegistry, InitializingBean, DisposableBean {
+public class DynamoDbLockRegistry implements ExpirableLockRegistry, BatchLockRegistry, InitializingBean,
+		DisposableBean {
 
 	/**
 	 * The {@value DEFAULT_TABLE_NAME} default name for the locks table in the DynamoDB.
@@ -321,6 +328,45 @@ public class DynamoDbLockRegistry implements ExpirableLockRegistry, Initializing
 		return this.locks.computeIfAbsent((String) lockKey, DynamoDbLock::new);
 	}
 
+	/**
+	 * Try to acquire the locks for the provided keys without waiting.
+	 * The DynamoDB requests for the locks not held by the current thread yet are performed
+	 * concurrently on the {@link #setExecutor executor}, so the time to acquire many locks
+	 * is close to a single request round trip; the executor should allow enough concurrency for that.
+	 * @param lockKeys the keys of the locks to acquire.
+	 * @return the map of the keys to the acquired locks.
+	 * @since 2.2
+	 */
+	@Override
+	public Map<String, Lock> tryLock(Collection<String> lockKeys) {
+		awaitForActive();
+
+		Map<DynamoDbLock, CompletableFuture<Boolean>> attempts = new LinkedHashMap<>();
+		for (String lockKey : lockKeys) {
+			DynamoDbLock lock = (DynamoDbLock) obtain(lockKey);
+			// The local lock is held by the calling thread to make the DynamoDB lock unlockable from there
+			if (lock.delegate.tryLock()) {
+				lock.acquireLockOptionsBuilder
+						.withAdditionalTimeToWaitForLock(0L)
+						.withRefreshPeriod(this.refreshPeriod);
+				attempts.put(lock, CompletableFuture.supplyAsync(lock::doLockQuietly, this.executor));
+			}
+		}
+
+		Map<String, Lock> acquired = new LinkedHashMap<>();
+		for (Map.Entry<DynamoDbLock, CompletableFuture<Boolean>> attempt : attempts.entrySet()) {
+			DynamoDbLock lock = attempt.getKey();
+			if (attempt.getValue().join()) {
+				acquired.put(lock.key, lock);
+			}
+			else {
+				lock.delegate.unlock();
+			}
+		}
+
+		return acquired;
+	}
+
 	@Override
 	public void expireUnusedOlderThan(long age) {
 		Iterator<Map.Entry<String, DynamoDbLock>> iterator = this.locks.entrySet().iterator();
@@ -515,6 +561,20 @@ public class DynamoDbLockRegistry implements ExpirableLockRegistry, Initializing
 			return acquired;
 		}
 
+		private boolean doLockQuietly() {
+			try {
+				return doLock();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch (Exception e) {
+				logger.error("Failed to lock at " + this.key, e);
+				return false;
+			}
+		}
+
 		@Override
 		public void unlock() {
 			if (!this.delegate.isHeldByCurrentThread()) {
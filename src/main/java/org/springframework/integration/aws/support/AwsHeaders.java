@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -85,6 +85,13 @@ public abstract class AwsHeaders {
 	 */
 	public static final String RECEIVED_SEQUENCE_NUMBER = PREFIX + "receivedSequenceNumber";
 
+	/**
+	 * The {@value RECEIVED_SUB_SEQUENCE_NUMBER} header for the position of the user record
+	 * in the KPL-aggregated Kinesis record.
+	 * @since 2.2
+	 */
+	public static final String RECEIVED_SUB_SEQUENCE_NUMBER = PREFIX + "receivedSubSequenceNumber";
+
 	/**
 	 * The {@value STREAM} header for sending data to Kinesis.
 	 */
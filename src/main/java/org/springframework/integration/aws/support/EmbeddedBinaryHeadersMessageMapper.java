@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.integration.mapping.InboundMessageMapper;
+import org.springframework.integration.mapping.OutboundMessageMapper;
+import org.springframework.integration.support.MutableMessage;
+import org.springframework.integration.support.utils.PatternMatchUtils;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.Assert;
+import org.springframework.util.MimeType;
+
+/**
+ * The {@link InboundMessageMapper} and {@link OutboundMessageMapper} to embed message headers
+ * into the {@code byte[]} payload in a compact binary format.
+ * An alternative to the {@link org.springframework.integration.support.json.EmbeddedJsonHeadersMessageMapper}
+ * for the Kinesis outbound channel adapters and inbound channel adapters,
+ * which avoids the JSON encoding of the headers.
+ * <p>
+ * The format is: the {@code 0xFE} marker, the format version, the number of headers (varint),
+ * the headers and the payload bytes as is until the end of data.
+ * Each header is a name (an index in the table of common header names or a length-prefixed UTF-8 string),
+ * a value type byte and a value.
+ * The {@link String}, {@link Long}, {@link Integer}, {@link Boolean}, {@link Double}, {@link UUID},
+ * {@link MimeType} and {@code byte[]} header values are supported; the headers of other types are skipped.
+ * <p>
+ * The data not starting with the marker is returned by the {@link #toMessage(byte[])} as a payload
+ * without headers.
+ *
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class EmbeddedBinaryHeadersMessageMapper implements InboundMessageMapper<byte[]>,
+		OutboundMessageMapper<byte[]> {
+
+	private static final Log logger = LogFactory.getLog(EmbeddedBinaryHeadersMessageMapper.class);
+
+	private static final byte MARKER = (byte) 0xFE;
+
+	private static final byte VERSION = 1;
+
+	/**
+	 * The interned header names; encoded by their index.
+	 * The order is a part of the format and must not be changed; new names can be added only to the end.
+	 */
+	private static final String[] COMMON_HEADER_NAMES = {
+			MessageHeaders.ID,
+			MessageHeaders.TIMESTAMP,
+			MessageHeaders.CONTENT_TYPE,
+			"correlationId",
+			"sequenceNumber",
+			"sequenceSize",
+			"priority",
+			"expirationDate",
+			AwsHeaders.PARTITION_KEY,
+			AwsHeaders.SEQUENCE_NUMBER
+	};
+
+	private static final byte TYPE_STRING = 1;
+
+	private static final byte TYPE_LONG = 2;
+
+	private static final byte TYPE_INTEGER = 3;
+
+	private static final byte TYPE_BOOLEAN = 4;
+
+	private static final byte TYPE_DOUBLE = 5;
+
+	private static final byte TYPE_UUID = 6;
+
+	private static final byte TYPE_MIME_TYPE = 7;
+
+	private static final byte TYPE_BYTES = 8;
+
+	private static final Map<String, Integer> COMMON_HEADER_INDEXES = new HashMap<>();
+
+	static {
+		for (int i = 0; i < COMMON_HEADER_NAMES.length; i++) {
+			COMMON_HEADER_INDEXES.put(COMMON_HEADER_NAMES[i], i);
+		}
+	}
+
+	private final String[] headerNames;
+
+	/**
+	 * Construct an instance to embed all the supported headers.
+	 */
+	public EmbeddedBinaryHeadersMessageMapper() {
+		this("*");
+	}
+
+	/**
+	 * Construct an instance to embed the headers matching the provided patterns.
+	 * Supports simple wildcard patterns (e.g. "foo*" or "*foo") and negated ('!') patterns.
+	 * First match wins (positive or negative).
+	 * @param headerNames the header names or patterns to embed.
+	 */
+	public EmbeddedBinaryHeadersMessageMapper(String... headerNames) {
+		Assert.notEmpty(headerNames, "'headerNames' must not be empty.");
+		Assert.noNullElements(headerNames, "'headerNames' must not contains null elements.");
+		this.headerNames = Arrays.copyOf(headerNames, headerNames.length);
+	}
+
+	@Override
+	public byte[] fromMessage(Message<?> message) {
+		Object payload = message.getPayload();
+		Assert.isInstanceOf(byte[].class, payload, "The payload must be a 'byte[]'");
+		byte[] payloadBytes = (byte[]) payload;
+
+		Writer writer = new Writer();
+		int count = 0;
+		for (Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+			String name = header.getKey();
+			Object value = header.getValue();
+			if (value != null && Boolean.TRUE.equals(PatternMatchUtils.smartMatch(name, this.headerNames))) {
+				if (writeHeader(writer, name, value)) {
+					count++;
+				}
+			}
+		}
+
+		Writer prefix = new Writer();
+		prefix.writeByte(MARKER);
+		prefix.writeByte(VERSION);
+		prefix.writeVarint(count);
+
+		// Allocate the result once and append the headers and the payload into it
+		byte[] result = new byte[prefix.size + writer.size + payloadBytes.length];
+		System.arraycopy(prefix.buffer, 0, result, 0, prefix.size);
+		System.arraycopy(writer.buffer, 0, result, prefix.size, writer.size);
+		System.arraycopy(payloadBytes, 0, result, prefix.size + writer.size, payloadBytes.length);
+		return result;
+	}
+
+	private static boolean writeHeader(Writer writer, String name, Object value) {
+		int start = writer.size;
+		Integer index = COMMON_HEADER_INDEXES.get(name);
+		if (index != null) {
+			writer.writeVarint((index << 1) | 1);
+		}
+		else {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			writer.writeVarint(nameBytes.length << 1);
+			writer.writeBytes(nameBytes);
+		}
+
+		if (value instanceof String) {
+			writer.writeByte(TYPE_STRING);
+			writer.writeLengthPrefixed(((String) value).getBytes(StandardCharsets.UTF_8));
+		}
+		else if (value instanceof Long) {
+			writer.writeByte(TYPE_LONG);
+			writer.writeZigZag((Long) value);
+		}
+		else if (value instanceof Integer) {
+			writer.writeByte(TYPE_INTEGER);
+			writer.writeZigZag((Integer) value);
+		}
+		else if (value instanceof Boolean) {
+			writer.writeByte(TYPE_BOOLEAN);
+			writer.writeByte((byte) ((Boolean) value ? 1 : 0));
+		}
+		else if (value instanceof Double) {
+			writer.writeByte(TYPE_DOUBLE);
+			writer.writeFixed64(Double.doubleToLongBits((Double) value));
+		}
+		else if (value instanceof UUID) {
+			writer.writeByte(TYPE_UUID);
+			writer.writeFixed64(((UUID) value).getMostSignificantBits());
+			writer.writeFixed64(((UUID) value).getLeastSignificantBits());
+		}
+		else if (value instanceof MimeType) {
+			writer.writeByte(TYPE_MIME_TYPE);
+			writer.writeLengthPrefixed(value.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		else if (value instanceof byte[]) {
+			writer.writeByte(TYPE_BYTES);
+			writer.writeLengthPrefixed((byte[]) value);
+		}
+		else {
+			// Roll back the header name
+			writer.size = start;
+			if (logger.isDebugEnabled()) {
+				logger.debug("The header '" + name + "' of type '" + value.getClass().getName()
+						+ "' is not supported for embedding. Skipped.");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Message<?> toMessage(byte[] bytes) {
+		return toMessage(bytes, null);
+	}
+
+	@Override
+	public Message<?> toMessage(byte[] bytes, Map<String, Object> additionalHeaders) {
+		if (bytes.length < 2 || bytes[0] != MARKER) {
+			return additionalHeaders != null
+					? new MutableMessage<>(bytes, additionalHeaders)
+					: new MutableMessage<>(bytes);
+		}
+		Assert.state(bytes[1] == VERSION, () -> "Unsupported embedded headers format version: " + bytes[1]);
+
+		Reader reader = new Reader(bytes, 2);
+		long count = reader.readVarint();
+		// Each header takes at least two bytes: the name tag and the value type
+		Assert.state(count >= 0 && count <= (bytes.length - reader.position) / 2,
+				() -> "Invalid embedded headers count: " + count);
+		Map<String, Object> headers =
+				new HashMap<>((int) count + (additionalHeaders != null ? additionalHeaders.size() : 0));
+		for (int i = 0; i < count; i++) {
+			int nameTag = (int) reader.readVarint();
+			String name;
+			if ((nameTag & 1) == 1) {
+				int index = nameTag >>> 1;
+				Assert.state(index < COMMON_HEADER_NAMES.length, () -> "Unknown common header index: " + index);
+				name = COMMON_HEADER_NAMES[index];
+			}
+			else {
+				name = new String(reader.readBytes(nameTag >>> 1), StandardCharsets.UTF_8);
+			}
+			headers.put(name, readValue(reader));
+		}
+
+		if (additionalHeaders != null) {
+			headers.putAll(additionalHeaders);
+		}
+
+		byte[] payload = Arrays.copyOfRange(bytes, reader.position, bytes.length);
+		return new MutableMessage<>(payload, headers);
+	}
+
+	private static Object readValue(Reader reader) {
+		byte type = reader.readByte();
+		switch (type) {
+			case TYPE_STRING:
+				return new String(reader.readLengthPrefixed(), StandardCharsets.UTF_8);
+			case TYPE_LONG:
+				return reader.readZigZag();
+			case TYPE_INTEGER:
+				return (int) reader.readZigZag();
+			case TYPE_BOOLEAN:
+				return reader.readByte() != 0;
+			case TYPE_DOUBLE:
+				return Double.longBitsToDouble(reader.readFixed64());
+			case TYPE_UUID:
+				return new UUID(reader.readFixed64(), reader.readFixed64());
+			case TYPE_MIME_TYPE:
+				return MimeType.valueOf(new String(reader.readLengthPrefixed(), StandardCharsets.UTF_8));
+			case TYPE_BYTES:
+				return reader.readLengthPrefixed();
+			default:
+				throw new IllegalStateException("Unsupported embedded header type: " + type);
+		}
+	}
+
+	/**
+	 * A minimal growable buffer for the headers encoding.
+	 */
+	private static final class Writer {
+
+		private byte[] buffer = new byte[64];
+
+		private int size;
+
+		void writeByte(byte b) {
+			ensureCapacity(1);
+			this.buffer[this.size++] = b;
+		}
+
+		void writeBytes(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+			this.size += bytes.length;
+		}
+
+		void writeLengthPrefixed(byte[] bytes) {
+			writeVarint(bytes.length);
+			writeBytes(bytes);
+		}
+
+		void writeVarint(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				this.buffer[this.size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		void writeZigZag(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeFixed64(long value) {
+			ensureCapacity(8);
+			ByteBuffer.wrap(this.buffer, this.size, 8).putLong(value);
+			this.size += 8;
+		}
+
+		private void ensureCapacity(int length) {
+			if (this.size + length > this.buffer.length) {
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length << 1, this.size + length));
+			}
+		}
+
+	}
+
+	/**
+	 * A reader over the embedded headers data.
+	 */
+	private static final class Reader {
+
+		private final byte[] data;
+
+		private int position;
+
+		Reader(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		byte readByte() {
+			Assert.state(this.position < this.data.length, "Unexpected end of embedded headers");
+			return this.data[this.position++];
+		}
+
+		byte[] readBytes(int length) {
+			Assert.state(length >= 0 && length <= this.data.length - this.position,
+					"Unexpected end of embedded headers");
+			byte[] bytes = Arrays.copyOfRange(this.data, this.position, this.position + length);
+			this.position += length;
+			return bytes;
+		}
+
+		byte[] readLengthPrefixed() {
+			return readBytes((int) readVarint());
+		}
+
+		long readVarint() {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IllegalStateException("Malformed varint in embedded headers");
+		}
+
+		long readZigZag() {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		long readFixed64() {
+			Assert.state(this.data.length - this.position >= 8, "Unexpected end of embedded headers");
+			long value = ByteBuffer.wrap(this.data, this.position, 8).getLong();
+			this.position += 8;
+			return value;
+		}
+
+	}
+
+}
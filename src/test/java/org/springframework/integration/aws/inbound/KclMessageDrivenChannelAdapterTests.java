@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.mockito.Mockito.mock;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.integration.aws.inbound.kinesis.KclMessageDrivenChannelAdapter;
+import org.springframework.integration.channel.NullChannel;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.test.util.TestUtils;
+import org.springframework.messaging.Message;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.coordinator.CoordinatorConfig;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.processor.ProcessorConfig;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.RetrievalConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConfig;
+import software.amazon.kinesis.retrieval.polling.PollingConfig;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class KclMessageDrivenChannelAdapterTests {
+
+	private static final String STREAM = "kclStream";
+
+	@Test
+	public void testFanOutRetrievalByDefault() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		adapter.setStreamInitialSequence(InitialPositionInStream.TRIM_HORIZON);
+		adapter.afterPropertiesSet();
+
+		RetrievalConfig retrievalConfig =
+				TestUtils.getPropertyValue(adapter, "scheduler.retrievalConfig", RetrievalConfig.class);
+		assertThat(retrievalConfig.retrievalSpecificConfig()).isInstanceOf(FanOutConfig.class);
+		FanOutConfig fanOutConfig = (FanOutConfig) retrievalConfig.retrievalSpecificConfig();
+		assertThat(fanOutConfig.streamName()).isEqualTo(STREAM);
+		assertThat(fanOutConfig.applicationName()).isEqualTo("testGroup");
+
+		// The configured instance is passed to the Scheduler, not a fresh one from the ConfigsBuilder
+		assertThat(retrievalConfig.initialPositionInStreamExtended().getInitialPositionInStream())
+				.isEqualTo(InitialPositionInStream.TRIM_HORIZON);
+	}
+
+	@Test
+	public void testPollingRetrieval() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		adapter.setFanOut(false);
+		adapter.setIdleBetweenPolls(500);
+		adapter.setConsumerBackoff(300);
+		adapter.afterPropertiesSet();
+
+		RetrievalConfig retrievalConfig =
+				TestUtils.getPropertyValue(adapter, "scheduler.retrievalConfig", RetrievalConfig.class);
+		assertThat(retrievalConfig.retrievalSpecificConfig()).isInstanceOf(PollingConfig.class);
+		PollingConfig pollingConfig = (PollingConfig) retrievalConfig.retrievalSpecificConfig();
+		assertThat(pollingConfig.streamName()).isEqualTo(STREAM);
+		assertThat(pollingConfig.idleTimeBetweenReadsInMillis()).isEqualTo(500);
+		assertThat(retrievalConfig.listShardsBackoffTimeInMillis()).isEqualTo(300);
+
+		CoordinatorConfig coordinatorConfig =
+				TestUtils.getPropertyValue(adapter, "scheduler.coordinatorConfig", CoordinatorConfig.class);
+		assertThat(coordinatorConfig.parentShardPollIntervalMillis()).isEqualTo(500);
+	}
+
+	@Test
+	public void testByteBufferConverter() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		QueueChannel outputChannel = new QueueChannel();
+		adapter.setOutputChannel(outputChannel);
+		adapter.setByteBufferConverter(buffer -> buffer);
+		adapter.afterPropertiesSet();
+
+		ByteBuffer data = ByteBuffer.wrap("foo".getBytes());
+		processRecord(adapter, data);
+
+		Message<?> message = outputChannel.receive(0);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isInstanceOf(ByteBuffer.class);
+		ByteBuffer payload = (ByteBuffer) message.getPayload();
+		// The converter is called with a read-only view of the record data
+		assertThat(payload.isReadOnly()).isTrue();
+		assertThat(payload).isEqualTo(data);
+	}
+
+	@Test
+	public void testArrayBackedRecordDataIsNotCopied() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		QueueChannel outputChannel = new QueueChannel();
+		adapter.setOutputChannel(outputChannel);
+		adapter.afterPropertiesSet();
+
+		byte[] data = "foo".getBytes();
+		processRecord(adapter, ByteBuffer.wrap(data));
+
+		Message<?> message = outputChannel.receive(0);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isSameAs(data);
+	}
+
+	@Test
+	public void testNoMetricsWithoutMeterRegistry() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		adapter.afterPropertiesSet();
+
+		assertThat(TestUtils.getPropertyValue(adapter, "metrics")).isNull();
+
+		// The records are processed without meters
+		processRecord(adapter, ByteBuffer.wrap("foo".getBytes()));
+	}
+
+	@Test
+	public void testMetrics() {
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		adapter.setMeterRegistry(meterRegistry);
+		adapter.afterPropertiesSet();
+
+		processRecord(adapter, ByteBuffer.wrap("foo".getBytes()));
+
+		assertThat(meterRegistry.get("kinesis.consumer.records")
+				.tags("consumer.group", "testGroup", "stream", STREAM, "shard", "shard1")
+				.counter()
+				.count())
+				.isEqualTo(1);
+		assertThat(meterRegistry.get("kinesis.consumer.bytes")
+				.tags("consumer.group", "testGroup", "stream", STREAM, "shard", "shard1")
+				.counter()
+				.count())
+				.isEqualTo(3);
+		assertThat(meterRegistry.get("kinesis.consumer.dispatch")
+				.tags("consumer.group", "testGroup", "stream", STREAM, "shard", "shard1")
+				.timer()
+				.count())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testNotMeterRegistryIsRejected() {
+		KclMessageDrivenChannelAdapter adapter = kclChannelAdapter();
+		adapter.setMeterRegistry(new Object());
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(adapter::afterPropertiesSet)
+				.withMessageContaining("MeterRegistry");
+	}
+
+	private static void processRecord(KclMessageDrivenChannelAdapter adapter, ByteBuffer data) {
+		ShardRecordProcessor recordProcessor =
+				TestUtils.getPropertyValue(adapter, "scheduler.processorConfig", ProcessorConfig.class)
+						.shardRecordProcessorFactory()
+						.shardRecordProcessor();
+
+		recordProcessor.initialize(InitializationInput.builder().shardId("shard1").build());
+		recordProcessor.processRecords(
+				ProcessRecordsInput.builder()
+						.records(Collections.singletonList(
+								KinesisClientRecord.builder()
+										.partitionKey("partition1")
+										.sequenceNumber("1")
+										.data(data)
+										.build()))
+						.checkpointer(mock(RecordProcessorCheckpointer.class))
+						.build());
+	}
+
+	private static KclMessageDrivenChannelAdapter kclChannelAdapter() {
+		KclMessageDrivenChannelAdapter adapter =
+				new KclMessageDrivenChannelAdapter(STREAM, new SimpleAsyncTaskExecutor(),
+						mock(KinesisAsyncClient.class), mock(CloudWatchAsyncClient.class),
+						mock(DynamoDbAsyncClient.class));
+		adapter.setConsumerGroup("testGroup");
+		adapter.setOutputChannel(new NullChannel());
+		adapter.setBeanFactory(mock(BeanFactory.class));
+		return adapter;
+	}
+
+}
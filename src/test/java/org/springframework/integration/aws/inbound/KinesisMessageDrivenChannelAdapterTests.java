@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,59 +17,97 @@
 package org.springframework.integration.aws.inbound;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
-import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
 
 import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.integration.aws.inbound.kinesis.CheckpointMode;
 import org.springframework.integration.aws.inbound.kinesis.Checkpointer;
 import org.springframework.integration.aws.inbound.kinesis.KinesisMessageDrivenChannelAdapter;
 import org.springframework.integration.aws.inbound.kinesis.KinesisShardOffset;
+import org.springframework.integration.aws.inbound.kinesis.LazyPayload;
 import org.springframework.integration.aws.inbound.kinesis.ListenerMode;
+import org.springframework.integration.aws.lock.BatchLockRegistry;
 import org.springframework.integration.aws.support.AwsHeaders;
+import org.springframework.integration.channel.FixedSubscriberChannel;
+import org.springframework.integration.channel.NullChannel;
 import org.springframework.integration.channel.QueueChannel;
 import org.springframework.integration.config.EnableIntegration;
 import org.springframework.integration.metadata.ConcurrentMetadataStore;
 import org.springframework.integration.metadata.MetadataStore;
 import org.springframework.integration.metadata.SimpleMetadataStore;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.integration.support.MutableMessage;
+import org.springframework.integration.support.MutableMessageBuilderFactory;
+import org.springframework.integration.support.json.EmbeddedJsonHeadersMessageMapper;
 import org.springframework.integration.support.locks.DefaultLockRegistry;
 import org.springframework.integration.test.util.TestUtils;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.PollableChannel;
+import org.springframework.messaging.support.GenericMessage;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.FixedBackOff;
 
 import com.amazonaws.services.kinesis.AmazonKinesis;
-import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
-import com.amazonaws.services.kinesis.model.DescribeStreamResult;
 import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
 import com.amazonaws.services.kinesis.model.GetRecordsRequest;
 import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
 import com.amazonaws.services.kinesis.model.GetShardIteratorResult;
+import com.amazonaws.services.kinesis.model.ListShardsRequest;
+import com.amazonaws.services.kinesis.model.ListShardsResult;
 import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceInUseException;
 import com.amazonaws.services.kinesis.model.SequenceNumberRange;
 import com.amazonaws.services.kinesis.model.Shard;
-import com.amazonaws.services.kinesis.model.StreamDescription;
-import com.amazonaws.services.kinesis.model.StreamStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
 
 /**
  * @author Artem Bilan
@@ -84,6 +122,64 @@ public class KinesisMessageDrivenChannelAdapterTests {
 
 	private static final String STREAM_FOR_RESHARDING = "streamForResharding";
 
+	private static final String STREAM_FOR_RESHARDING_CONCURRENCY = "streamForReshardingConcurrency";
+
+	private static final String STREAM_FOR_PREFETCH = "streamForPrefetch";
+
+	private static final String STREAM_FOR_THREAD_PER_SHARD = "streamForThreadPerShard";
+
+	private static final String STREAM_FOR_LAZY_PAYLOAD = "streamForLazyPayload";
+
+	private static final String STREAM_FOR_RECORD_FILTER = "streamForRecordFilter";
+
+	private static final String STREAM_FOR_PUBLISHER = "streamForPublisher";
+
+	private static final String STREAM_FOR_BALANCING = "streamForBalancing";
+
+	private static final String STREAM_FOR_QUEUED_STOP = "streamForQueuedStop";
+
+	private static final String STREAM_FOR_BATCH_LOCKS = "streamForBatchLocks";
+
+	private static final String STREAM_FOR_ORDERED_RESHARDING = "streamForOrderedResharding";
+
+	private static final String STREAM_FOR_SUB_BATCHES = "streamForSubBatches";
+
+	private static final byte[] SUB_BATCHES_LARGE_DATA = new byte[1022];
+
+	static {
+		Arrays.fill(SUB_BATCHES_LARGE_DATA, (byte) 'x');
+	}
+
+	private static final String STREAM_FOR_CROSS_SHARD_BATCHES = "streamForCrossShardBatches";
+
+	private static final String STREAM_FOR_FAILED_CROSS_SHARD_BATCH = "streamForFailedCrossShardBatch";
+
+	private static final String STREAM_FOR_CONCURRENCY_ADJUSTMENT = "streamForConcurrencyAdjustment";
+
+	private static final String STREAM_FOR_IDLE_SHARD = "streamForIdleShard";
+
+	private static final String STREAM_FOR_GET_RECORDS_INTERVAL = "streamForGetRecordsInterval";
+
+	private static final String STREAM_FOR_BACK_OFF = "streamForBackOff";
+
+	private static final String STREAM_FOR_PERIODIC_THRESHOLD = "streamForPeriodicThreshold";
+
+	private static final String STREAM_FOR_PERIODIC_INTERVAL = "streamForPeriodicInterval";
+
+	private static final String STREAM_FOR_BYTE_BUFFERS = "streamForByteBuffers";
+
+	private static final byte[] BYTE_BUFFER_DATA = "foo".getBytes();
+
+	private static final String STREAM_FOR_CONCURRENT_RECORDS = "streamForConcurrentRecords";
+
+	private static final String STREAM_FOR_FAILED_CONCURRENT_RECORDS = "streamForFailedConcurrentRecords";
+
+	private static final String STREAM_FOR_GONE_SUBSCRIBER = "streamForGoneSubscriber";
+
+	private static final String STREAM_FOR_EMPTY_AGGREGATE = "streamForEmptyAggregate";
+
+	private static final String STREAM_FOR_HEADERS = "streamForHeaders";
+
 	@Autowired
 	private QueueChannel kinesisChannel;
 
@@ -99,6 +195,195 @@ public class KinesisMessageDrivenChannelAdapterTests {
 	@Autowired
 	private AmazonKinesis amazonKinesisForResharding;
 
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter reshardingConcurrencyChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter prefetchChannelAdapter;
+
+	@Autowired
+	private AmazonKinesis amazonKinesisForPrefetch;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter threadPerShardChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter lazyPayloadChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter recordFilterChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore recordFilterCheckpointStore;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter balancingChannelAdapter1;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter balancingChannelAdapter2;
+
+	@Autowired
+	private ConcurrentMetadataStore balancingCheckpointStore;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter queuedStopChannelAdapter;
+
+	@Autowired
+	private DefaultLockRegistry queuedStopLockRegistry;
+
+	@Autowired
+	private CountDownLatch queuedStopBusyLatch;
+
+	@Autowired
+	private CountDownLatch queuedStopReleaseLatch;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter batchLocksChannelAdapter;
+
+	@Autowired
+	private BlockingQueue<Collection<String>> batchLockRequests;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter publisherChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter orderedReshardingChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore orderedReshardingCheckpointStore;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter subBatchesChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore subBatchesCheckpointStore;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter concurrencyAdjustmentChannelAdapter;
+
+	@Autowired
+	private AtomicBoolean concurrencyAdjustmentLagging;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter crossShardBatchesChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore crossShardBatchesCheckpointStore;
+
+	@Autowired
+	private AmazonKinesis amazonKinesisForPublisher;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter idleShardChannelAdapter;
+
+	@Autowired
+	private BlockingQueue<Long> idleShardPollTimes;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter getRecordsIntervalChannelAdapter;
+
+	@Autowired
+	private BlockingQueue<Long> getRecordsIntervalPollTimes;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter backOffChannelAdapter;
+
+	@Autowired
+	private BlockingQueue<Long> backOffPollTimes;
+
+	@Autowired
+	private BackOff shardThrottlingBackOff;
+
+	@Autowired
+	private BackOff shardIdleBackOff;
+
+	@Autowired
+	private AmazonKinesis amazonKinesisForPeriodicCheckpoints;
+
+	@Autowired
+	private ConcurrentMetadataStore periodicCheckpointStore;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter periodicThresholdChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter periodicIntervalChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter byteBufferChannelAdapter;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter concurrentRecordsChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore concurrentRecordsCheckpointStore;
+
+	@Autowired
+	private BlockingQueue<Message<?>> concurrentRecordsMessages;
+
+	@Autowired
+	private CountDownLatch concurrentRecordsLatch;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter failedConcurrentRecordsChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore failedConcurrentRecordsCheckpointStore;
+
+	@Autowired
+	private BlockingQueue<Message<?>> failedConcurrentRecordsMessages;
+
+	@Autowired
+	private AmazonKinesis amazonKinesisForGoneSubscriber;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter goneSubscriberChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore goneSubscriberCheckpointStore;
+
+	@Autowired
+	private CountDownLatch goneSubscriberLatch;
+
+	@Autowired
+	private AmazonKinesis amazonKinesisForFailedCrossShardBatch;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter failedCrossShardBatchChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore failedCrossShardBatchCheckpointStore;
+
+	@Autowired
+	private BlockingQueue<Message<?>> failedCrossShardBatchMessages;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter emptyAggregateChannelAdapter;
+
+	@Autowired
+	private ConcurrentMetadataStore emptyAggregateCheckpointStore;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter manualHeadersChannelAdapter;
+
+	@Autowired
+	private QueueChannel manualHeadersChannel;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter recordHeadersChannelAdapter;
+
+	@Autowired
+	private QueueChannel recordHeadersChannel;
+
+	@Autowired
+	private KinesisMessageDrivenChannelAdapter mutableHeadersChannelAdapter;
+
+	@Autowired
+	private QueueChannel mutableHeadersChannel;
+
 	@Before
 	public void setup() {
 		this.kinesisChannel.purge(null);
@@ -211,199 +496,2380 @@ public class KinesisMessageDrivenChannelAdapterTests {
 		}
 		assertThat(n).isLessThan(100);
 
-		// When resharding happens the describeStream() is performed again
-		verify(this.amazonKinesisForResharding, atLeast(1)).describeStream(any(DescribeStreamRequest.class));
+		// When resharding happens the listShards() is performed again for new shards only
+		verify(this.amazonKinesisForResharding, timeout(10000))
+				.listShards(new ListShardsRequest()
+						.withStreamName(STREAM_FOR_RESHARDING)
+						.withExclusiveStartShardId("closedShard"));
 
 		this.reshardingChannelAdapter.stop();
 	}
 
-	@Configuration
-	@EnableIntegration
-	public static class Config {
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void testConcurrencyGrowsAfterResharding() {
+		List consumerInvokers =
+				TestUtils.getPropertyValue(this.reshardingConcurrencyChannelAdapter, "consumerInvokers", List.class);
 
-		@Bean
-		public AmazonKinesis amazonKinesis() {
-			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+		this.reshardingConcurrencyChannelAdapter.start();
 
-			given(amazonKinesis.describeStream(new DescribeStreamRequest().withStreamName(STREAM1)))
-					.willReturn(new DescribeStreamResult()
-									.withStreamDescription(new StreamDescription()
-											.withStreamName(STREAM1)
-											.withStreamStatus(StreamStatus.UPDATING)),
-							new DescribeStreamResult()
-									.withStreamDescription(new StreamDescription()
-											.withStreamName(STREAM1)
-											.withStreamStatus(StreamStatus.ACTIVE)
-											.withHasMoreShards(false)
-											.withShards(new Shard()
-															.withShardId("1")
-															.withSequenceNumberRange(new SequenceNumberRange()),
-													new Shard()
-															.withShardId("2")
-															.withSequenceNumberRange(new SequenceNumberRange()),
-													new Shard()
-															.withShardId("3")
-															.withSequenceNumberRange(new SequenceNumberRange()
-																	.withEndingSequenceNumber("1")))));
+		assertThat(this.kinesisChannel.receive(10000)).isNotNull();
 
-			String shard1Iterator1 = "shard1Iterator1";
-			String shard1Iterator2 = "shard1Iterator2";
+		// The concurrency is clamped to one shard on start, but the closed shard is split into two
+		await().untilAsserted(() -> assertThat(consumerInvokers).hasSize(2));
+		assertThat(TestUtils.getPropertyValue(this.reshardingConcurrencyChannelAdapter, "concurrency"))
+				.isEqualTo(2);
 
-			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM1, "1").toShardIteratorRequest()))
-					.willReturn(
-							new GetShardIteratorResult().withShardIterator(shard1Iterator1),
-							new GetShardIteratorResult().withShardIterator(shard1Iterator2));
+		this.reshardingConcurrencyChannelAdapter.stop();
+	}
 
-			String shard2Iterator1 = "shard2Iterator1";
+	@Test
+	public void testPrefetch() {
+		this.prefetchChannelAdapter.start();
 
-			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM1, "2").toShardIteratorRequest()))
-					.willReturn(new GetShardIteratorResult()
-							.withShardIterator(shard2Iterator1));
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("foo");
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard1Iterator1)
-					.withLimit(25)))
-					.willThrow(new ProvisionedThroughputExceededException("Iterator throttled"))
-					.willThrow(new ExpiredIteratorException("Iterator expired"));
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("bar");
+		assertThat(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER)).isEqualTo("2");
 
-			SerializingConverter serializingConverter = new SerializingConverter();
+		// The second batch is fetched ahead with the limit based on the 'prefetchRecordsLimit'
+		verify(this.amazonKinesisForPrefetch)
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator("prefetchShardIterator2")
+						.withLimit(10));
 
-			String shard1Iterator3 = "shard1Iterator3";
+		this.prefetchChannelAdapter.stop();
+	}
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard1Iterator2)
-					.withLimit(25)))
-					.willReturn(new GetRecordsResult()
-							.withNextShardIterator(shard1Iterator3)
-							.withRecords(new Record()
-											.withPartitionKey("partition1")
-											.withSequenceNumber("1")
-											.withData(ByteBuffer.wrap(serializingConverter.convert("foo"))),
-									new Record()
-											.withPartitionKey("partition1")
-											.withSequenceNumber("2")
-											.withData(ByteBuffer.wrap(serializingConverter.convert("bar")))));
+	@Test
+	public void testThreadPerShard() {
+		this.threadPerShardChannelAdapter.start();
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard2Iterator1)
-					.withLimit(25)))
-					.willReturn(new GetRecordsResult()
-							.withNextShardIterator(shard2Iterator1));
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("foo");
+		assertThat(message.getHeaders().get(AwsHeaders.SHARD)).isEqualTo("threadPerShardShard");
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard1Iterator3)
-					.withLimit(25)))
-					.willReturn(new GetRecordsResult()
-							.withNextShardIterator(shard1Iterator3));
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("bar");
 
-			String shard1Iterator4 = "shard1Iterator4";
+		assertThat(TestUtils.getPropertyValue(this.threadPerShardChannelAdapter, "scheduledShardConsumers",
+				Collection.class)).isEmpty();
 
-			given(amazonKinesis.getShardIterator(KinesisShardOffset.afterSequenceNumber(STREAM1, "1", "1")
-					.toShardIteratorRequest()))
-					.willReturn(new GetShardIteratorResult()
-							.withShardIterator(shard1Iterator4));
+		this.threadPerShardChannelAdapter.stop();
+	}
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard1Iterator4)
-					.withLimit(25)))
-					.willReturn(new GetRecordsResult()
-							.withNextShardIterator(shard1Iterator3)
-							.withRecords(new Record()
-									.withPartitionKey("partition1")
-									.withSequenceNumber("2")
-									.withData(ByteBuffer.wrap(serializingConverter.convert("bar")))));
+	@Test
+	public void testLazyPayload() {
+		this.lazyPayloadChannelAdapter.start();
 
-			return amazonKinesis;
-		}
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isInstanceOf(LazyPayload.class);
+		LazyPayload payload = (LazyPayload) message.getPayload();
+		assertThat(payload.isConverted()).isFalse();
+		assertThat(payload.getRawData().get(0)).isEqualTo((byte) 'f');
+		assertThat(payload.get()).isEqualTo("foo");
+		assertThat(payload.isConverted()).isTrue();
+		assertThat(payload.get()).isSameAs(payload.get());
+
+		this.lazyPayloadChannelAdapter.stop();
+	}
 
-		@Bean
-		public ConcurrentMetadataStore checkpointStore() {
-			SimpleMetadataStore simpleMetadataStore = new SimpleMetadataStore();
-			String testKey = "SpringIntegration" + ":" + STREAM1 + ":" + "3";
-			simpleMetadataStore.put(testKey, "1");
-			return simpleMetadataStore;
-		}
+	@Test
+	public void testRecordFilter() {
+		this.recordFilterChannelAdapter.start();
 
-		@Bean
-		public KinesisMessageDrivenChannelAdapter kinesisMessageDrivenChannelAdapter() {
-			KinesisMessageDrivenChannelAdapter adapter =
-					new KinesisMessageDrivenChannelAdapter(amazonKinesis(), STREAM1);
-			adapter.setAutoStartup(false);
-			adapter.setOutputChannel(kinesisChannel());
-			adapter.setCheckpointStore(checkpointStore());
-			adapter.setCheckpointMode(CheckpointMode.manual);
-			adapter.setLockRegistry(new DefaultLockRegistry());
-			adapter.setStartTimeout(10000);
-			adapter.setDescribeStreamRetries(1);
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("bar");
+		assertThat(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER)).isEqualTo("2");
+
+		// The filtered out record is checkpointed as well
+		await().untilAsserted(() ->
+				assertThat(this.recordFilterCheckpointStore
+						.get("SpringIntegration" + ":" + STREAM_FOR_RECORD_FILTER + ":" + "recordFilterShard"))
+						.isEqualTo("2"));
+
+		this.recordFilterChannelAdapter.stop();
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void testShardBalancing() {
+		Map shardConsumers1 =
+				TestUtils.getPropertyValue(this.balancingChannelAdapter1, "shardConsumers", Map.class);
+		Map shardConsumers2 =
+				TestUtils.getPropertyValue(this.balancingChannelAdapter2, "shardConsumers", Map.class);
+
+		this.balancingChannelAdapter1.start();
+
+		await().untilAsserted(() -> assertThat(shardConsumers1).hasSize(2));
+
+		this.balancingChannelAdapter2.start();
+
+		await().untilAsserted(() -> {
+			assertThat(shardConsumers1).hasSize(1);
+			assertThat(shardConsumers2).hasSize(1);
+		});
+
+		assertThat(shardConsumers1.keySet()).doesNotContainAnyElementsOf(shardConsumers2.keySet());
+
+		this.balancingChannelAdapter2.stop();
+
+		await().untilAsserted(() -> assertThat(shardConsumers1).hasSize(2));
+
+		this.balancingChannelAdapter1.stop();
+
+		// No empty heartbeats entry after the last instance
+		String heartbeatsKey = "SpringIntegration" + ":" + STREAM_FOR_BALANCING + ":" + "instances";
+		await().untilAsserted(() -> assertThat(this.balancingCheckpointStore.get(heartbeatsKey)).isNull());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testShardsAreLockedInBatch() throws InterruptedException {
+		this.batchLocksChannelAdapter.start();
+
+		String keyPrefix = "SpringIntegration" + ":" + STREAM_FOR_BATCH_LOCKS + ":";
+
+		// All the shards are requested with a single call
+		Collection<String> lockKeys = this.batchLockRequests.poll(10, TimeUnit.SECONDS);
+		assertThat(lockKeys).containsExactlyInAnyOrder(keyPrefix + "batchShard1", keyPrefix + "batchShard2",
+				keyPrefix + "batchShard3");
+
+		Map<KinesisShardOffset, ?> shardConsumers =
+				TestUtils.getPropertyValue(this.batchLocksChannelAdapter, "shardConsumers", Map.class);
+
+		await().untilAsserted(() -> assertThat(shardConsumers).hasSize(2));
+		assertThat(shardConsumers.keySet())
+				.extracting(KinesisShardOffset::getShard)
+				.containsExactlyInAnyOrder("batchShard1", "batchShard2");
+
+		// Only the not acquired lock is requested again
+		lockKeys = this.batchLockRequests.poll(10, TimeUnit.SECONDS);
+		assertThat(lockKeys).containsExactly(keyPrefix + "batchShard3");
+		assertThat(shardConsumers).hasSize(2);
+
+		this.batchLocksChannelAdapter.stop();
+	}
+
+	@Test
+	public void testConsumerStoppedInReadyQueueReleasesLock() throws InterruptedException {
+		this.queuedStopChannelAdapter.start();
+
+		// The only consumer invoker is busy with the record of the first shard
+		assertThat(this.queuedStopBusyLatch.await(10, TimeUnit.SECONDS)).isTrue();
+
+		Collection<?> readyShardConsumers =
+				TestUtils.getPropertyValue(this.queuedStopChannelAdapter, "readyShardConsumers", Collection.class);
+		await().untilAsserted(() -> assertThat(readyShardConsumers).isNotEmpty());
+
+		this.queuedStopChannelAdapter.stopConsumer(STREAM_FOR_QUEUED_STOP, "queuedShard2");
+
+		this.queuedStopReleaseLatch.countDown();
+
+		Lock lock = this.queuedStopLockRegistry.obtain("SpringIntegration" + ":" + STREAM_FOR_QUEUED_STOP + ":" +
+				"queuedShard2");
+		await().until(lock::tryLock);
+		lock.unlock();
+
+		this.queuedStopChannelAdapter.stop();
+	}
+
+	@Test
+	public void testOrderedResharding() {
+		this.orderedReshardingChannelAdapter.start();
+
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("parent");
+
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("child");
+		assertThat(message.getHeaders().get(AwsHeaders.SHARD)).isEqualTo("childShard");
+
+		// The closed parent shard is marked as finished with its ending sequence number
+		assertThat(this.orderedReshardingCheckpointStore
+				.get("SpringIntegration" + ":" + STREAM_FOR_ORDERED_RESHARDING + ":" + "parentShard"))
+				.isEqualTo("2");
+
+		this.orderedReshardingChannelAdapter.stop();
+	}
+
+	@Test
+	public void testSubBatches() {
+		this.subBatchesChannelAdapter.start();
+
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo(Arrays.asList("foo", "bar"));
+
+		// Split by the 'maxBatchBytes': the next record doesn't fit into the 1024 bytes with this one
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo(Collections.singletonList("baz"));
+		assertThat(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER))
+				.isEqualTo(Collections.singletonList("3"));
+
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo(Collections.singletonList(new String(SUB_BATCHES_LARGE_DATA)));
+		assertThat(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER))
+				.isEqualTo(Collections.singletonList("4"));
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_SUB_BATCHES + ":" + "subBatchesShard";
+
+		await().untilAsserted(() ->
+				assertThat(this.subBatchesCheckpointStore.get(checkpointKey)).isEqualTo("4"));
+
+		// Each sub-batch is checkpointed after it is sent
+		InOrder inOrder = inOrder(this.subBatchesCheckpointStore);
+		inOrder.verify(this.subBatchesCheckpointStore).putIfAbsent(checkpointKey, "2");
+		inOrder.verify(this.subBatchesCheckpointStore).replace(checkpointKey, "2", "3");
+		inOrder.verify(this.subBatchesCheckpointStore).replace(checkpointKey, "3", "4");
+
+		assertThat(this.meterRegistry.get("kinesis.consumer.records")
+				.tag("stream", STREAM_FOR_SUB_BATCHES)
+				.tag("shard", "subBatchesShard")
+				.counter()
+				.count())
+				.isEqualTo(4);
+
+		assertThat(this.meterRegistry.get("kinesis.consumer.dispatch")
+				.tag("stream", STREAM_FOR_SUB_BATCHES)
+				.timer()
+				.count())
+				.isEqualTo(1);
+
+		this.subBatchesChannelAdapter.stop();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCrossShardBatches() {
+		this.crossShardBatchesChannelAdapter.start();
+
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat((List<String>) message.getPayload()).hasSize(3);
+		assertThat((List<String>) message.getHeaders().get(AwsHeaders.SHARD))
+				.contains("crossShard1", "crossShard2");
+
+		// The rest of records is sent by the timeout
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat((List<String>) message.getPayload()).hasSize(1);
+
+		await().untilAsserted(() -> {
+			assertThat(this.crossShardBatchesCheckpointStore
+					.get("SpringIntegration" + ":" + STREAM_FOR_CROSS_SHARD_BATCHES + ":" + "crossShard1"))
+					.isEqualTo("2");
+			assertThat(this.crossShardBatchesCheckpointStore
+					.get("SpringIntegration" + ":" + STREAM_FOR_CROSS_SHARD_BATCHES + ":" + "crossShard2"))
+					.isEqualTo("2");
+		});
+
+		this.crossShardBatchesChannelAdapter.stop();
+	}
+
+	@Test
+	public void testFailedCrossShardBatchIsConsumedAgain() throws InterruptedException {
+		this.failedCrossShardBatchChannelAdapter.start();
+
+		// The first batch has failed: no records are skipped by the next batches
+		Message<?> message = this.failedCrossShardBatchMessages.poll(10, TimeUnit.SECONDS);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo(Arrays.asList("foo", "bar"));
+
+		message = this.failedCrossShardBatchMessages.poll(10, TimeUnit.SECONDS);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo(Arrays.asList("baz", "qux"));
+
+		verify(this.amazonKinesisForFailedCrossShardBatch)
+				.getShardIterator(
+						KinesisShardOffset.atSequenceNumber(STREAM_FOR_FAILED_CROSS_SHARD_BATCH, "failedBatchShard", "1")
+								.toShardIteratorRequest());
+
+		String checkpointKey =
+				"SpringIntegration" + ":" + STREAM_FOR_FAILED_CROSS_SHARD_BATCH + ":" + "failedBatchShard";
+		await().untilAsserted(() ->
+				assertThat(this.failedCrossShardBatchCheckpointStore.get(checkpointKey)).isEqualTo("4"));
+
+		this.failedCrossShardBatchChannelAdapter.stop();
+	}
+
+	@Test
+	public void testCrossShardBatchesWithEmbeddedHeadersAreRejected() {
+		KinesisMessageDrivenChannelAdapter adapter =
+				new KinesisMessageDrivenChannelAdapter(mock(AmazonKinesis.class), STREAM_FOR_CROSS_SHARD_BATCHES);
+		adapter.setOutputChannel(new NullChannel());
+		adapter.setBeanFactory(mock(BeanFactory.class));
+		adapter.setListenerMode(ListenerMode.batch);
+		adapter.setCrossShardBatchSize(2);
+		adapter.setEmbeddedHeadersMapper(new EmbeddedJsonHeadersMessageMapper());
+		adapter.afterPropertiesSet();
+
+		assertThatIllegalStateException()
+				.isThrownBy(adapter::start)
+				.withMessageContaining("embeddedHeadersMapper");
+
+		adapter.destroy();
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void testConcurrencyAdjustment() {
+		List consumerInvokers =
+				TestUtils.getPropertyValue(this.concurrencyAdjustmentChannelAdapter, "consumerInvokers", List.class);
+
+		this.concurrencyAdjustmentChannelAdapter.start();
+
+		// The shards don't lag yet, so the adapter stays with the 'minConcurrency'
+		await().untilAsserted(() -> assertThat(consumerInvokers).hasSize(1));
+		assertThat(TestUtils.getPropertyValue(this.concurrencyAdjustmentChannelAdapter, "concurrency"))
+				.isEqualTo(1);
+
+		// Lagging shards and a busy downstream
+		this.concurrencyAdjustmentLagging.set(true);
+		await().untilAsserted(() -> assertThat(consumerInvokers).hasSize(2));
+
+		// Caught up shards and idle invokers
+		this.concurrencyAdjustmentLagging.set(false);
+		await().untilAsserted(() -> assertThat(consumerInvokers).hasSize(1));
+		assertThat(TestUtils.getPropertyValue(this.concurrencyAdjustmentChannelAdapter, "concurrency"))
+				.isEqualTo(1);
+
+		this.concurrencyAdjustmentChannelAdapter.stop();
+	}
+
+	@Test
+	public void testPublisherDemand() throws InterruptedException {
+		BlockingQueue<Message<?>> messages = new LinkedBlockingQueue<>();
+		BaseSubscriber<Message<?>> subscriber =
+				new BaseSubscriber<Message<?>>() {
+
+					@Override
+					protected void hookOnSubscribe(Subscription subscription) {
+						request(1);
+					}
+
+					@Override
+					protected void hookOnNext(Message<?> value) {
+						messages.add(value);
+					}
+
+				};
+
+		Flux.from(this.publisherChannelAdapter.asPublisher())
+				.subscribe(subscriber);
+
+		this.publisherChannelAdapter.start();
+
+		Message<?> message = messages.poll(10, TimeUnit.SECONDS);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("foo");
+
+		verify(this.amazonKinesisForPublisher)
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator("publisherShardIterator1")
+						.withLimit(1));
+
+		// No demand - no more get-records requests
+		verify(this.amazonKinesisForPublisher, after(100).never())
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator("publisherShardIterator2")
+						.withLimit(1));
+
+		subscriber.request(5);
+
+		message = messages.poll(10, TimeUnit.SECONDS);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("bar");
+
+		verify(this.amazonKinesisForPublisher)
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator("publisherShardIterator2")
+						.withLimit(5));
+
+		subscriber.dispose();
+		this.publisherChannelAdapter.stop();
+	}
+
+	@Test
+	public void testRecordsAreNotCheckpointedWithoutSubscriber() {
+		BaseSubscriber<Message<?>> subscriber =
+				new BaseSubscriber<Message<?>>() {
+
+					@Override
+					protected void hookOnSubscribe(Subscription subscription) {
+						request(1);
+					}
+
+				};
+
+		Publisher<Message<?>> publisher = this.goneSubscriberChannelAdapter.asPublisher();
+		Flux.from(publisher)
+				.subscribe(subscriber);
+
+		this.goneSubscriberChannelAdapter.start();
+
+		// The subscriber goes away while the records for its demand are being polled
+		verify(this.amazonKinesisForGoneSubscriber, timeout(10000))
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator("goneSubscriberIterator1")
+						.withLimit(1));
+		subscriber.dispose();
+		this.goneSubscriberLatch.countDown();
+
+		// The shard is consumed again from the not delivered record
+		verify(this.amazonKinesisForGoneSubscriber, timeout(10000))
+				.getShardIterator(
+						KinesisShardOffset.atSequenceNumber(STREAM_FOR_GONE_SUBSCRIBER, "goneSubscriberShard", "1")
+								.toShardIteratorRequest());
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_GONE_SUBSCRIBER + ":" + "goneSubscriberShard";
+		assertThat(this.goneSubscriberCheckpointStore.get(checkpointKey)).isNull();
+
+		this.goneSubscriberChannelAdapter.stop();
+
+		// Stopped without a subscriber - no more demand-driven mode until a new 'asPublisher()'
+		assertThat(this.goneSubscriberChannelAdapter.asPublisher()).isNotSameAs(publisher);
+	}
+
+	@Test
+	public void testSleepingConsumerIsDispatchedAtSleepUntil() throws InterruptedException {
+		this.idleShardChannelAdapter.start();
+
+		Long firstPoll = this.idleShardPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(firstPoll).isNotNull();
+
+		Long secondPoll = this.idleShardPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(secondPoll).isNotNull();
+
+		// Not before the idle back-off is over and not at the (much longer) dispatcher poll timeout
+		assertThat(secondPoll - firstPoll).isBetween(500L, 3000L);
+
+		this.idleShardChannelAdapter.stop();
+	}
+
+	@Test
+	public void testGetRecordsAreNotPerformedMoreOftenThanInterval() throws InterruptedException {
+		this.getRecordsIntervalChannelAdapter.start();
+
+		Long previousPoll = this.getRecordsIntervalPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(previousPoll).isNotNull();
+
+		for (int i = 0; i < 3; i++) {
+			Long nextPoll = this.getRecordsIntervalPollTimes.poll(10, TimeUnit.SECONDS);
+			assertThat(nextPoll).isNotNull();
+			// The shard always has more records, but must not be polled more than 5 times per second
+			assertThat(nextPoll - previousPoll).isGreaterThanOrEqualTo(190L);
+			previousPoll = nextPoll;
+		}
+
+		this.getRecordsIntervalChannelAdapter.stop();
+	}
+
+	@Test
+	public void testThrottlingAndIdleBackOff() throws InterruptedException {
+		this.backOffChannelAdapter.start();
+
+		Long throttledPoll = this.backOffPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(throttledPoll).isNotNull();
+
+		Long emptyPoll = this.backOffPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(emptyPoll).isNotNull();
+
+		Long nextPoll = this.backOffPollTimes.poll(10, TimeUnit.SECONDS);
+		assertThat(nextPoll).isNotNull();
+
+		// Not the 'consumerBackoff' of 10 milliseconds, but the configured BackOffs
+		assertThat(emptyPoll - throttledPoll).isBetween(290L, 700L);
+		assertThat(nextPoll - emptyPoll).isGreaterThanOrEqualTo(690L);
+
+		this.backOffChannelAdapter.stop();
+
+		// A BackOffExecution is started once and continued while the shard stays throttled or idle
+		verify(this.shardThrottlingBackOff).start();
+		verify(this.shardIdleBackOff).start();
+	}
+
+	@Test
+	public void testPeriodicCheckpointsByRecordsThreshold() {
+		this.periodicThresholdChannelAdapter.start();
+
+		receivePeriodicCheckpointsMessages();
+
+		// The consumer has moved on to the next (empty) batch
+		verify(this.amazonKinesisForPeriodicCheckpoints, timeout(10000))
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator(STREAM_FOR_PERIODIC_THRESHOLD + "Iterator2")
+						.withLimit(10000));
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_PERIODIC_THRESHOLD + ":" + "periodicShard";
+
+		// Only the first two records have reached the threshold
+		assertThat(this.periodicCheckpointStore.get(checkpointKey)).isEqualTo("2");
+
+		this.periodicThresholdChannelAdapter.stop();
+
+		// The rest is checkpointed on stop of the idle consumer
+		assertThat(this.periodicCheckpointStore.get(checkpointKey)).isEqualTo("3");
+	}
+
+	@Test
+	public void testPeriodicCheckpointsByInterval() {
+		this.periodicIntervalChannelAdapter.start();
+
+		receivePeriodicCheckpointsMessages();
+
+		verify(this.amazonKinesisForPeriodicCheckpoints, timeout(10000))
+				.getRecords(new GetRecordsRequest()
+						.withShardIterator(STREAM_FOR_PERIODIC_INTERVAL + "Iterator2")
+						.withLimit(10000));
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_PERIODIC_INTERVAL + ":" + "periodicShard";
+
+		// The interval is counted from the first processed record, so it is not checkpointed immediately
+		assertThat(this.periodicCheckpointStore.get(checkpointKey)).isNull();
+
+		// The interval is reached on the idle shard
+		await().untilAsserted(() -> assertThat(this.periodicCheckpointStore.get(checkpointKey)).isEqualTo("3"));
+
+		this.periodicIntervalChannelAdapter.stop();
+	}
+
+	@Test
+	public void testByteBufferConverter() {
+		this.byteBufferChannelAdapter.setByteBufferConverter(buffer -> buffer);
+		this.byteBufferChannelAdapter.start();
+
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isInstanceOf(ByteBuffer.class);
+		ByteBuffer payload = (ByteBuffer) message.getPayload();
+		// The converter is called with a read-only view of the record data
+		assertThat(payload.isReadOnly()).isTrue();
+		assertThat(payload).isEqualTo(ByteBuffer.wrap(BYTE_BUFFER_DATA));
+
+		this.byteBufferChannelAdapter.stop();
+
+		this.byteBufferChannelAdapter.setByteBufferConverter(null);
+		this.byteBufferChannelAdapter.start();
+
+		message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		// The array-backed record data is emitted without copying
+		assertThat(message.getPayload()).isSameAs(BYTE_BUFFER_DATA);
+
+		this.byteBufferChannelAdapter.stop();
+	}
+
+	@Test
+	public void testConcurrentRecordsProcessing() throws InterruptedException {
+		this.concurrentRecordsChannelAdapter.start();
+
+		Map<Object, List<Object>> sequencesByPartitionKey = new HashMap<>();
+		// The 'partition2' is blocked on its first record, but the 'partition1' is processed further
+		for (int i = 0; i < 3; i++) {
+			receiveConcurrentRecord(sequencesByPartitionKey);
+		}
+		assertThat(sequencesByPartitionKey.get("partition1")).containsExactly("1", "3");
+		assertThat(sequencesByPartitionKey.get("partition2")).containsExactly("2");
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_CONCURRENT_RECORDS + ":" + "concurrentShard";
+
+		// Not over the in-flight record '2'
+		await().untilAsserted(() ->
+				assertThat(this.concurrentRecordsCheckpointStore.get(checkpointKey)).isEqualTo("1"));
+
+		this.concurrentRecordsLatch.countDown();
+
+		receiveConcurrentRecord(sequencesByPartitionKey);
+		assertThat(sequencesByPartitionKey.get("partition2")).containsExactly("2", "4");
+
+		await().untilAsserted(() ->
+				assertThat(this.concurrentRecordsCheckpointStore.get(checkpointKey)).isEqualTo("4"));
+
+		this.concurrentRecordsChannelAdapter.stop();
+	}
+
+	@Test
+	public void testAggregateWithoutUserRecords() {
+		this.emptyAggregateChannelAdapter.start();
+
+		// The aggregate without user records is checkpointed and the shard is consumed further
+		Message<?> message = this.kinesisChannel.receive(10000);
+		assertThat(message).isNotNull();
+		assertThat(message.getPayload()).isEqualTo("foo");
+		assertThat(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER)).isEqualTo("2");
+
+		String checkpointKey = "SpringIntegration" + ":" + STREAM_FOR_EMPTY_AGGREGATE + ":" + "emptyAggregateShard";
+		await().untilAsserted(() ->
+				assertThat(this.emptyAggregateCheckpointStore.get(checkpointKey)).isEqualTo("2"));
+
+		verify(this.emptyAggregateCheckpointStore).replace(checkpointKey, "1", "2");
+
+		this.emptyAggregateChannelAdapter.stop();
+	}
+
+	@Test
+	public void testRecordMessageHeaders() {
+		this.manualHeadersChannelAdapter.start();
+		this.recordHeadersChannelAdapter.start();
+		this.mutableHeadersChannelAdapter.start();
+
+		Message<?> manualMessage = this.manualHeadersChannel.receive(10000);
+		assertThat(manualMessage).isNotNull();
+		Message<?> recordMessage = this.recordHeadersChannel.receive(10000);
+		assertThat(recordMessage).isNotNull();
+		Message<?> mutableMessage = this.mutableHeadersChannel.receive(10000);
+		assertThat(mutableMessage).isNotNull();
+
+		// The DefaultMessageBuilderFactory takes the fast path, a custom one builds messages through the factory
+		assertThat(manualMessage).isExactlyInstanceOf(GenericMessage.class);
+		assertThat(mutableMessage).isExactlyInstanceOf(MutableMessage.class);
+
+		assertThat(manualMessage.getPayload()).isEqualTo("foo");
+		assertThat(mutableMessage.getPayload()).isEqualTo("foo");
+
+		// The embedded headers don't override the record and shard headers
+		MessageHeaders headers = manualMessage.getHeaders();
+		assertThat(headers.get("foo")).isEqualTo("bar");
+		assertThat(headers.get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER)).isEqualTo("1");
+		assertThat(headers.get(AwsHeaders.RECEIVED_PARTITION_KEY)).isEqualTo("partition1");
+		assertThat(headers.get(AwsHeaders.RECEIVED_STREAM)).isEqualTo(STREAM_FOR_HEADERS);
+		assertThat(headers.get(AwsHeaders.SHARD)).isEqualTo("headersShard");
+		assertThat(headers.get(AwsHeaders.CHECKPOINTER)).isInstanceOf(Checkpointer.class);
+
+		Map<String, Object> expectedHeaders = withoutIdAndTimestamp(headers);
+		expectedHeaders.remove(AwsHeaders.CHECKPOINTER);
+
+		// The same headers on both paths; the checkpointer is per adapter
+		Map<String, Object> mutableHeaders = withoutIdAndTimestamp(mutableMessage.getHeaders());
+		assertThat(mutableHeaders.remove(AwsHeaders.CHECKPOINTER)).isInstanceOf(Checkpointer.class);
+		assertThat(mutableHeaders).isEqualTo(expectedHeaders);
+
+		// The checkpointer header is only for the manual checkpoint mode
+		assertThat(withoutIdAndTimestamp(recordMessage.getHeaders())).isEqualTo(expectedHeaders);
+
+		this.manualHeadersChannelAdapter.stop();
+		this.recordHeadersChannelAdapter.stop();
+		this.mutableHeadersChannelAdapter.stop();
+	}
+
+	private static Map<String, Object> withoutIdAndTimestamp(MessageHeaders headers) {
+		Map<String, Object> map = new HashMap<>(headers);
+		map.remove(MessageHeaders.ID);
+		map.remove(MessageHeaders.TIMESTAMP);
+		return map;
+	}
+
+	@Test
+	public void testFailedConcurrentRecordsAreConsumedAgain() throws InterruptedException {
+		this.failedConcurrentRecordsChannelAdapter.start();
+
+		List<Object> sequenceNumbers = new ArrayList<>();
+		// The 'partition2' fails on its first record '2': the records after '1' are consumed again
+		for (int i = 0; i < 5; i++) {
+			Message<?> message = this.failedConcurrentRecordsMessages.poll(10, TimeUnit.SECONDS);
+			assertThat(message).isNotNull();
+			sequenceNumbers.add(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER));
+		}
+		assertThat(sequenceNumbers).containsExactlyInAnyOrder("1", "3", "2", "3", "4");
+
+		String checkpointKey =
+				"SpringIntegration" + ":" + STREAM_FOR_FAILED_CONCURRENT_RECORDS + ":" + "failedConcurrentShard";
+
+		await().untilAsserted(() ->
+				assertThat(this.failedConcurrentRecordsCheckpointStore.get(checkpointKey)).isEqualTo("4"));
+
+		this.failedConcurrentRecordsChannelAdapter.stop();
+	}
+
+	private void receiveConcurrentRecord(Map<Object, List<Object>> sequencesByPartitionKey)
+			throws InterruptedException {
+
+		Message<?> message = this.concurrentRecordsMessages.poll(10, TimeUnit.SECONDS);
+		assertThat(message).isNotNull();
+		sequencesByPartitionKey.computeIfAbsent(message.getHeaders().get(AwsHeaders.RECEIVED_PARTITION_KEY),
+				key -> new ArrayList<>())
+				.add(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER));
+	}
+
+	private void receivePeriodicCheckpointsMessages() {
+		for (String payload : new String[] { "foo", "bar", "baz" }) {
+			Message<?> message = this.kinesisChannel.receive(10000);
+			assertThat(message).isNotNull();
+			assertThat(message.getPayload()).isEqualTo(payload);
+		}
+	}
+
+	@Configuration
+	@EnableIntegration
+	public static class Config {
+
+		@Bean
+		public AmazonKinesis amazonKinesis() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(new ListShardsRequest().withStreamName(STREAM1)))
+					.willThrow(new ResourceInUseException("Stream is being created"))
+					.willReturn(new ListShardsResult()
+							.withShards(new Shard()
+											.withShardId("1")
+											.withSequenceNumberRange(new SequenceNumberRange()),
+									new Shard()
+											.withShardId("2")
+											.withSequenceNumberRange(new SequenceNumberRange()),
+									new Shard()
+											.withShardId("3")
+											.withSequenceNumberRange(new SequenceNumberRange()
+													.withEndingSequenceNumber("1"))));
+
+			String shard1Iterator1 = "shard1Iterator1";
+			String shard1Iterator2 = "shard1Iterator2";
+
+			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM1, "1").toShardIteratorRequest()))
+					.willReturn(
+							new GetShardIteratorResult().withShardIterator(shard1Iterator1),
+							new GetShardIteratorResult().withShardIterator(shard1Iterator2));
+
+			String shard2Iterator1 = "shard2Iterator1";
+
+			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM1, "2").toShardIteratorRequest()))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator(shard2Iterator1));
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard1Iterator1)
+					.withLimit(25)))
+					.willThrow(new ProvisionedThroughputExceededException("Iterator throttled"))
+					.willThrow(new ExpiredIteratorException("Iterator expired"));
+
+			SerializingConverter serializingConverter = new SerializingConverter();
+
+			String shard1Iterator3 = "shard1Iterator3";
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard1Iterator2)
+					.withLimit(25)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator(shard1Iterator3)
+							.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap(serializingConverter.convert("foo"))),
+									new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("2")
+											.withData(ByteBuffer.wrap(serializingConverter.convert("bar")))));
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard2Iterator1)
+					.withLimit(25)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator(shard2Iterator1));
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard1Iterator3)
+					.withLimit(25)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator(shard1Iterator3));
+
+			String shard1Iterator4 = "shard1Iterator4";
+
+			given(amazonKinesis.getShardIterator(KinesisShardOffset.afterSequenceNumber(STREAM1, "1", "1")
+					.toShardIteratorRequest()))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator(shard1Iterator4));
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard1Iterator4)
+					.withLimit(25)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator(shard1Iterator3)
+							.withRecords(new Record()
+									.withPartitionKey("partition1")
+									.withSequenceNumber("2")
+									.withData(ByteBuffer.wrap(serializingConverter.convert("bar")))));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore checkpointStore() {
+			SimpleMetadataStore simpleMetadataStore = new SimpleMetadataStore();
+			String testKey = "SpringIntegration" + ":" + STREAM1 + ":" + "3";
+			simpleMetadataStore.put(testKey, "1");
+			return simpleMetadataStore;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter kinesisMessageDrivenChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = kinesisChannelAdapter(amazonKinesis(), STREAM1);
+			adapter.setOutputChannel(kinesisChannel());
+			adapter.setCheckpointStore(checkpointStore());
+			adapter.setCheckpointMode(CheckpointMode.manual);
+			adapter.setLockRegistry(new DefaultLockRegistry());
 			adapter.setConcurrency(10);
 			adapter.setRecordsLimit(25);
 
-			DirectFieldAccessor dfa = new DirectFieldAccessor(adapter);
-			dfa.setPropertyValue("describeStreamBackoff", 10);
-			dfa.setPropertyValue("consumerBackoff", 10);
-			dfa.setPropertyValue("idleBetweenPolls", 1);
+			return adapter;
+		}
+
+		@Bean
+		public PollableChannel kinesisChannel() {
+			return new QueueChannel();
+		}
+
+		@Bean
+		public AmazonKinesis amazonKinesisForResharding() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("closedShard")
+											.withSequenceNumberRange(new SequenceNumberRange()
+													.withEndingSequenceNumber("1"))));
+
+			String shard1Iterator1 = "shard1Iterator1";
+
+			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM_FOR_RESHARDING, "closedShard")
+					.toShardIteratorRequest()))
+					.willReturn(
+							new GetShardIteratorResult()
+									.withShardIterator(shard1Iterator1));
+
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator(shard1Iterator1)
+					.withLimit(25)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator(null)
+							.withRecords(new Record()
+									.withPartitionKey("partition1")
+									.withSequenceNumber("1")
+									.withData(ByteBuffer.wrap("foo".getBytes()))));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter reshardingChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForResharding(), STREAM_FOR_RESHARDING);
+			adapter.setOutputChannel(kinesisChannel());
+			adapter.setRecordsLimit(25);
+
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class ReshardingConcurrencyConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForReshardingConcurrency() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willAnswer(invocation -> {
+						ListShardsRequest request = invocation.getArgument(0);
+						if (request.getExclusiveStartShardId() == null) {
+							return new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("shardId-000")
+											.withSequenceNumberRange(new SequenceNumberRange()
+													.withEndingSequenceNumber("1")));
+						}
+						return new ListShardsResult()
+								.withShards(
+										new Shard()
+												.withShardId("shardId-001")
+												.withParentShardId("shardId-000")
+												.withSequenceNumberRange(new SequenceNumberRange()),
+										new Shard()
+												.withShardId("shardId-002")
+												.withParentShardId("shardId-000")
+												.withSequenceNumberRange(new SequenceNumberRange()));
+					});
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willAnswer(invocation ->
+							new GetShardIteratorResult()
+									.withShardIterator(invocation.<GetShardIteratorRequest>getArgument(0).getShardId()));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if ("shardId-000".equals(shardIterator)) {
+							return new GetRecordsResult()
+									.withNextShardIterator(null)
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap("foo".getBytes())));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter reshardingConcurrencyChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForReshardingConcurrency(), STREAM_FOR_RESHARDING_CONCURRENCY);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setConcurrency(4);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class PrefetchConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForPrefetch() {
+			return amazonKinesisWithRecords(STREAM_FOR_PREFETCH, "prefetchShard", "foo", "bar");
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter prefetchChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForPrefetch(), STREAM_FOR_PREFETCH);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setRecordsLimit(25);
+			adapter.setPrefetchRecordsLimit(10);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class ThreadPerShardConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForThreadPerShard() {
+			return amazonKinesisWithRecords(STREAM_FOR_THREAD_PER_SHARD, "threadPerShardShard", "foo", "bar");
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter threadPerShardChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForThreadPerShard(), STREAM_FOR_THREAD_PER_SHARD);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setThreadPerShard(true);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class LazyPayloadConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForLazyPayload() {
+			return amazonKinesisWithRecords(STREAM_FOR_LAZY_PAYLOAD, "lazyPayloadShard", "foo");
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter lazyPayloadChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForLazyPayload(), STREAM_FOR_LAZY_PAYLOAD);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setConverter(String::new);
+			adapter.setLazyPayload(true);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class RecordFilterConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public ConcurrentMetadataStore recordFilterCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public AmazonKinesis amazonKinesisForRecordFilter() {
+			return amazonKinesisWithRecords(STREAM_FOR_RECORD_FILTER, "recordFilterShard", "foo", "bar");
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter recordFilterChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForRecordFilter(), STREAM_FOR_RECORD_FILTER);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(recordFilterCheckpointStore());
+			adapter.setConverter(String::new);
+			adapter.setRecordFilter(record -> record.getData().get(0) != 'f');
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class BalancingConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForBalancing() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("balancingShard1")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("balancingShard2")
+													.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("balancingIterator"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator("balancingIterator"));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public DefaultLockRegistry balancingLockRegistry() {
+			return new DefaultLockRegistry();
+		}
+
+		@Bean
+		public ConcurrentMetadataStore balancingCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter balancingChannelAdapter1() {
+			return balancingChannelAdapter();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter balancingChannelAdapter2() {
+			return balancingChannelAdapter();
+		}
+
+		private KinesisMessageDrivenChannelAdapter balancingChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForBalancing(), STREAM_FOR_BALANCING);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setLockRegistry(balancingLockRegistry());
+			adapter.setCheckpointStore(balancingCheckpointStore());
+			adapter.setShardBalancingInterval(100);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class BatchLocksConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForBatchLocks() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("batchShard1")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("batchShard2")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("batchShard3")
+													.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("batchLocksIterator"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willReturn(new GetRecordsResult()
+							.withNextShardIterator("batchLocksIterator"));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public BlockingQueue<Collection<String>> batchLockRequests() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public BatchLockRegistry batchLockRegistry() {
+			DefaultLockRegistry lockRegistry = new DefaultLockRegistry();
+			BlockingQueue<Collection<String>> lockRequests = batchLockRequests();
+			return new BatchLockRegistry() {
+
+				@Override
+				public Lock obtain(Object lockKey) {
+					return lockRegistry.obtain(lockKey);
+				}
+
+				@Override
+				public Map<String, Lock> tryLock(Collection<String> lockKeys) {
+					lockRequests.add(new ArrayList<>(lockKeys));
+					Map<String, Lock> locks = new HashMap<>();
+					for (String lockKey : lockKeys) {
+						// The third shard is held by another instance
+						if (!lockKey.endsWith("batchShard3")) {
+							Lock lock = obtain(lockKey);
+							if (lock.tryLock()) {
+								locks.put(lockKey, lock);
+							}
+						}
+					}
+					return locks;
+				}
+
+			};
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter batchLocksChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForBatchLocks(), STREAM_FOR_BATCH_LOCKS);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setCheckpointStore(new SimpleMetadataStore());
+			adapter.setLockRegistry(batchLockRegistry());
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class QueuedStopConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForQueuedStop() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("queuedShard1")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("queuedShard2")
+													.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willAnswer(invocation ->
+							new GetShardIteratorResult()
+									.withShardIterator(
+											invocation.<GetShardIteratorRequest>getArgument(0).getShardId() +
+													"Iterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if ("queuedShard1Iterator1".equals(shardIterator)) {
+							return new GetRecordsResult()
+									.withNextShardIterator("queuedShard1Iterator2")
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap("foo".getBytes())));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public DefaultLockRegistry queuedStopLockRegistry() {
+			return new DefaultLockRegistry();
+		}
+
+		@Bean
+		public CountDownLatch queuedStopBusyLatch() {
+			return new CountDownLatch(1);
+		}
+
+		@Bean
+		public CountDownLatch queuedStopReleaseLatch() {
+			return new CountDownLatch(1);
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter queuedStopChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForQueuedStop(), STREAM_FOR_QUEUED_STOP);
+			adapter.setOutputChannel(new FixedSubscriberChannel(message -> {
+				queuedStopBusyLatch().countDown();
+				try {
+					queuedStopReleaseLatch().await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}));
+			adapter.setCheckpointStore(new SimpleMetadataStore());
+			adapter.setLockRegistry(queuedStopLockRegistry());
+			adapter.setConcurrency(1);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class OrderedReshardingConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForOrderedResharding() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("childShard")
+													.withParentShardId("parentShard")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("parentShard")
+													.withSequenceNumberRange(new SequenceNumberRange()
+															.withEndingSequenceNumber("2"))));
+
+			given(amazonKinesis.getShardIterator(
+					KinesisShardOffset.latest(STREAM_FOR_ORDERED_RESHARDING, "parentShard").toShardIteratorRequest()))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("parentIterator"));
+
+			given(amazonKinesis.getShardIterator(
+					KinesisShardOffset.latest(STREAM_FOR_ORDERED_RESHARDING, "childShard").toShardIteratorRequest()))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("childIterator"));
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator("parentIterator")
+					.withLimit(10000)))
+					.willAnswer(invocation -> {
+						// Give the child shard a chance to be consumed first if it is not blocked
+						Thread.sleep(200);
+						return new GetRecordsResult()
+								.withNextShardIterator(null)
+								.withRecords(new Record()
+										.withPartitionKey("partition1")
+										.withSequenceNumber("1")
+										.withData(ByteBuffer.wrap("parent".getBytes())));
+					});
+
+			given(amazonKinesis.getRecords(new GetRecordsRequest()
+					.withShardIterator("childIterator")
+					.withLimit(10000)))
+					.willReturn(
+							new GetRecordsResult()
+									.withNextShardIterator("childIterator")
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("3")
+											.withData(ByteBuffer.wrap("child".getBytes()))),
+							new GetRecordsResult()
+									.withNextShardIterator("childIterator"));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore orderedReshardingCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter orderedReshardingChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForOrderedResharding(), STREAM_FOR_ORDERED_RESHARDING);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(orderedReshardingCheckpointStore());
+			adapter.setOrderedResharding(true);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class SubBatchesConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForSubBatches() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("subBatchesShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("subBatchesIterator"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willReturn(
+							new GetRecordsResult()
+									.withNextShardIterator("subBatchesIterator")
+									.withRecords(
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("1")
+													.withData(ByteBuffer.wrap("foo".getBytes())),
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("2")
+													.withData(ByteBuffer.wrap("bar".getBytes())),
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("3")
+													.withData(ByteBuffer.wrap("baz".getBytes())),
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("4")
+													.withData(ByteBuffer.wrap(SUB_BATCHES_LARGE_DATA))),
+							new GetRecordsResult()
+									.withNextShardIterator("subBatchesIterator"));
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore subBatchesCheckpointStore() {
+			return spy(new SimpleMetadataStore());
+		}
+
+		@Bean
+		public MeterRegistry meterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter subBatchesChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForSubBatches(), STREAM_FOR_SUB_BATCHES);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(subBatchesCheckpointStore());
+			adapter.setListenerMode(ListenerMode.batch);
+			adapter.setMaxBatchRecords(2);
+			adapter.setMaxBatchBytes(1024);
+			adapter.setMeterRegistry(meterRegistry());
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class CrossShardBatchesConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForCrossShardBatches() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("crossShard1")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("crossShard2")
+													.withSequenceNumberRange(new SequenceNumberRange())));
+
+			for (String shard : new String[] { "crossShard1", "crossShard2" }) {
+				given(amazonKinesis.getShardIterator(
+						KinesisShardOffset.latest(STREAM_FOR_CROSS_SHARD_BATCHES, shard).toShardIteratorRequest()))
+						.willReturn(new GetShardIteratorResult()
+								.withShardIterator(shard + "Iterator"));
+
+				given(amazonKinesis.getRecords(new GetRecordsRequest()
+						.withShardIterator(shard + "Iterator")
+						.withLimit(10000)))
+						.willReturn(
+								new GetRecordsResult()
+										.withNextShardIterator(shard + "Iterator")
+										.withRecords(
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("1")
+														.withData(ByteBuffer.wrap("foo".getBytes())),
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("2")
+														.withData(ByteBuffer.wrap("bar".getBytes()))),
+								new GetRecordsResult()
+										.withNextShardIterator(shard + "Iterator"));
+			}
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore crossShardBatchesCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter crossShardBatchesChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForCrossShardBatches(), STREAM_FOR_CROSS_SHARD_BATCHES);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(crossShardBatchesCheckpointStore());
+			adapter.setListenerMode(ListenerMode.batch);
+			adapter.setCrossShardBatchSize(3);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class FailedCrossShardBatchConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForFailedCrossShardBatch() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("failedBatchShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			// The same records for the initial and the rewound iterators
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("failedBatchIterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						switch (shardIterator) {
+							case "failedBatchIterator1":
+								return new GetRecordsResult()
+										.withNextShardIterator("failedBatchIterator2")
+										.withRecords(
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("1")
+														.withData(ByteBuffer.wrap("foo".getBytes())),
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("2")
+														.withData(ByteBuffer.wrap("bar".getBytes())));
+
+							case "failedBatchIterator2":
+								return new GetRecordsResult()
+										.withNextShardIterator("failedBatchIterator3")
+										.withRecords(
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("3")
+														.withData(ByteBuffer.wrap("baz".getBytes())),
+												new Record()
+														.withPartitionKey("partition1")
+														.withSequenceNumber("4")
+														.withData(ByteBuffer.wrap("qux".getBytes())));
+
+							default:
+								return new GetRecordsResult()
+										.withNextShardIterator(shardIterator);
+						}
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore failedCrossShardBatchCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public BlockingQueue<Message<?>> failedCrossShardBatchMessages() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter failedCrossShardBatchChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForFailedCrossShardBatch(), STREAM_FOR_FAILED_CROSS_SHARD_BATCH);
+			AtomicBoolean failed = new AtomicBoolean();
+			adapter.setOutputChannel(new FixedSubscriberChannel(message -> {
+				if (failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("The first batch fails");
+				}
+				failedCrossShardBatchMessages().add(message);
+			}));
+			adapter.setCheckpointStore(failedCrossShardBatchCheckpointStore());
+			adapter.setListenerMode(ListenerMode.batch);
+			adapter.setCrossShardBatchSize(2);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class ConcurrencyAdjustmentConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForConcurrencyAdjustment() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(
+											new Shard()
+													.withShardId("adjustmentShard1")
+													.withSequenceNumberRange(new SequenceNumberRange()),
+											new Shard()
+													.withShardId("adjustmentShard2")
+													.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("adjustmentIterator"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						GetRecordsResult result =
+								new GetRecordsResult()
+										.withNextShardIterator("adjustmentIterator");
+						if (concurrencyAdjustmentLagging().get()) {
+							return result
+									.withMillisBehindLatest(100_000L)
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap("foo".getBytes())));
+						}
+						else {
+							return result
+									.withMillisBehindLatest(0L);
+						}
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public AtomicBoolean concurrencyAdjustmentLagging() {
+			return new AtomicBoolean();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter concurrencyAdjustmentChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForConcurrencyAdjustment(), STREAM_FOR_CONCURRENCY_ADJUSTMENT);
+			adapter.setOutputChannel(new FixedSubscriberChannel(message -> {
+				try {
+					Thread.sleep(10);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}));
+			adapter.setConcurrency(2);
+			adapter.setConcurrencyAdjustmentInterval(100);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class PublisherConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForPublisher() {
+			return amazonKinesisWithRecords(STREAM_FOR_PUBLISHER, "publisherShard", "foo", "bar");
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter publisherChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForPublisher(), STREAM_FOR_PUBLISHER);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class GoneSubscriberConfig {
+
+		@Bean
+		public CountDownLatch goneSubscriberLatch() {
+			return new CountDownLatch(1);
+		}
+
+		@Bean
+		public AmazonKinesis amazonKinesisForGoneSubscriber() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("goneSubscriberShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willAnswer(invocation -> {
+						String iteratorType = invocation.<GetShardIteratorRequest>getArgument(0).getShardIteratorType();
+						return new GetShardIteratorResult()
+								.withShardIterator("LATEST".equals(iteratorType)
+										? "goneSubscriberIterator1"
+										: "goneSubscriberIterator2");
+					});
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if ("goneSubscriberIterator1".equals(shardIterator)) {
+							goneSubscriberLatch().await(10, TimeUnit.SECONDS);
+							return new GetRecordsResult()
+									.withNextShardIterator("goneSubscriberIterator3")
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap("foo".getBytes())));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore goneSubscriberCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter goneSubscriberChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForGoneSubscriber(), STREAM_FOR_GONE_SUBSCRIBER);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setCheckpointStore(goneSubscriberCheckpointStore());
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class EmptyAggregateConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForEmptyAggregate() throws NoSuchAlgorithmException {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("emptyAggregateShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("emptyAggregateIterator1"));
+
+			// The KPL magic number, an empty 'AggregatedRecord' and the MD5 digest of it
+			byte[] digest = MessageDigest.getInstance("MD5").digest(new byte[0]);
+			byte[] emptyAggregate = new byte[4 + digest.length];
+			emptyAggregate[0] = (byte) 0xF3;
+			emptyAggregate[1] = (byte) 0x89;
+			emptyAggregate[2] = (byte) 0x9A;
+			emptyAggregate[3] = (byte) 0xC2;
+			System.arraycopy(digest, 0, emptyAggregate, 4, digest.length);
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						switch (shardIterator) {
+							case "emptyAggregateIterator1":
+								return new GetRecordsResult()
+										.withNextShardIterator("emptyAggregateIterator2")
+										.withRecords(new Record()
+												.withPartitionKey("partition1")
+												.withSequenceNumber("1")
+												.withData(ByteBuffer.wrap(emptyAggregate)));
+
+							case "emptyAggregateIterator2":
+								return new GetRecordsResult()
+										.withNextShardIterator("emptyAggregateIterator3")
+										.withRecords(new Record()
+												.withPartitionKey("partition1")
+												.withSequenceNumber("2")
+												.withData(ByteBuffer.wrap("foo".getBytes())));
+
+							default:
+								return new GetRecordsResult()
+										.withNextShardIterator(shardIterator);
+						}
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore emptyAggregateCheckpointStore() {
+			return spy(new SimpleMetadataStore());
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter emptyAggregateChannelAdapter() throws NoSuchAlgorithmException {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForEmptyAggregate(), STREAM_FOR_EMPTY_AGGREGATE);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(emptyAggregateCheckpointStore());
+			adapter.setDeaggregate(true);
+			adapter.setConverter(String::new);
 
 			return adapter;
 		}
 
+	}
+
+	@Configuration
+	public static class IdleShardConfig {
+
 		@Bean
-		public PollableChannel kinesisChannel() {
-			return new QueueChannel();
+		public BlockingQueue<Long> idleShardPollTimes() {
+			return new LinkedBlockingQueue<>();
 		}
 
 		@Bean
-		public AmazonKinesis amazonKinesisForResharding() {
+		public AmazonKinesis amazonKinesisForIdleShard() {
 			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
 
-			given(amazonKinesis.describeStream(new DescribeStreamRequest().withStreamName(STREAM_FOR_RESHARDING)))
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
 					.willReturn(
-							new DescribeStreamResult()
-									.withStreamDescription(new StreamDescription()
-											.withStreamName(STREAM_FOR_RESHARDING)
-											.withStreamStatus(StreamStatus.ACTIVE)
-											.withHasMoreShards(false)
-											.withShards(new Shard()
-													.withShardId("closedShard")
-													.withSequenceNumberRange(new SequenceNumberRange()
-															.withEndingSequenceNumber("1")))));
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("idleShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
 
-			String shard1Iterator1 = "shard1Iterator1";
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("idleIterator"));
 
-			given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(STREAM_FOR_RESHARDING, "closedShard")
-					.toShardIteratorRequest()))
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						idleShardPollTimes().add(System.currentTimeMillis());
+						return new GetRecordsResult()
+								.withNextShardIterator("idleIterator");
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter idleShardChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForIdleShard(), STREAM_FOR_IDLE_SHARD);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setIdleBackOff(new FixedBackOff(500, FixedBackOff.UNLIMITED_ATTEMPTS));
+
+			// The dispatcher poll timeout is much longer than the idle back-off
+			new DirectFieldAccessor(adapter).setPropertyValue("idleBetweenPolls", 5000);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class BackOffConfig {
+
+		@Bean
+		public BlockingQueue<Long> backOffPollTimes() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public BackOff shardThrottlingBackOff() {
+			return spy(new FixedBackOff(300, FixedBackOff.UNLIMITED_ATTEMPTS));
+		}
+
+		@Bean
+		public BackOff shardIdleBackOff() {
+			return spy(new FixedBackOff(700, FixedBackOff.UNLIMITED_ATTEMPTS));
+		}
+
+		@Bean
+		public AmazonKinesis amazonKinesisForBackOff() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("backOffShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("backOffIterator"));
+
+			AtomicBoolean throttled = new AtomicBoolean();
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						backOffPollTimes().add(System.currentTimeMillis());
+						if (throttled.compareAndSet(false, true)) {
+							throw new ProvisionedThroughputExceededException("Iterator throttled");
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator("backOffIterator")
+								.withMillisBehindLatest(0L);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter backOffChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForBackOff(), STREAM_FOR_BACK_OFF);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setThrottlingBackOff(shardThrottlingBackOff());
+			adapter.setIdleBackOff(shardIdleBackOff());
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class GetRecordsIntervalConfig {
+
+		@Bean
+		public BlockingQueue<Long> getRecordsIntervalPollTimes() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public AmazonKinesis amazonKinesisForGetRecordsInterval() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("laggingShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("laggingIterator"));
+
+			AtomicInteger sequenceNumber = new AtomicInteger();
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						getRecordsIntervalPollTimes().add(System.currentTimeMillis());
+						return new GetRecordsResult()
+								.withNextShardIterator("laggingIterator")
+								.withMillisBehindLatest(10000L)
+								.withRecords(new Record()
+										.withPartitionKey("partition1")
+										.withSequenceNumber(Integer.toString(sequenceNumber.incrementAndGet()))
+										.withData(ByteBuffer.wrap("foo".getBytes())));
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter getRecordsIntervalChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForGetRecordsInterval(), STREAM_FOR_GET_RECORDS_INTERVAL);
+			adapter.setOutputChannel(new NullChannel());
+			adapter.setGetRecordsInterval(200);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class PeriodicCheckpointsConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForPeriodicCheckpoints() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
 					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("periodicShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willAnswer(invocation ->
 							new GetShardIteratorResult()
-									.withShardIterator(shard1Iterator1));
+									.withShardIterator(
+											invocation.<GetShardIteratorRequest>getArgument(0).getStreamName()
+													+ "Iterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if (shardIterator.endsWith("Iterator1")) {
+							return new GetRecordsResult()
+									.withNextShardIterator(shardIterator.replace("Iterator1", "Iterator2"))
+									.withRecords(
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("1")
+													.withData(ByteBuffer.wrap("foo".getBytes())),
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("2")
+													.withData(ByteBuffer.wrap("bar".getBytes())),
+											new Record()
+													.withPartitionKey("partition1")
+													.withSequenceNumber("3")
+													.withData(ByteBuffer.wrap("baz".getBytes())));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
 
+			return amazonKinesis;
+		}
 
-			given(amazonKinesis.getRecords(new GetRecordsRequest()
-					.withShardIterator(shard1Iterator1)
-					.withLimit(25)))
-					.willReturn(new GetRecordsResult()
-							.withNextShardIterator(null)
-							.withRecords(new Record()
-									.withPartitionKey("partition1")
-									.withSequenceNumber("1")
-									.withData(ByteBuffer.wrap("foo".getBytes()))));
+		@Bean
+		public ConcurrentMetadataStore periodicCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter periodicThresholdChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = periodicCheckpointsChannelAdapter(STREAM_FOR_PERIODIC_THRESHOLD);
+			adapter.setCheckpointsRecordsThreshold(2);
+			return adapter;
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter periodicIntervalChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = periodicCheckpointsChannelAdapter(STREAM_FOR_PERIODIC_INTERVAL);
+			adapter.setCheckpointsInterval(1000);
+			return adapter;
+		}
+
+		private KinesisMessageDrivenChannelAdapter periodicCheckpointsChannelAdapter(String stream) {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForPeriodicCheckpoints(), stream);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setCheckpointStore(periodicCheckpointStore());
+			adapter.setCheckpointMode(CheckpointMode.periodic);
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class ByteBuffersConfig {
+
+		@Autowired
+		private PollableChannel kinesisChannel;
+
+		@Bean
+		public AmazonKinesis amazonKinesisForByteBuffers() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("byteBufferShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("byteBufferIterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if ("byteBufferIterator1".equals(shardIterator)) {
+							return new GetRecordsResult()
+									.withNextShardIterator("byteBufferIterator2")
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap(BYTE_BUFFER_DATA)));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
 
 			return amazonKinesis;
 		}
 
 		@Bean
-		public KinesisMessageDrivenChannelAdapter reshardingChannelAdapter() {
+		public KinesisMessageDrivenChannelAdapter byteBufferChannelAdapter() {
 			KinesisMessageDrivenChannelAdapter adapter =
-					new KinesisMessageDrivenChannelAdapter(amazonKinesisForResharding(), STREAM_FOR_RESHARDING);
-			adapter.setAutoStartup(false);
-			adapter.setOutputChannel(kinesisChannel());
-			adapter.setStartTimeout(10000);
-			adapter.setDescribeStreamRetries(1);
-			adapter.setRecordsLimit(25);
+					kinesisChannelAdapter(amazonKinesisForByteBuffers(), STREAM_FOR_BYTE_BUFFERS);
+			adapter.setOutputChannel(this.kinesisChannel);
+			adapter.setConverter(null);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class ConcurrentRecordsConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForConcurrentRecords() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("concurrentShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("concurrentIterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						if ("concurrentIterator1".equals(shardIterator)) {
+							List<Record> records = new ArrayList<>();
+							for (int i = 1; i <= 4; i++) {
+								records.add(new Record()
+										.withPartitionKey(i % 2 == 1 ? "partition1" : "partition2")
+										.withSequenceNumber("" + i)
+										.withData(ByteBuffer.wrap(("record" + i).getBytes())));
+							}
+							return new GetRecordsResult()
+									.withNextShardIterator("concurrentIterator2")
+									.withRecords(records);
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore concurrentRecordsCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public BlockingQueue<Message<?>> concurrentRecordsMessages() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public CountDownLatch concurrentRecordsLatch() {
+			return new CountDownLatch(1);
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter concurrentRecordsChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForConcurrentRecords(), STREAM_FOR_CONCURRENT_RECORDS);
+			adapter.setOutputChannel(new FixedSubscriberChannel(message -> {
+				concurrentRecordsMessages().add(message);
+				if ("2".equals(message.getHeaders().get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER))) {
+					try {
+						concurrentRecordsLatch().await(10, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+			adapter.setCheckpointStore(concurrentRecordsCheckpointStore());
+			adapter.setCheckpointMode(CheckpointMode.record);
+			adapter.setRecordsExecutor(new SimpleAsyncTaskExecutor());
+			adapter.setConverter(String::new);
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class FailedConcurrentRecordsConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForFailedConcurrentRecords() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("failedConcurrentShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willAnswer(invocation -> {
+						GetShardIteratorRequest request = invocation.getArgument(0);
+						// Consumed again after the checkpoint of the first record
+						boolean afterCheckpoint =
+								"AFTER_SEQUENCE_NUMBER".equals(request.getShardIteratorType())
+										&& "1".equals(request.getStartingSequenceNumber());
+						return new GetShardIteratorResult()
+								.withShardIterator("failedConcurrentIterator" + (afterCheckpoint ? 2 : 1));
+					});
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+						int first;
+						if ("failedConcurrentIterator1".equals(shardIterator)) {
+							first = 1;
+						}
+						else if ("failedConcurrentIterator2".equals(shardIterator)) {
+							first = 2;
+						}
+						else {
+							return new GetRecordsResult()
+									.withNextShardIterator(shardIterator);
+						}
+						List<Record> records = new ArrayList<>();
+						for (int i = first; i <= 4; i++) {
+							records.add(new Record()
+									.withPartitionKey(i % 2 == 1 ? "partition1" : "partition2")
+									.withSequenceNumber("" + i)
+									.withData(ByteBuffer.wrap(("record" + i).getBytes())));
+						}
+						return new GetRecordsResult()
+								.withNextShardIterator("failedConcurrentIterator3")
+								.withRecords(records);
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public ConcurrentMetadataStore failedConcurrentRecordsCheckpointStore() {
+			return new SimpleMetadataStore();
+		}
+
+		@Bean
+		public BlockingQueue<Message<?>> failedConcurrentRecordsMessages() {
+			return new LinkedBlockingQueue<>();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter failedConcurrentRecordsChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForFailedConcurrentRecords(),
+							STREAM_FOR_FAILED_CONCURRENT_RECORDS);
+			adapter.setOutputChannel(new FixedSubscriberChannel(failedConcurrentRecordsMessages()::add));
+			adapter.setCheckpointStore(failedConcurrentRecordsCheckpointStore());
+			adapter.setCheckpointMode(CheckpointMode.batch);
+			adapter.setRecordsExecutor(new SimpleAsyncTaskExecutor());
+
+			AtomicBoolean failed = new AtomicBoolean();
+			adapter.setConverter(data -> {
+				String payload = new String(data);
+				if ("record2".equals(payload) && failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("Conversion failed for " + payload);
+				}
+				return payload;
+			});
+
+			return adapter;
+		}
+
+	}
+
+	@Configuration
+	public static class HeadersConfig {
+
+		@Bean
+		public AmazonKinesis amazonKinesisForHeaders() {
+			AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+			given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+					.willReturn(
+							new ListShardsResult()
+									.withShards(new Shard()
+											.withShardId("headersShard")
+											.withSequenceNumberRange(new SequenceNumberRange())));
+
+			given(amazonKinesis.getShardIterator(any(GetShardIteratorRequest.class)))
+					.willReturn(new GetShardIteratorResult()
+							.withShardIterator("headersIterator1"));
+
+			given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+					.willAnswer(invocation -> {
+						GetRecordsRequest request = invocation.getArgument(0);
+						if ("headersIterator1".equals(request.getShardIterator())) {
+							// The embedded headers which must not override the record and shard headers
+							byte[] data =
+									new EmbeddedJsonHeadersMessageMapper()
+											.fromMessage(MessageBuilder.withPayload("foo".getBytes())
+													.setHeader("foo", "bar")
+													.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, "embedded")
+													.setHeader(AwsHeaders.SHARD, "embedded")
+													.build());
+							return new GetRecordsResult()
+									.withNextShardIterator("headersIterator2")
+									.withRecords(new Record()
+											.withPartitionKey("partition1")
+											.withSequenceNumber("1")
+											.withData(ByteBuffer.wrap(data)));
+						}
+						else {
+							return new GetRecordsResult()
+									.withNextShardIterator("headersIterator2");
+						}
+					});
+
+			return amazonKinesis;
+		}
+
+		@Bean
+		public QueueChannel manualHeadersChannel() {
+			return new QueueChannel();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter manualHeadersChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = headersChannelAdapter(manualHeadersChannel());
+			adapter.setCheckpointMode(CheckpointMode.manual);
+			return adapter;
+		}
+
+		@Bean
+		public QueueChannel recordHeadersChannel() {
+			return new QueueChannel();
+		}
+
+		@Bean
+		public KinesisMessageDrivenChannelAdapter recordHeadersChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = headersChannelAdapter(recordHeadersChannel());
+			adapter.setCheckpointMode(CheckpointMode.record);
+			return adapter;
+		}
+
+		@Bean
+		public QueueChannel mutableHeadersChannel() {
+			return new QueueChannel();
+		}
 
-			DirectFieldAccessor dfa = new DirectFieldAccessor(adapter);
-			dfa.setPropertyValue("describeStreamBackoff", 10);
-			dfa.setPropertyValue("consumerBackoff", 10);
-			dfa.setPropertyValue("idleBetweenPolls", 1);
+		@Bean
+		public KinesisMessageDrivenChannelAdapter mutableHeadersChannelAdapter() {
+			KinesisMessageDrivenChannelAdapter adapter = headersChannelAdapter(mutableHeadersChannel());
+			adapter.setCheckpointMode(CheckpointMode.manual);
+			adapter.setMessageBuilderFactory(new MutableMessageBuilderFactory());
+			return adapter;
+		}
 
+		private KinesisMessageDrivenChannelAdapter headersChannelAdapter(QueueChannel outputChannel) {
+			KinesisMessageDrivenChannelAdapter adapter =
+					kinesisChannelAdapter(amazonKinesisForHeaders(), STREAM_FOR_HEADERS);
+			adapter.setOutputChannel(outputChannel);
+			adapter.setEmbeddedHeadersMapper(new EmbeddedJsonHeadersMessageMapper());
 			adapter.setConverter(String::new);
 
 			return adapter;
@@ -411,4 +2877,74 @@ public class KinesisMessageDrivenChannelAdapterTests {
 
 	}
 
+	/**
+	 * Create an adapter to be started by the test, which doesn't wait between attempts
+	 * as long as the production defaults.
+	 * @param amazonKinesis the mock to consume from.
+	 * @param streams the streams to consume.
+	 * @return the adapter.
+	 */
+	private static KinesisMessageDrivenChannelAdapter kinesisChannelAdapter(AmazonKinesis amazonKinesis,
+			String... streams) {
+
+		KinesisMessageDrivenChannelAdapter adapter = new KinesisMessageDrivenChannelAdapter(amazonKinesis, streams);
+		adapter.setAutoStartup(false);
+		adapter.setStartTimeout(10000);
+		adapter.setDescribeStreamRetries(1);
+
+		DirectFieldAccessor dfa = new DirectFieldAccessor(adapter);
+		dfa.setPropertyValue("describeStreamBackoff", 10);
+		dfa.setPropertyValue("consumerBackoff", 10);
+		dfa.setPropertyValue("idleBetweenPolls", 1);
+		dfa.setPropertyValue("getRecordsInterval", 0);
+
+		return adapter;
+	}
+
+	/**
+	 * Create a mock {@link AmazonKinesis} for a stream with a single open shard
+	 * which returns a get-records result with one record for each of the provided payloads
+	 * and then results without records.
+	 * @param stream the stream to consume.
+	 * @param shard the shard of the stream.
+	 * @param payloads the data of the records.
+	 * @return the mock.
+	 */
+	private static AmazonKinesis amazonKinesisWithRecords(String stream, String shard, String... payloads) {
+		AmazonKinesis amazonKinesis = mock(AmazonKinesis.class);
+
+		given(amazonKinesis.listShards(any(ListShardsRequest.class)))
+				.willReturn(
+						new ListShardsResult()
+								.withShards(new Shard()
+										.withShardId(shard)
+										.withSequenceNumberRange(new SequenceNumberRange())));
+
+		String iteratorPrefix = shard + "Iterator";
+
+		given(amazonKinesis.getShardIterator(KinesisShardOffset.latest(stream, shard).toShardIteratorRequest()))
+				.willReturn(new GetShardIteratorResult()
+						.withShardIterator(iteratorPrefix + 1));
+
+		given(amazonKinesis.getRecords(any(GetRecordsRequest.class)))
+				.willAnswer(invocation -> {
+					String shardIterator = invocation.<GetRecordsRequest>getArgument(0).getShardIterator();
+					int index = Integer.parseInt(shardIterator.substring(iteratorPrefix.length())) - 1;
+					if (index < payloads.length) {
+						return new GetRecordsResult()
+								.withNextShardIterator(iteratorPrefix + (index + 2))
+								.withRecords(new Record()
+										.withPartitionKey("partition1")
+										.withSequenceNumber(Integer.toString(index + 1))
+										.withData(ByteBuffer.wrap(payloads[index].getBytes())));
+					}
+					else {
+						return new GetRecordsResult()
+								.withNextShardIterator(shardIterator);
+					}
+				});
+
+		return amazonKinesis;
+	}
+
 }
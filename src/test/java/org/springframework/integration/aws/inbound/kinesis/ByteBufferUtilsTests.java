@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class ByteBufferUtilsTests {
+
+	@Test
+	public void testArrayBackedBufferIsNotCopied() {
+		byte[] data = "foo".getBytes();
+
+		assertThat(ByteBufferUtils.toByteArray(ByteBuffer.wrap(data))).isSameAs(data);
+	}
+
+	@Test
+	public void testPartialBufferIsCopied() {
+		byte[] data = "foobar".getBytes();
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		buffer.position(3);
+
+		byte[] bytes = ByteBufferUtils.toByteArray(buffer);
+		assertThat(bytes).isNotSameAs(data).isEqualTo("bar".getBytes());
+		assertThat(buffer.position()).isEqualTo(3);
+
+		ByteBuffer slice = ByteBuffer.wrap(data, 0, 3).slice();
+		assertThat(ByteBufferUtils.toByteArray(slice)).isEqualTo("foo".getBytes());
+	}
+
+	@Test
+	public void testReadOnlyAndDirectBuffersAreCopied() {
+		byte[] data = "foo".getBytes();
+
+		ByteBuffer readOnly = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		assertThat(ByteBufferUtils.toByteArray(readOnly)).isNotSameAs(data).isEqualTo(data);
+		assertThat(readOnly.position()).isEqualTo(0);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		assertThat(ByteBufferUtils.toByteArray(direct)).isEqualTo(data);
+		assertThat(direct.remaining()).isEqualTo(data.length);
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class ContiguousWatermarkTests {
+
+	@Test
+	public void testWatermarkAdvancesOnlyOverContiguousRecords() {
+		ContiguousWatermark watermark = new ContiguousWatermark(5);
+		assertThat(watermark.getWatermark()).isEqualTo(-1);
+
+		assertThat(watermark.complete(2)).isZero();
+		assertThat(watermark.complete(1)).isZero();
+		assertThat(watermark.getWatermark()).isEqualTo(-1);
+
+		assertThat(watermark.complete(0)).isEqualTo(3);
+		assertThat(watermark.getWatermark()).isEqualTo(2);
+		assertThat(watermark.isCompleted()).isFalse();
+
+		assertThat(watermark.complete(4)).isZero();
+		assertThat(watermark.complete(3)).isEqualTo(2);
+		assertThat(watermark.getWatermark()).isEqualTo(4);
+		assertThat(watermark.isCompleted()).isTrue();
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.springframework.util.backoff.BackOffExecution;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class DecorrelatedJitterBackOffTests {
+
+	@Test
+	public void testBackOffIsBoundedAndGrows() {
+		DecorrelatedJitterBackOff backOff = new DecorrelatedJitterBackOff(100, 10000, new Random(42));
+		BackOffExecution execution = backOff.start();
+
+		long previous = 100;
+		boolean reachedCap = false;
+		for (int i = 0; i < 1000; i++) {
+			long next = execution.nextBackOff();
+			assertThat(next).isBetween(100L, Math.min(10000L, previous * 3));
+			reachedCap |= next == 10000L;
+			previous = next;
+		}
+		assertThat(reachedCap).isTrue();
+	}
+
+	@Test
+	public void testExecutionsAreIndependent() {
+		Random random = new Random() {
+
+			@Override
+			public double nextDouble() {
+				return 0.75;
+			}
+
+		};
+		DecorrelatedJitterBackOff backOff = new DecorrelatedJitterBackOff(100, 10000, random);
+
+		BackOffExecution execution1 = backOff.start();
+		assertThat(execution1.nextBackOff()).isEqualTo(250L);
+		assertThat(execution1.nextBackOff()).isEqualTo(587L);
+		assertThat(execution1.nextBackOff()).isEqualTo(1345L);
+
+		// A new execution starts from the base, not from the grown interval of the other one
+		BackOffExecution execution2 = backOff.start();
+		assertThat(execution2.nextBackOff()).isEqualTo(250L);
+
+		assertThat(execution1.nextBackOff()).isEqualTo(3051L);
+		assertThat(execution1.nextBackOff()).isEqualTo(6889L);
+		assertThat(execution1.nextBackOff()).isEqualTo(10000L);
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.springframework.integration.metadata.SimpleMetadataStore;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class KinesisConsumerMetricsTests {
+
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private final KinesisConsumerMetrics metrics = KinesisConsumerMetrics.create(this.meterRegistry, "testGroup");
+
+	@Test
+	public void testShardMeters() {
+		KinesisConsumerMetrics.ShardMetrics shardMetrics = this.metrics.forShard("stream", "shard");
+		assertThat(this.metrics.forShard("stream", "shard")).isSameAs(shardMetrics);
+
+		shardMetrics.recordsReceived(2, 10, 500L);
+		shardMetrics.recordsReceived(1, 5, null);
+		shardMetrics.throttled();
+		shardMetrics.iteratorExpired();
+		shardMetrics.iteratorExpired();
+		shardMetrics.getRecords(TimeUnit.MILLISECONDS.toNanos(20));
+		shardMetrics.dispatched(TimeUnit.MILLISECONDS.toNanos(30));
+
+		assertThat(meterCounter("records")).isEqualTo(3);
+		assertThat(meterCounter("bytes")).isEqualTo(15);
+		assertThat(meterCounter("throttles")).isEqualTo(1);
+		assertThat(meterCounter("expired.iterators")).isEqualTo(2);
+		// The gauge keeps the last reported value
+		assertThat(meterGauge("millis.behind.latest")).isEqualTo(500);
+
+		assertThat(this.meterRegistry.get("kinesis.consumer.get.records").tag("shard", "shard").timer()
+				.totalTime(TimeUnit.MILLISECONDS))
+				.isEqualTo(20);
+		assertThat(this.meterRegistry.get("kinesis.consumer.dispatch").tag("shard", "shard").timer()
+				.totalTime(TimeUnit.MILLISECONDS))
+				.isEqualTo(30);
+	}
+
+	@Test
+	public void testCheckpointLag() throws InterruptedException {
+		KinesisConsumerMetrics.ShardMetrics shardMetrics = this.metrics.forShard("stream", "shard");
+		assertThat(meterGauge("checkpoint.lag")).isEqualTo(0);
+
+		ShardCheckpointer checkpointer = new ShardCheckpointer(new SimpleMetadataStore(), "key", true);
+		shardMetrics.setCheckpointer(checkpointer);
+		assertThat(meterGauge("checkpoint.lag")).isEqualTo(0);
+
+		checkpointer.checkpoint("1");
+		Thread.sleep(50);
+		assertThat(meterGauge("checkpoint.lag")).isGreaterThanOrEqualTo(50);
+
+		checkpointer.flush();
+		assertThat(meterGauge("checkpoint.lag")).isEqualTo(0);
+	}
+
+	@Test
+	public void testRemoveShard() {
+		this.metrics.forShard("stream", "shard1");
+		this.metrics.forShard("stream", "shard2");
+
+		this.metrics.removeShard("stream", "shard1");
+
+		assertThat(this.meterRegistry.find("kinesis.consumer.records").tag("shard", "shard1").meters()).isEmpty();
+		assertThat(this.meterRegistry.find("kinesis.consumer.records").tag("shard", "shard2").meters()).hasSize(1);
+		assertThat(this.meterRegistry.getMeters()).hasSize(8);
+
+		// A new consumer of the same shard registers the meters again
+		this.metrics.forShard("stream", "shard1").recordsReceived(1, 1, null);
+		assertThat(this.meterRegistry.get("kinesis.consumer.records").tag("shard", "shard1").counter().count())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testNotMeterRegistryIsRejected() {
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> KinesisConsumerMetrics.create(new Object(), "testGroup"))
+				.withMessageContaining("MeterRegistry");
+	}
+
+	private double meterCounter(String name) {
+		return this.meterRegistry.get("kinesis.consumer." + name)
+				.tags("consumer.group", "testGroup", "stream", "stream", "shard", "shard")
+				.counter()
+				.count();
+	}
+
+	private double meterGauge(String name) {
+		return this.meterRegistry.get("kinesis.consumer." + name)
+				.tags("consumer.group", "testGroup", "stream", "stream", "shard", "shard")
+				.gauge()
+				.value();
+	}
+
+}
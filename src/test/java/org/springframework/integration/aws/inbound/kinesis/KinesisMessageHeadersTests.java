@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.integration.aws.support.AwsHeaders;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class KinesisMessageHeadersTests {
+
+	private final Map<String, Object> shardHeaders = new HashMap<>();
+
+	@Before
+	public void setup() {
+		this.shardHeaders.put(AwsHeaders.RECEIVED_STREAM, "stream");
+		this.shardHeaders.put(AwsHeaders.SHARD, "shard");
+	}
+
+	@Test
+	public void testRecordHeaders() {
+		Record record =
+				new Record()
+						.withPartitionKey("partition1")
+						.withSequenceNumber("1")
+						.withData(ByteBuffer.wrap("foo".getBytes()));
+
+		KinesisMessageHeaders headers = new KinesisMessageHeaders(this.shardHeaders, record, null);
+
+		assertThat(headers.getId()).isNotNull();
+		assertThat(headers.getTimestamp()).isNotNull();
+		assertThat(headers).doesNotContainKey(AwsHeaders.RECEIVED_SUB_SEQUENCE_NUMBER);
+		assertThat(withoutIdAndTimestamp(headers)).isEqualTo(builderHeaders(record, null));
+	}
+
+	@Test
+	public void testSubSequenceNumberHeader() {
+		Record aggregatedRecord =
+				new Record()
+						.withPartitionKey("partition1")
+						.withSequenceNumber("1");
+		Record record =
+				new DeaggregatedRecord(aggregatedRecord, "partition2", null, ByteBuffer.wrap("foo".getBytes()), 3,
+						false);
+
+		KinesisMessageHeaders headers = new KinesisMessageHeaders(this.shardHeaders, record, null);
+
+		assertThat(headers.get(AwsHeaders.RECEIVED_PARTITION_KEY)).isEqualTo("partition2");
+		assertThat(headers.get(AwsHeaders.RECEIVED_SUB_SEQUENCE_NUMBER)).isEqualTo(3L);
+		assertThat(withoutIdAndTimestamp(headers)).isEqualTo(builderHeaders(record, null));
+	}
+
+	@Test
+	public void testEmbeddedHeadersAreCopiedIfAbsent() {
+		Record record =
+				new Record()
+						.withPartitionKey("partition1")
+						.withSequenceNumber("1");
+
+		Message<?> embeddedMessage =
+				MessageBuilder.withPayload("foo")
+						.setHeader("foo", "bar")
+						.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, "embedded")
+						.setHeader(AwsHeaders.SHARD, "embedded")
+						.build();
+
+		KinesisMessageHeaders headers =
+				new KinesisMessageHeaders(this.shardHeaders, record, embeddedMessage.getHeaders());
+
+		assertThat(headers.get("foo")).isEqualTo("bar");
+		assertThat(headers.get(AwsHeaders.RECEIVED_SEQUENCE_NUMBER)).isEqualTo("1");
+		assertThat(headers.get(AwsHeaders.SHARD)).isEqualTo("shard");
+		assertThat(headers.getId()).isNotEqualTo(embeddedMessage.getHeaders().getId());
+		assertThat(withoutIdAndTimestamp(headers)).isEqualTo(builderHeaders(record, embeddedMessage.getHeaders()));
+
+		// The shard headers are shared by all the records and must stay untouched
+		assertThat(this.shardHeaders).containsOnlyKeys(AwsHeaders.RECEIVED_STREAM, AwsHeaders.SHARD);
+	}
+
+	/**
+	 * Build the headers the same way the adapter does with a custom {@code MessageBuilderFactory}.
+	 */
+	private Map<String, Object> builderHeaders(Record record, MessageHeaders embeddedHeaders) {
+		MessageBuilder<String> messageBuilder =
+				MessageBuilder.withPayload("foo")
+						.setHeader(AwsHeaders.RECEIVED_PARTITION_KEY, record.getPartitionKey())
+						.setHeader(AwsHeaders.RECEIVED_SEQUENCE_NUMBER, record.getSequenceNumber());
+
+		if (record instanceof DeaggregatedRecord) {
+			messageBuilder.setHeader(AwsHeaders.RECEIVED_SUB_SEQUENCE_NUMBER,
+					((DeaggregatedRecord) record).getSubSequenceNumber());
+		}
+
+		if (embeddedHeaders != null) {
+			messageBuilder.copyHeadersIfAbsent(embeddedHeaders);
+		}
+
+		return withoutIdAndTimestamp(messageBuilder.copyHeaders(this.shardHeaders).build().getHeaders());
+	}
+
+	private static Map<String, Object> withoutIdAndTimestamp(MessageHeaders headers) {
+		Map<String, Object> map = new HashMap<>(headers);
+		map.remove(MessageHeaders.ID);
+		map.remove(MessageHeaders.TIMESTAMP);
+		return map;
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.producer.protobuf.Messages;
+import com.google.protobuf.ByteString;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class RecordDeaggregatorTests {
+
+	private static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+
+	@Test
+	public void testDeaggregation() throws Exception {
+		Messages.AggregatedRecord aggregatedRecord =
+				Messages.AggregatedRecord.newBuilder()
+						.addPartitionKeyTable("key1")
+						.addPartitionKeyTable("key2")
+						.addExplicitHashKeyTable("12345")
+						.addRecords(Messages.Record.newBuilder()
+								.setPartitionKeyIndex(0)
+								.setData(ByteString.copyFromUtf8("foo")))
+						.addRecords(Messages.Record.newBuilder()
+								.setPartitionKeyIndex(1)
+								.setExplicitHashKeyIndex(0)
+								.setData(ByteString.copyFromUtf8("bar"))
+								.addTags(Messages.Tag.newBuilder().setKey("tag")))
+						.addRecords(Messages.Record.newBuilder()
+								.setPartitionKeyIndex(0)
+								.setData(ByteString.copyFromUtf8("baz")))
+						.build();
+
+		byte[] message = aggregatedRecord.toByteArray();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(MAGIC);
+		data.write(message);
+		data.write(MessageDigest.getInstance("MD5").digest(message));
+
+		Record notAggregated =
+				new Record()
+						.withSequenceNumber("1")
+						.withPartitionKey("key")
+						.withData(ByteBuffer.wrap("qux".getBytes()));
+
+		Record aggregated =
+				new Record()
+						.withSequenceNumber("2")
+						.withPartitionKey("key1")
+						.withData(ByteBuffer.wrap(data.toByteArray()));
+
+		List<Record> records = RecordDeaggregator.deaggregate(Arrays.asList(notAggregated, aggregated));
+
+		assertThat(records).hasSize(4);
+		assertThat(records.get(0)).isSameAs(notAggregated);
+
+		DeaggregatedRecord userRecord = (DeaggregatedRecord) records.get(1);
+		assertThat(userRecord.getSequenceNumber()).isEqualTo("2");
+		assertThat(userRecord.getSubSequenceNumber()).isEqualTo(0);
+		assertThat(userRecord.getPartitionKey()).isEqualTo("key1");
+		assertThat(userRecord.getExplicitHashKey()).isNull();
+		assertThat(new String(ByteBufferUtils.toByteArray(userRecord.getData()))).isEqualTo("foo");
+		assertThat(userRecord.isLastInAggregate()).isFalse();
+
+		userRecord = (DeaggregatedRecord) records.get(2);
+		assertThat(userRecord.getSubSequenceNumber()).isEqualTo(1);
+		assertThat(userRecord.getPartitionKey()).isEqualTo("key2");
+		assertThat(userRecord.getExplicitHashKey()).isEqualTo("12345");
+		assertThat(new String(ByteBufferUtils.toByteArray(userRecord.getData()))).isEqualTo("bar");
+
+		userRecord = (DeaggregatedRecord) records.get(3);
+		assertThat(userRecord.getSubSequenceNumber()).isEqualTo(2);
+		assertThat(new String(ByteBufferUtils.toByteArray(userRecord.getData()))).isEqualTo("baz");
+		assertThat(userRecord.isLastInAggregate()).isTrue();
+	}
+
+	@Test
+	public void testAggregatedRecordWithoutUserRecords() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(MAGIC);
+		data.write(MessageDigest.getInstance("MD5").digest(new byte[0]));
+
+		List<Record> records =
+				Arrays.asList(new Record()
+						.withSequenceNumber("1")
+						.withData(ByteBuffer.wrap(data.toByteArray())));
+
+		assertThat(RecordDeaggregator.deaggregate(records)).isEmpty();
+	}
+
+	@Test
+	public void testCorruptedAggregatedRecordIsNotDeaggregated() {
+		byte[] data = new byte[MAGIC.length + 20];
+		System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+
+		List<Record> records =
+				Arrays.asList(new Record()
+						.withSequenceNumber("1")
+						.withData(ByteBuffer.wrap(data)));
+
+		assertThat(RecordDeaggregator.deaggregate(records)).isSameAs(records);
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class SequenceNumbersTests {
+
+	@Test
+	public void testCompare() {
+		assertThat(SequenceNumbers.compare("1", "1")).isZero();
+		assertThat(SequenceNumbers.compare("0", "000")).isZero();
+		assertThat(SequenceNumbers.compare("0012", "12")).isZero();
+		assertThat(SequenceNumbers.compare("2", "10")).isNegative();
+		assertThat(SequenceNumbers.compare("10", "9")).isPositive();
+		assertThat(SequenceNumbers.isBefore("49590338271490256608559692538361571095921575989136588898",
+				"49590338271490256608559692540925702759324208523137515618")).isTrue();
+		assertThat(SequenceNumbers.isBefore("2", "2")).isFalse();
+	}
+
+	@Test
+	public void testCompareIsConsistentWithBigInteger() {
+		Random random = new Random();
+		for (int i = 0; i < 10000; i++) {
+			BigInteger first = new BigInteger(random.nextInt(190) + 1, random);
+			BigInteger second = random.nextBoolean() ? first : new BigInteger(random.nextInt(190) + 1, random);
+			assertThat(Integer.signum(SequenceNumbers.compare(first.toString(), second.toString())))
+					.isEqualTo(first.compareTo(second));
+		}
+	}
+
+	@Test
+	public void testNotANumber() {
+		assertThatThrownBy(() -> SequenceNumbers.compare("1a", "1"))
+				.isInstanceOf(NumberFormatException.class);
+		assertThatThrownBy(() -> SequenceNumbers.compare("", "1"))
+				.isInstanceOf(NumberFormatException.class);
+	}
+
+}
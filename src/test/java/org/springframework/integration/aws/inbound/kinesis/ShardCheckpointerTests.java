@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.inbound.kinesis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+import org.springframework.integration.metadata.ConcurrentMetadataStore;
+import org.springframework.integration.metadata.SimpleMetadataStore;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class ShardCheckpointerTests {
+
+	@Test
+	public void testSynchronousCheckpointUsesCachedValue() {
+		ConcurrentMetadataStore checkpointStore = spy(new SimpleMetadataStore());
+		ShardCheckpointer checkpointer = new ShardCheckpointer(checkpointStore, "key");
+
+		assertThat(checkpointer.checkpoint("1")).isTrue();
+		assertThat(checkpointer.checkpoint("2")).isTrue();
+		assertThat(checkpointer.checkpoint("3")).isTrue();
+
+		// Only the very first checkpoint reads the store
+		verify(checkpointStore).get("key");
+		verify(checkpointStore).putIfAbsent("key", "1");
+		verify(checkpointStore, times(2)).replace(anyString(), anyString(), anyString());
+
+		// A not newer sequence number is verified against the store
+		assertThat(checkpointer.checkpoint("2")).isFalse();
+		verify(checkpointStore, times(2)).get("key");
+		verify(checkpointStore, times(2)).replace(anyString(), anyString(), anyString());
+
+		assertThat(checkpointStore.get("key")).isEqualTo("3");
+	}
+
+	@Test
+	public void testSynchronousCheckpointOnRewoundStore() {
+		ConcurrentMetadataStore checkpointStore = new SimpleMetadataStore();
+		ShardCheckpointer checkpointer = new ShardCheckpointer(checkpointStore, "key");
+
+		assertThat(checkpointer.checkpoint("5")).isTrue();
+		// Another instance has rewound the checkpoint to reprocess records
+		checkpointStore.put("key", "1");
+
+		assertThat(checkpointer.checkpoint("3")).isTrue();
+		assertThat(checkpointStore.get("key")).isEqualTo("3");
+	}
+
+	@Test
+	public void testSynchronousCheckpointOnStaleCache() {
+		ConcurrentMetadataStore checkpointStore = new SimpleMetadataStore();
+		ShardCheckpointer checkpointer = new ShardCheckpointer(checkpointStore, "key");
+
+		assertThat(checkpointer.checkpoint("1")).isTrue();
+		checkpointStore.put("key", "5");
+
+		assertThat(checkpointer.checkpoint("3")).isFalse();
+		assertThat(checkpointer.checkpoint("7")).isTrue();
+		assertThat(checkpointStore.get("key")).isEqualTo("7");
+	}
+
+	@Test
+	public void testWriteBehindCheckpointsAreCoalesced() {
+		ConcurrentMetadataStore checkpointStore = spy(new SimpleMetadataStore());
+		ShardCheckpointer checkpointer = new ShardCheckpointer(checkpointStore, "key", true);
+
+		assertThat(checkpointer.checkpoint("1")).isTrue();
+		assertThat(checkpointer.checkpoint("2")).isTrue();
+		assertThat(checkpointer.checkpoint("3")).isTrue();
+		assertThat(checkpointer.checkpoint("2")).isFalse();
+
+		verify(checkpointStore, never()).putIfAbsent(anyString(), anyString());
+		assertThat(checkpointer.getCheckpointLag()).isGreaterThanOrEqualTo(0);
+
+		assertThat(checkpointer.flush()).isTrue();
+		assertThat(checkpointStore.get("key")).isEqualTo("3");
+		verify(checkpointStore).putIfAbsent("key", "3");
+		assertThat(checkpointer.getCheckpointLag()).isEqualTo(0);
+
+		assertThat(checkpointer.flush()).isFalse();
+
+		assertThat(checkpointer.checkpoint("4")).isTrue();
+		assertThat(checkpointer.checkpoint("5")).isTrue();
+		assertThat(checkpointer.flush()).isTrue();
+		assertThat(checkpointStore.get("key")).isEqualTo("5");
+		verify(checkpointStore).replace("key", "3", "5");
+	}
+
+}
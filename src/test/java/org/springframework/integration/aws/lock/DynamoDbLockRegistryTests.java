@@ -18,8 +18,11 @@ package org.springframework.integration.aws.lock;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -172,6 +175,25 @@ public class DynamoDbLockRegistryTests {
 		}
 	}
 
+	@Test
+	public void testBatchTryLock() throws Exception {
+		// The lock has to be released from the same thread
+		ExecutorService fooLockExecutor = Executors.newSingleThreadExecutor();
+		Lock fooLock = this.dynamoDbLockRegistry.obtain("foo");
+		Future<Boolean> fooLocked = fooLockExecutor.submit(fooLock::tryLock);
+		assertThat(fooLocked.get(10, TimeUnit.SECONDS)).isTrue();
+
+		Map<String, Lock> locks = this.dynamoDbLockRegistry.tryLock(Arrays.asList("foo", "bar", "baz"));
+		assertThat(locks).containsOnlyKeys("bar", "baz");
+
+		for (Lock lock : locks.values()) {
+			lock.unlock();
+		}
+
+		fooLockExecutor.submit(fooLock::unlock).get(10, TimeUnit.SECONDS);
+		fooLockExecutor.shutdown();
+	}
+
 	@Test
 	public void testTwoThreadsSecondFailsToGetLock() throws Exception {
 		final Lock lock1 = this.dynamoDbLockRegistry.obtain("foo");
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.integration.aws.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+import org.junit.Test;
+
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * @author Artem Bilan
+ *
+ * @since 2.2
+ */
+public class EmbeddedBinaryHeadersMessageMapperTests {
+
+	@Test
+	public void testEmbeddedHeadersRoundTrip() {
+		Message<byte[]> message =
+				MessageBuilder.withPayload("foo".getBytes())
+						.setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON)
+						.setHeader(AwsHeaders.PARTITION_KEY, "bar")
+						.setHeader("customString", "baz")
+						.setHeader("customLong", -42L)
+						.setHeader("customInteger", 12345)
+						.setHeader("customBoolean", true)
+						.setHeader("customDouble", 1.5)
+						.setHeader("customBytes", new byte[] { 1, 2, 3 })
+						.setHeader("notSupported", new Object())
+						.build();
+
+		EmbeddedBinaryHeadersMessageMapper mapper = new EmbeddedBinaryHeadersMessageMapper();
+
+		byte[] bytes = mapper.fromMessage(message);
+		Message<?> result = mapper.toMessage(bytes);
+
+		assertThat(result.getPayload()).isEqualTo("foo".getBytes());
+		MessageHeaders headers = result.getHeaders();
+		assertThat(headers.getId()).isEqualTo(message.getHeaders().getId());
+		assertThat(headers.getTimestamp()).isEqualTo(message.getHeaders().getTimestamp());
+		assertThat(headers.get(MessageHeaders.CONTENT_TYPE)).isEqualTo(MimeTypeUtils.APPLICATION_JSON);
+		assertThat(headers.get(AwsHeaders.PARTITION_KEY)).isEqualTo("bar");
+		assertThat(headers.get("customString")).isEqualTo("baz");
+		assertThat(headers.get("customLong")).isEqualTo(-42L);
+		assertThat(headers.get("customInteger")).isEqualTo(12345);
+		assertThat(headers.get("customBoolean")).isEqualTo(true);
+		assertThat(headers.get("customDouble")).isEqualTo(1.5);
+		assertThat(headers.get("customBytes")).isEqualTo(new byte[] { 1, 2, 3 });
+		assertThat(headers).doesNotContainKey("notSupported");
+	}
+
+	@Test
+	public void testHeaderPatterns() {
+		Message<byte[]> message =
+				MessageBuilder.withPayload("foo".getBytes())
+						.setHeader("foo", "foo")
+						.setHeader("bar", "bar")
+						.build();
+
+		EmbeddedBinaryHeadersMessageMapper mapper = new EmbeddedBinaryHeadersMessageMapper("!bar", "*");
+
+		Message<?> result = mapper.toMessage(mapper.fromMessage(message));
+
+		assertThat(result.getHeaders().get("foo")).isEqualTo("foo");
+		assertThat(result.getHeaders()).doesNotContainKey("bar");
+	}
+
+	@Test
+	public void testNotEmbeddedData() {
+		EmbeddedBinaryHeadersMessageMapper mapper = new EmbeddedBinaryHeadersMessageMapper();
+
+		byte[] bytes = "foo".getBytes();
+		Message<?> result = mapper.toMessage(bytes);
+
+		assertThat(result.getPayload()).isSameAs(bytes);
+	}
+
+	@Test
+	public void testMalformedHeadersCount() {
+		EmbeddedBinaryHeadersMessageMapper mapper = new EmbeddedBinaryHeadersMessageMapper();
+
+		byte[] bytes = mapper.fromMessage(MessageBuilder.withPayload("foo".getBytes()).build());
+
+		// The marker and version followed by the Integer.MAX_VALUE headers count varint
+		byte[] hugeCount = { bytes[0], bytes[1], (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0 };
+		assertThatIllegalStateException()
+				.isThrownBy(() -> mapper.toMessage(hugeCount))
+				.withMessageContaining("Invalid embedded headers count");
+
+		// The count which doesn't fit into an int
+		byte[] overflowCount =
+				{ bytes[0], bytes[1], (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01, 0, 0 };
+		assertThatIllegalStateException()
+				.isThrownBy(() -> mapper.toMessage(overflowCount))
+				.withMessageContaining("Invalid embedded headers count");
+
+		// More headers than the data can hold
+		byte[] truncated = { bytes[0], bytes[1], 0x02, 0x01, 0x01 };
+		assertThatIllegalStateException()
+				.isThrownBy(() -> mapper.toMessage(truncated))
+				.withMessageContaining("Invalid embedded headers count");
+	}
+
+}